@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares the throughput of {@link BufferPool} and {@link ConcurrentBufferPool} when several
+ * threads allocate and release concurrently, as the loader threads of several sample sources do.
+ * <p>
+ * Each thread repeatedly allocates a small number of buffers and releases the allocation that it
+ * made a few iterations earlier, so that the pool is exercised both by reuse within a thread and by
+ * buffers moving between a thread and the shared free list.
+ */
+public class ConcurrentBufferPoolBenchmark extends TestCase {
+
+  private static final String TAG = "ConcurrentBufferPoolBenchmark";
+
+  private static final int BUFFER_LENGTH = 16 * 1024;
+  private static final int BUFFERS_PER_ALLOCATION = 4;
+  private static final int HELD_ALLOCATION_COUNT = 8;
+  private static final int ITERATIONS_PER_THREAD = 200000;
+  private static final int[] THREAD_COUNTS = new int[] {1, 4, 8};
+
+  public void testContention() throws InterruptedException {
+    for (int i = 0; i < THREAD_COUNTS.length; i++) {
+      int threadCount = THREAD_COUNTS[i];
+      // Warm up both pools before measuring.
+      runThreads(new BufferPool(BUFFER_LENGTH), threadCount);
+      runThreads(new ConcurrentBufferPool(BUFFER_LENGTH), threadCount);
+      long bufferPoolNs = runThreads(new BufferPool(BUFFER_LENGTH), threadCount);
+      long concurrentBufferPoolNs =
+          runThreads(new ConcurrentBufferPool(BUFFER_LENGTH), threadCount);
+      long operationCount = (long) threadCount * ITERATIONS_PER_THREAD;
+      Log.i(TAG, threadCount + " threads: BufferPool " + (bufferPoolNs / operationCount)
+          + "ns/op, ConcurrentBufferPool " + (concurrentBufferPoolNs / operationCount) + "ns/op");
+    }
+  }
+
+  /**
+   * Runs the allocating threads to completion.
+   *
+   * @return The elapsed time in nanoseconds.
+   */
+  private static long runThreads(final Allocator allocator, int threadCount)
+      throws InterruptedException {
+    final CountDownLatch startLatch = new CountDownLatch(1);
+    final CountDownLatch finishLatch = new CountDownLatch(threadCount);
+    for (int i = 0; i < threadCount; i++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            startLatch.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          Allocation[] heldAllocations = new Allocation[HELD_ALLOCATION_COUNT];
+          for (int j = 0; j < ITERATIONS_PER_THREAD; j++) {
+            int index = j % HELD_ALLOCATION_COUNT;
+            if (heldAllocations[index] != null) {
+              heldAllocations[index].release();
+            }
+            heldAllocations[index] = allocator.allocate(BUFFERS_PER_ALLOCATION * BUFFER_LENGTH);
+          }
+          for (int j = 0; j < HELD_ALLOCATION_COUNT; j++) {
+            heldAllocations[j].release();
+          }
+          finishLatch.countDown();
+        }
+      }.start();
+    }
+    long startTimeNs = System.nanoTime();
+    startLatch.countDown();
+    finishLatch.await();
+    long elapsedNs = System.nanoTime() - startTimeNs;
+    assertEquals(0, allocator.getAllocatedSize());
+    return elapsedNs;
+  }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import android.net.Uri;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/**
+ * Compares the throughput of {@link FileDataSource} and {@link MappedFileDataSource} when reading
+ * multi-gigabyte files.
+ * <p>
+ * The files are created sparse, so that the benchmark doesn't need to write gigabytes of data
+ * before it starts. Reads of a sparse file are served from the page cache, so the benchmark
+ * measures the per-read overhead of each source rather than the speed of the storage.
+ */
+public class MappedFileDataSourceBenchmark extends TestCase {
+
+  private static final String TAG = "MappedFileDataSourceBenchmark";
+
+  private static final long FILE_LENGTH = 2L * 1024 * 1024 * 1024;
+  private static final int READ_LENGTH = 32 * 1024;
+  private static final int SEEK_COUNT = 2000;
+  private static final int SEEK_READ_LENGTH = 256 * 1024;
+  // The number of distinct positions in each file that are read by the seeking benchmark.
+  private static final int SEEK_POSITION_COUNT = 2;
+
+  private File file1;
+  private File file2;
+
+  @Override
+  protected void setUp() throws IOException {
+    file1 = createSparseFile();
+    file2 = createSparseFile();
+  }
+
+  @Override
+  protected void tearDown() {
+    file1.delete();
+    file2.delete();
+  }
+
+  public void testSequentialRead() throws IOException {
+    long fileDataSourceNs = readSequentially(new FileDataSource());
+    long mappedFileDataSourceNs = readSequentially(new MappedFileDataSource());
+    Log.i(TAG, "Sequential: FileDataSource " + toMegabytesPerSecond(FILE_LENGTH, fileDataSourceNs)
+        + "MB/s, MappedFileDataSource "
+        + toMegabytesPerSecond(FILE_LENGTH, mappedFileDataSourceNs) + "MB/s");
+  }
+
+  public void testSeekBetweenFiles() throws IOException {
+    long fileDataSourceNs = readWithSeeks(new FileDataSource());
+    long mappedFileDataSourceNs = readWithSeeks(new MappedFileDataSource());
+    long bytesRead = (long) SEEK_COUNT * SEEK_READ_LENGTH;
+    Log.i(TAG, "Seeking: FileDataSource " + toMegabytesPerSecond(bytesRead, fileDataSourceNs)
+        + "MB/s, MappedFileDataSource " + toMegabytesPerSecond(bytesRead, mappedFileDataSourceNs)
+        + "MB/s");
+  }
+
+  /**
+   * Reads the whole of a file.
+   *
+   * @return The elapsed time in nanoseconds.
+   */
+  private long readSequentially(DataSource dataSource) throws IOException {
+    byte[] buffer = new byte[READ_LENGTH];
+    long startTimeNs = System.nanoTime();
+    assertEquals(FILE_LENGTH, readFully(dataSource, buffer,
+        new DataSpec(Uri.fromFile(file1), 0, DataSpec.LENGTH_UNBOUNDED, null)));
+    return System.nanoTime() - startTimeNs;
+  }
+
+  /**
+   * Alternates between the two files, opening each at one of a small number of positions, as a
+   * {@link com.google.android.exoplayer.upstream.cache.CacheDataSource} does when a player seeks
+   * back and forth within media whose spans are cached in different files.
+   *
+   * @return The elapsed time in nanoseconds.
+   */
+  private long readWithSeeks(DataSource dataSource) throws IOException {
+    byte[] buffer = new byte[READ_LENGTH];
+    Random random = new Random(0);
+    long positionSpacing = FILE_LENGTH / SEEK_POSITION_COUNT;
+    long startTimeNs = System.nanoTime();
+    for (int i = 0; i < SEEK_COUNT; i++) {
+      File file = i % 2 == 0 ? file1 : file2;
+      long position = random.nextInt(SEEK_POSITION_COUNT) * positionSpacing;
+      assertEquals(SEEK_READ_LENGTH, readFully(dataSource, buffer,
+          new DataSpec(Uri.fromFile(file), position, SEEK_READ_LENGTH, null)));
+    }
+    return System.nanoTime() - startTimeNs;
+  }
+
+  private static long readFully(DataSource dataSource, byte[] buffer, DataSpec dataSpec)
+      throws IOException {
+    long totalBytesRead = 0;
+    try {
+      dataSource.open(dataSpec);
+      int bytesRead;
+      while ((bytesRead = dataSource.read(buffer, 0, buffer.length)) != -1) {
+        totalBytesRead += bytesRead;
+      }
+    } finally {
+      dataSource.close();
+    }
+    return totalBytesRead;
+  }
+
+  private static File createSparseFile() throws IOException {
+    File file = File.createTempFile(TAG, null);
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.setLength(FILE_LENGTH);
+    } finally {
+      randomAccessFile.close();
+    }
+    return file;
+  }
+
+  private static long toMegabytesPerSecond(long bytes, long elapsedNs) {
+    return bytes * 1000000000L / (1024 * 1024) / Math.max(elapsedNs, 1);
+  }
+
+}
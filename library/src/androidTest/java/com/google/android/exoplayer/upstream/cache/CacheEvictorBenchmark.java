@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream.cache;
+
+import com.google.android.exoplayer.upstream.DataSpec;
+
+import android.net.Uri;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A trace-driven simulator that compares the hit ratios of {@link TinyLfuCacheEvictor} and
+ * {@link LeastRecentlyUsedCacheEvictor}.
+ * <p>
+ * Each access in a trace is replayed against a real cache. An access to data that's cached is a
+ * hit. Any other access is a miss, for which the data is written to the cache using a
+ * {@link CacheDataSink}. Synthetic traces are generated by the tests. A recorded trace can be
+ * replayed by placing it in {@link #RECORDED_TRACE_FILE_NAME} in the temporary directory, with one
+ * access per line in the form {@code <key> <position> <length>}.
+ */
+public class CacheEvictorBenchmark extends TestCase {
+
+  private static final String TAG = "CacheEvictorBenchmark";
+
+  /**
+   * The name of the file from which a recorded trace is read by {@link #testRecordedTrace()}.
+   */
+  public static final String RECORDED_TRACE_FILE_NAME = "cache_trace.txt";
+
+  private static final int SEGMENT_LENGTH = 1000;
+  private static final int SEGMENTS_PER_KEY = 100;
+  private static final long MAX_BYTES = 500 * SEGMENT_LENGTH;
+
+  private static final int SKEWED_ACCESS_COUNT = 60000;
+  private static final int CATALOGUE_SEGMENT_COUNT = 2000;
+  // One access in this many is to a segment of the binge, which is never accessed again.
+  private static final int BINGE_INTERVAL = 3;
+
+  private static final int LOOP_ACCESS_COUNT = 20000;
+  private static final int LOOP_SEGMENT_COUNT = 400;
+
+  private File cacheDir;
+
+  @Override
+  protected void setUp() throws IOException {
+    cacheDir = File.createTempFile(TAG, null);
+    cacheDir.delete();
+    cacheDir.mkdir();
+  }
+
+  @Override
+  protected void tearDown() {
+    delete(cacheDir);
+  }
+
+  /**
+   * Replays a popular catalogue with a skewed access distribution, interleaved with a binge of
+   * segments that are each accessed once. The binge flushes the catalogue from an LRU cache.
+   */
+  public void testSkewedWithBinge() throws IOException {
+    Random random = new Random(0);
+    Access[] trace = new Access[SKEWED_ACCESS_COUNT];
+    int bingeSegment = CATALOGUE_SEGMENT_COUNT;
+    for (int i = 0; i < trace.length; i++) {
+      int segment;
+      if (i % BINGE_INTERVAL == 0) {
+        segment = bingeSegment++;
+      } else {
+        segment = (int) (Math.pow(random.nextDouble(), 3) * CATALOGUE_SEGMENT_COUNT);
+      }
+      trace[i] = createSegmentAccess(segment);
+    }
+    double[] hitRatios = compareEvictors("Skewed with binge", trace);
+    assertTrue(hitRatios[1] > hitRatios[0]);
+  }
+
+  /**
+   * Replays a loop over a set of segments that fits in the cache, for which recency alone is
+   * sufficient.
+   */
+  public void testLoop() throws IOException {
+    Access[] trace = new Access[LOOP_ACCESS_COUNT];
+    for (int i = 0; i < trace.length; i++) {
+      trace[i] = createSegmentAccess(i % LOOP_SEGMENT_COUNT);
+    }
+    double[] hitRatios = compareEvictors("Loop", trace);
+    assertEquals(hitRatios[0], hitRatios[1], 0.01);
+  }
+
+  /**
+   * Replays a recorded trace, if one has been provided.
+   */
+  public void testRecordedTrace() throws IOException {
+    File traceFile = new File(System.getProperty("java.io.tmpdir"), RECORDED_TRACE_FILE_NAME);
+    if (!traceFile.exists()) {
+      Log.i(TAG, "Recorded: skipped, since " + traceFile + " does not exist");
+      return;
+    }
+    compareEvictors("Recorded", readTrace(traceFile));
+  }
+
+  /**
+   * Replays a trace against each cache with each evictor, logging the hit ratios.
+   *
+   * @return The hit ratios of the LRU and TinyLFU evictors, averaged over the caches.
+   */
+  private double[] compareEvictors(String traceName, Access[] trace) throws IOException {
+    double packedLru = replay(new PackedCache(newCacheDir(),
+        new LeastRecentlyUsedCacheEvictor(MAX_BYTES)), trace);
+    double packedTinyLfu = replay(new PackedCache(newCacheDir(),
+        new TinyLfuCacheEvictor(MAX_BYTES)), trace);
+    double simpleLru = replay(new SimpleCache(newCacheDir(),
+        new LeastRecentlyUsedCacheEvictor(MAX_BYTES)), trace);
+    double simpleTinyLfu = replay(new SimpleCache(newCacheDir(),
+        new TinyLfuCacheEvictor(MAX_BYTES)), trace);
+    Log.i(TAG, traceName + ": PackedCache LRU " + packedLru + ", TinyLFU " + packedTinyLfu
+        + "; SimpleCache LRU " + simpleLru + ", TinyLFU " + simpleTinyLfu);
+    return new double[] {(packedLru + simpleLru) / 2, (packedTinyLfu + simpleTinyLfu) / 2};
+  }
+
+  /**
+   * Replays a trace against a cache.
+   *
+   * @param cache The cache, which should initially be empty.
+   * @param trace The trace.
+   * @return The proportion of the accesses that were hits.
+   */
+  public static double replay(Cache cache, Access[] trace) throws IOException {
+    byte[] data = new byte[0];
+    int hitCount = 0;
+    for (int i = 0; i < trace.length; i++) {
+      Access access = trace[i];
+      CacheSpan span = cache.startReadWriteNonBlocking(access.key, access.position,
+          access.length);
+      // The trace is replayed on a single thread, so no hole can be locked by another writer.
+      assertNotNull(span);
+      if (span.isCached) {
+        hitCount++;
+        continue;
+      }
+      try {
+        long length = span.isOpenEnded() ? access.length : Math.min(span.length, access.length);
+        if (data.length < length) {
+          data = new byte[(int) length];
+        }
+        CacheDataSink sink = new CacheDataSink(cache, Long.MAX_VALUE);
+        sink.open(new DataSpec(Uri.EMPTY, access.position, length, access.key));
+        try {
+          sink.write(data, 0, (int) length);
+        } finally {
+          sink.close();
+        }
+      } finally {
+        cache.releaseHoleSpan(span);
+      }
+    }
+    return (double) hitCount / trace.length;
+  }
+
+  /**
+   * Reads a recorded trace, with one access per line in the form
+   * {@code <key> <position> <length>}.
+   */
+  public static Access[] readTrace(File file) throws IOException {
+    List<Access> trace = new ArrayList<Access>();
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.trim().split("\\s+");
+        if (fields.length != 3) {
+          continue;
+        }
+        trace.add(new Access(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+      }
+    } finally {
+      reader.close();
+    }
+    return trace.toArray(new Access[trace.size()]);
+  }
+
+  private static Access createSegmentAccess(int segment) {
+    return new Access("key" + (segment / SEGMENTS_PER_KEY),
+        (long) (segment % SEGMENTS_PER_KEY) * SEGMENT_LENGTH, SEGMENT_LENGTH);
+  }
+
+  private File newCacheDir() throws IOException {
+    File dir = File.createTempFile(TAG, null, cacheDir);
+    dir.delete();
+    dir.mkdir();
+    return dir;
+  }
+
+  private static void delete(File file) {
+    File[] files = file.listFiles();
+    for (int i = 0; files != null && i < files.length; i++) {
+      delete(files[i]);
+    }
+    file.delete();
+  }
+
+  /**
+   * An access to a range of data in a trace.
+   */
+  public static final class Access {
+
+    public final String key;
+    public final long position;
+    public final long length;
+
+    public Access(String key, long position, long length) {
+      this.key = key;
+      this.position = position;
+      this.length = length;
+    }
+
+  }
+
+}
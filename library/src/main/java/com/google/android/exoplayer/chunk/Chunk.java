@@ -22,6 +22,7 @@ import com.google.android.exoplayer.upstream.DataSourceStream;
 import com.google.android.exoplayer.upstream.DataSpec;
 import com.google.android.exoplayer.upstream.Loader.Loadable;
 import com.google.android.exoplayer.upstream.NonBlockingInputStream;
+import com.google.android.exoplayer.upstream.TransferTiming;
 import com.google.android.exoplayer.util.Assertions;
 
 import java.io.IOException;
@@ -123,6 +124,15 @@ public abstract class Chunk implements Loadable {
     return dataSourceStream.getLoadPosition();
   }
 
+  /**
+   * Gets a breakdown of the timing of the most recent attempt to load the chunk.
+   *
+   * @return The timing of the most recent load attempt, or null if no attempt has finished.
+   */
+  public final TransferTiming getTransferTiming() {
+    return dataSourceStream.getTransferTiming();
+  }
+
   /**
    * Causes loaded data to be consumed.
    *
@@ -24,6 +24,7 @@ import com.google.android.exoplayer.TrackInfo;
 import com.google.android.exoplayer.TrackRenderer;
 import com.google.android.exoplayer.upstream.DataSpec;
 import com.google.android.exoplayer.upstream.Loader;
+import com.google.android.exoplayer.upstream.TransferTiming;
 import com.google.android.exoplayer.util.Assertions;
 
 import android.os.Handler;
@@ -130,6 +131,22 @@ public class ChunkSampleSource implements SampleSource, Loader.Listener {
 
   }
 
+  /**
+   * An {@link EventListener} that's also notified of the timing of each completed load.
+   */
+  public interface TimingEventListener extends EventListener {
+
+    /**
+     * Invoked immediately after {@link #onLoadCompleted(int)}, if the timing of the load is
+     * available.
+     *
+     * @param sourceId The id of the reporting {@link SampleSource}.
+     * @param timing A breakdown of the timing of the load.
+     */
+    void onLoadTiming(int sourceId, TransferTiming timing);
+
+  }
+
   private static final int STATE_UNPREPARED = 0;
   private static final int STATE_PREPARED = 1;
   private static final int STATE_ENABLED = 2;
@@ -399,6 +416,7 @@ public class ChunkSampleSource implements SampleSource, Loader.Listener {
   @Override
   public void onLoaded() {
     Chunk currentLoadable = currentLoadableHolder.chunk;
+    TransferTiming timing = currentLoadable.getTransferTiming();
     try {
       currentLoadable.consume();
     } catch (IOException e) {
@@ -414,7 +432,7 @@ public class ChunkSampleSource implements SampleSource, Loader.Listener {
       if (!currentLoadableExceptionFatal) {
         clearCurrentLoadable();
       }
-      notifyLoadCompleted();
+      notifyLoadCompleted(timing);
       updateLoadControl();
     }
   }
@@ -679,12 +697,15 @@ public class ChunkSampleSource implements SampleSource, Loader.Listener {
     }
   }
 
-  private void notifyLoadCompleted() {
+  private void notifyLoadCompleted(final TransferTiming timing) {
     if (eventHandler != null && eventListener != null) {
       eventHandler.post(new Runnable()  {
         @Override
         public void run() {
           eventListener.onLoadCompleted(eventSourceId);
+          if (timing != null && eventListener instanceof TimingEventListener) {
+            ((TimingEventListener) eventListener).onLoadTiming(eventSourceId, timing);
+          }
         }
       });
     }
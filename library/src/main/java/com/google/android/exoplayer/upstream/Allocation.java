@@ -15,22 +15,38 @@
  */
 package com.google.android.exoplayer.upstream;
 
+import java.nio.ByteBuffer;
+
 /**
- * An {@link Allocation}, defined to consist of a set of fragments of underlying byte arrays.
+ * An {@link Allocation}, defined to consist of a set of fragments of underlying buffers.
  * <p>
- * The byte arrays in which the fragments are located are obtained by {@link #getBuffers}. For
- * each, the offset and length of the fragment within the byte array are obtained using
- * {@link #getFragmentOffset} and {@link #getFragmentLength} respectively.
+ * The underlying buffers are either byte arrays, obtained by {@link #getBuffers}, or direct
+ * {@link ByteBuffer}s, obtained by {@link #getByteBuffers}. Exactly one of these methods returns a
+ * non-null value. For each buffer, the offset and length of the fragment within the buffer are
+ * obtained using {@link #getFragmentOffset} and {@link #getFragmentLength} respectively.
  */
 public interface Allocation {
 
   /**
-   * Gets the buffers in which the fragments are allocated.
+   * Gets the byte arrays in which the fragments are allocated.
    *
-   * @return The buffers in which the fragments are allocated.
+   * @return The byte arrays in which the fragments are allocated, or null if the allocation is
+   *     backed by {@link ByteBuffer}s.
    */
   public byte[][] getBuffers();
 
+  /**
+   * Gets the {@link ByteBuffer}s in which the fragments are allocated.
+   * <p>
+   * The position and limit of the returned buffers must not be relied upon, since they may be
+   * modified by other users of the allocation. Callers should use {@link ByteBuffer#duplicate()}
+   * to obtain buffers whose position and limit they can control independently.
+   *
+   * @return The {@link ByteBuffer}s in which the fragments are allocated, or null if the allocation
+   *     is backed by byte arrays.
+   */
+  public ByteBuffer[] getByteBuffers();
+
   /**
    * The offset of the fragment in the buffer at the specified index.
    *
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * An {@link Allocator} that carves allocations out of a small number of large byte arrays (slabs).
+ * <p>
+ * Each slab is divided into fixed length blocks. An allocation that fits within a slab is always
+ * satisfied by a single contiguous run of blocks, in which case the {@link Allocation} consists of
+ * a single fragment at a (typically non-zero) offset within the slab. A new slab is added if no
+ * existing slab contains a sufficiently long run of free blocks. Allocations larger than a slab are
+ * assembled from the free runs of several slabs, adding new slabs as necessary.
+ * <p>
+ * Slabs are searched in the order in which they were created, so that allocations are packed
+ * towards the oldest slabs and newer slabs are more likely to become empty. Since the positions of
+ * live allocations cannot be changed, {@link #trim(int)} compacts the arena by discarding slabs
+ * that contain no allocated blocks, newest first.
+ */
+public final class ArenaAllocator implements Allocator {
+
+  /**
+   * The length in bytes of each slab.
+   */
+  public final int slabLength;
+  /**
+   * The length in bytes of each block. Allocation sizes are rounded up to a multiple of this value.
+   */
+  public final int blockLength;
+
+  private final int blocksPerSlab;
+  private final ArrayList<Slab> slabs;
+
+  private int allocatedBlockCount;
+
+  /**
+   * Constructs an empty arena.
+   *
+   * @param slabLength The length of each slab. Must be a multiple of {@code blockLength}.
+   * @param blockLength The length of each block.
+   */
+  public ArenaAllocator(int slabLength, int blockLength) {
+    Assertions.checkArgument(blockLength > 0);
+    Assertions.checkArgument(slabLength > 0 && slabLength % blockLength == 0);
+    this.slabLength = slabLength;
+    this.blockLength = blockLength;
+    blocksPerSlab = slabLength / blockLength;
+    slabs = new ArrayList<Slab>();
+  }
+
+  @Override
+  public synchronized int getAllocatedSize() {
+    return allocatedBlockCount * blockLength;
+  }
+
+  @Override
+  public synchronized void trim(int targetSize) {
+    for (int i = slabs.size() - 1; i >= 0 && slabs.size() * slabLength > targetSize; i--) {
+      if (slabs.get(i).usedBlockCount == 0) {
+        slabs.remove(i);
+      }
+    }
+  }
+
+  @Override
+  public synchronized Allocation allocate(int size) {
+    int requiredBlockCount = (size + blockLength - 1) / blockLength;
+    allocatedBlockCount += requiredBlockCount;
+
+    // Prefer a single contiguous run, adding a new slab if no existing slab contains one.
+    if (requiredBlockCount <= blocksPerSlab) {
+      for (int i = 0; i < slabs.size(); i++) {
+        Slab slab = slabs.get(i);
+        int startBlock = slab.findFreeRun(requiredBlockCount);
+        if (startBlock != -1) {
+          return newSingleFragmentAllocation(slab, startBlock, requiredBlockCount);
+        }
+      }
+      Slab slab = new Slab();
+      slabs.add(slab);
+      return newSingleFragmentAllocation(slab, 0, requiredBlockCount);
+    }
+
+    // The allocation is larger than a slab. Assemble it from the free runs of existing slabs,
+    // adding slabs as necessary.
+    ArrayList<Slab> fragmentSlabs = new ArrayList<Slab>();
+    ArrayList<Integer> fragmentStartBlocks = new ArrayList<Integer>();
+    ArrayList<Integer> fragmentBlockCounts = new ArrayList<Integer>();
+    int remainingBlockCount = requiredBlockCount;
+    for (int i = 0; remainingBlockCount > 0; i++) {
+      if (i == slabs.size()) {
+        slabs.add(new Slab());
+      }
+      Slab slab = slabs.get(i);
+      int startBlock = slab.used.nextClearBit(0);
+      while (remainingBlockCount > 0 && startBlock < blocksPerSlab) {
+        int endBlock = Math.min(slab.nextUsedBlock(startBlock), startBlock + remainingBlockCount);
+        slab.markUsed(startBlock, endBlock);
+        fragmentSlabs.add(slab);
+        fragmentStartBlocks.add(startBlock);
+        fragmentBlockCounts.add(endBlock - startBlock);
+        remainingBlockCount -= endBlock - startBlock;
+        startBlock = slab.used.nextClearBit(endBlock);
+      }
+    }
+    int fragmentCount = fragmentSlabs.size();
+    Slab[] allocationSlabs = new Slab[fragmentCount];
+    int[] startBlocks = new int[fragmentCount];
+    int[] blockCounts = new int[fragmentCount];
+    for (int i = 0; i < fragmentCount; i++) {
+      allocationSlabs[i] = fragmentSlabs.get(i);
+      startBlocks[i] = fragmentStartBlocks.get(i);
+      blockCounts[i] = fragmentBlockCounts.get(i);
+    }
+    return new AllocationImpl(allocationSlabs, startBlocks, blockCounts);
+  }
+
+  /**
+   * Returns the blocks belonging to an allocation to the arena.
+   *
+   * @param allocation The allocation to return.
+   */
+  /* package */ synchronized void release(AllocationImpl allocation) {
+    for (int i = 0; i < allocation.slabs.length; i++) {
+      int startBlock = allocation.startBlocks[i];
+      int blockCount = allocation.blockCounts[i];
+      allocation.slabs[i].markFree(startBlock, startBlock + blockCount);
+      allocatedBlockCount -= blockCount;
+    }
+  }
+
+  private Allocation newSingleFragmentAllocation(Slab slab, int startBlock, int blockCount) {
+    slab.markUsed(startBlock, startBlock + blockCount);
+    return new AllocationImpl(new Slab[] {slab}, new int[] {startBlock}, new int[] {blockCount});
+  }
+
+  private final class Slab {
+
+    public final byte[] data;
+    public final BitSet used;
+
+    public int usedBlockCount;
+
+    public Slab() {
+      data = new byte[slabLength];
+      used = new BitSet(blocksPerSlab);
+    }
+
+    /**
+     * Returns the first block of the first run of {@code blockCount} free blocks, or -1 if the
+     * slab does not contain such a run.
+     */
+    public int findFreeRun(int blockCount) {
+      if (blocksPerSlab - usedBlockCount < blockCount) {
+        return -1;
+      }
+      int startBlock = used.nextClearBit(0);
+      while (startBlock + blockCount <= blocksPerSlab) {
+        int endBlock = nextUsedBlock(startBlock);
+        if (endBlock - startBlock >= blockCount) {
+          return startBlock;
+        }
+        startBlock = used.nextClearBit(endBlock);
+      }
+      return -1;
+    }
+
+    /**
+     * Returns the index of the first used block at or after {@code fromBlock}, or
+     * {@code blocksPerSlab} if there is no such block.
+     */
+    public int nextUsedBlock(int fromBlock) {
+      int usedBlock = used.nextSetBit(fromBlock);
+      return usedBlock == -1 ? blocksPerSlab : usedBlock;
+    }
+
+    public void markUsed(int fromBlock, int toBlock) {
+      used.set(fromBlock, toBlock);
+      usedBlockCount += toBlock - fromBlock;
+    }
+
+    public void markFree(int fromBlock, int toBlock) {
+      used.clear(fromBlock, toBlock);
+      usedBlockCount -= toBlock - fromBlock;
+    }
+
+  }
+
+  private class AllocationImpl implements Allocation {
+
+    private final Slab[] slabs;
+    private final int[] startBlocks;
+    private final int[] blockCounts;
+
+    private byte[][] buffers;
+
+    public AllocationImpl(Slab[] slabs, int[] startBlocks, int[] blockCounts) {
+      this.slabs = slabs;
+      this.startBlocks = startBlocks;
+      this.blockCounts = blockCounts;
+      buffers = new byte[slabs.length][];
+      for (int i = 0; i < slabs.length; i++) {
+        buffers[i] = slabs[i].data;
+      }
+    }
+
+    @Override
+    public byte[][] getBuffers() {
+      return buffers;
+    }
+
+    @Override
+    public ByteBuffer[] getByteBuffers() {
+      return null;
+    }
+
+    @Override
+    public int getFragmentOffset(int index) {
+      return startBlocks[index] * blockLength;
+    }
+
+    @Override
+    public int getFragmentLength(int index) {
+      return blockCounts[index] * blockLength;
+    }
+
+    @Override
+    public void release() {
+      if (buffers != null) {
+        ArenaAllocator.this.release(this);
+        buffers = null;
+      }
+    }
+
+  }
+
+}
@@ -17,6 +17,7 @@ package com.google.android.exoplayer.upstream;
 
 import com.google.android.exoplayer.util.Assertions;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -117,6 +118,11 @@ public final class BufferPool implements Allocator {
       return buffers;
     }
 
+    @Override
+    public ByteBuffer[] getByteBuffers() {
+      return null;
+    }
+
     @Override
     public int getFragmentOffset(int index) {
       return 0;
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An {@link Allocator} that maintains a pool of fixed length byte arrays (buffers), and which is
+ * designed to be used concurrently by multiple threads without lock contention.
+ * <p>
+ * Like {@link BufferPool}, an {@link Allocation} obtained from a {@link ConcurrentBufferPool}
+ * consists of the whole number of these buffers. Each thread allocates from and releases to its
+ * own cache of up to twice {@link #MAGAZINE_CAPACITY} recycled buffers. Only when its cache is
+ * exhausted or full does a thread exchange a magazine of {@link #MAGAZINE_CAPACITY} buffers with
+ * a shared lock-free depot. The allocated size is tracked atomically.
+ * <p>
+ * A call to {@link #trim(int)} trims the depot immediately. Buffers cached by individual threads
+ * count towards the target size, and are only discarded if they alone exceed it. In that case each
+ * thread discards its cache the next time that it allocates or releases.
+ */
+public final class ConcurrentBufferPool implements Allocator {
+
+  /**
+   * The number of buffers held by each magazine.
+   */
+  public static final int MAGAZINE_CAPACITY = 32;
+
+  /**
+   * The length in bytes of each individual buffer in the pool.
+   */
+  public final int bufferLength;
+
+  private final AtomicInteger allocatedBufferCount;
+  private final AtomicInteger depotMagazineCount;
+  private final AtomicInteger threadCachedBufferCount;
+  private final ConcurrentLinkedQueue<byte[][]> depot;
+  private final ThreadLocal<ThreadCache> threadCaches;
+
+  private volatile int trimGeneration;
+
+  /**
+   * Constructs an empty pool.
+   *
+   * @param bufferLength The length of each buffer in the pool.
+   */
+  public ConcurrentBufferPool(int bufferLength) {
+    Assertions.checkArgument(bufferLength > 0);
+    this.bufferLength = bufferLength;
+    allocatedBufferCount = new AtomicInteger();
+    depotMagazineCount = new AtomicInteger();
+    threadCachedBufferCount = new AtomicInteger();
+    depot = new ConcurrentLinkedQueue<byte[][]>();
+    threadCaches = new ThreadLocal<ThreadCache>() {
+      @Override
+      protected ThreadCache initialValue() {
+        return new ThreadCache();
+      }
+    };
+  }
+
+  @Override
+  public int getAllocatedSize() {
+    return allocatedBufferCount.get() * bufferLength;
+  }
+
+  @Override
+  public void trim(int targetSize) {
+    int targetBufferCount = (targetSize + bufferLength - 1) / bufferLength;
+    int targetRecycledBufferCount = Math.max(0, targetBufferCount - allocatedBufferCount.get());
+    int threadCachedCount = Math.max(0, threadCachedBufferCount.get());
+    if (threadCachedCount > targetRecycledBufferCount) {
+      // Trimming the depot can't reach the target, so the thread caches must be discarded too.
+      // Discarded caches are not counted, so the count restarts from zero. A thread that's using
+      // its cache whilst the generation changes may leave the count slightly out, until the next
+      // time that the thread caches are discarded.
+      threadCachedBufferCount.set(0);
+      trimGeneration++;
+      threadCachedCount = 0;
+    }
+    int targetMagazineCount =
+        (targetRecycledBufferCount - threadCachedCount) / MAGAZINE_CAPACITY;
+    while (depotMagazineCount.get() > targetMagazineCount && depot.poll() != null) {
+      depotMagazineCount.decrementAndGet();
+    }
+  }
+
+  @Override
+  public Allocation allocate(int size) {
+    int requiredBufferCount = requiredBufferCount(size);
+    allocatedBufferCount.addAndGet(requiredBufferCount);
+    ThreadCache cache = getThreadCache();
+    byte[][] buffers = new byte[requiredBufferCount][];
+    int cachedCountDelta = 0;
+    for (int i = 0; i < requiredBufferCount; i++) {
+      if (cache.size == 0) {
+        // Try and refill the cache with a magazine from the depot.
+        byte[][] magazine = depot.poll();
+        if (magazine != null) {
+          depotMagazineCount.decrementAndGet();
+          System.arraycopy(magazine, 0, cache.buffers, 0, MAGAZINE_CAPACITY);
+          cache.size = MAGAZINE_CAPACITY;
+          Arrays.fill(magazine, null);
+          cache.spareMagazine = magazine;
+          cachedCountDelta += MAGAZINE_CAPACITY;
+        }
+      }
+      // Use a recycled buffer if one is available. Else instantiate a new one.
+      if (cache.size > 0) {
+        buffers[i] = cache.buffers[--cache.size];
+        cache.buffers[cache.size] = null;
+        cachedCountDelta--;
+      } else {
+        buffers[i] = new byte[bufferLength];
+      }
+    }
+    if (cachedCountDelta != 0) {
+      threadCachedBufferCount.addAndGet(cachedCountDelta);
+    }
+    return new AllocationImpl(buffers);
+  }
+
+  /**
+   * Returns the buffers belonging to an allocation to the pool.
+   *
+   * @param allocation The allocation to return.
+   */
+  /* package */ void release(AllocationImpl allocation) {
+    byte[][] buffers = allocation.getBuffers();
+    ThreadCache cache = getThreadCache();
+    int cachedCountDelta = buffers.length;
+    for (int i = 0; i < buffers.length; i++) {
+      if (cache.size == cache.buffers.length) {
+        // Hand the most recently released half of the cache to the depot as a magazine.
+        byte[][] magazine = cache.spareMagazine != null ? cache.spareMagazine
+            : new byte[MAGAZINE_CAPACITY][];
+        cache.spareMagazine = null;
+        cache.size -= MAGAZINE_CAPACITY;
+        System.arraycopy(cache.buffers, cache.size, magazine, 0, MAGAZINE_CAPACITY);
+        Arrays.fill(cache.buffers, cache.size, cache.buffers.length, null);
+        depot.offer(magazine);
+        depotMagazineCount.incrementAndGet();
+        cachedCountDelta -= MAGAZINE_CAPACITY;
+      }
+      cache.buffers[cache.size++] = buffers[i];
+    }
+    threadCachedBufferCount.addAndGet(cachedCountDelta);
+    allocatedBufferCount.addAndGet(-buffers.length);
+  }
+
+  /**
+   * Returns the calling thread's cache, discarding its contents if the thread caches have been
+   * discarded by {@link #trim(int)} since the thread last used it.
+   */
+  private ThreadCache getThreadCache() {
+    ThreadCache cache = threadCaches.get();
+    int currentTrimGeneration = trimGeneration;
+    if (cache.trimGeneration != currentTrimGeneration) {
+      Arrays.fill(cache.buffers, 0, cache.size, null);
+      cache.size = 0;
+      cache.trimGeneration = currentTrimGeneration;
+    }
+    return cache;
+  }
+
+  private int requiredBufferCount(long size) {
+    return (int) ((size + bufferLength - 1) / bufferLength);
+  }
+
+  private static final class ThreadCache {
+
+    public final byte[][] buffers;
+
+    public int size;
+    public int trimGeneration;
+    public byte[][] spareMagazine;
+
+    public ThreadCache() {
+      buffers = new byte[2 * MAGAZINE_CAPACITY][];
+    }
+
+  }
+
+  private class AllocationImpl implements Allocation {
+
+    private byte[][] buffers;
+
+    public AllocationImpl(byte[][] buffers) {
+      this.buffers = buffers;
+    }
+
+    @Override
+    public byte[][] getBuffers() {
+      return buffers;
+    }
+
+    @Override
+    public ByteBuffer[] getByteBuffers() {
+      return null;
+    }
+
+    @Override
+    public int getFragmentOffset(int index) {
+      return 0;
+    }
+
+    @Override
+    public int getFragmentLength(int index) {
+      return bufferLength;
+    }
+
+    @Override
+    public void release() {
+      if (buffers != null) {
+        ConcurrentBufferPool.this.release(this);
+        buffers = null;
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+/**
+ * A {@link TransferListener} that's also notified of whether each transfer reused a kept-alive
+ * connection.
+ * <p>
+ * Only sources that obtain their connections from an {@link HttpConnectionPool}, such as an
+ * {@link HttpDataSource} constructed with a pool, notify listeners of it. Other sources treat an
+ * instance as a plain {@link TransferListener}.
+ */
+public interface ConnectionReuseListener extends TransferListener {
+
+  /**
+   * Invoked immediately before {@link #onTransferStart()}.
+   *
+   * @param reused Whether an idle kept-alive connection was reused for the transfer, as opposed to
+   *     a new connection being established.
+   */
+  void onConnectionAcquired(boolean reused);
+
+}
@@ -19,12 +19,19 @@ import com.google.android.exoplayer.upstream.Loader.Loadable;
 import com.google.android.exoplayer.util.Assertions;
 import com.google.android.exoplayer.util.Util;
 
+import android.os.SystemClock;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
 /**
  * Loads data from a {@link DataSource} into an in-memory {@link Allocation}. The loaded data
  * can be consumed by treating the instance as a non-blocking {@link NonBlockingInputStream}.
+ * <p>
+ * Both byte array and {@link ByteBuffer} backed allocations are supported (see
+ * {@link Allocation#getByteBuffers()}). In the latter case data read from the {@link DataSource}
+ * is staged through a small scratch array, and {@link #read(ByteBuffer, int)} copies directly
+ * between buffers.
  */
 public final class DataSourceStream implements Loadable, NonBlockingInputStream {
 
@@ -39,12 +46,16 @@ public final class DataSourceStream implements Loadable, NonBlockingInputStream
 
   }
 
+  private static final int SCRATCH_LENGTH = 16 * 1024;
+
   private final DataSource dataSource;
   private final DataSpec dataSpec;
   private final Allocator allocator;
   private final ReadHead readHead;
 
   private Allocation allocation;
+  private ByteBuffer[] readByteBuffers;
+  private byte[] scratch;
 
   private volatile boolean loadCanceled;
   private volatile long loadPosition;
@@ -54,6 +65,8 @@ public final class DataSourceStream implements Loadable, NonBlockingInputStream
   private int writeFragmentOffset;
   private int writeFragmentRemainingLength;
 
+  private volatile TransferTiming transferTiming;
+
   /**
    * @param dataSource The source from which the data should be loaded.
    * @param dataSpec Defines the data to be loaded. {@code dataSpec.length} must not exceed
@@ -106,6 +119,17 @@ public final class DataSourceStream implements Loadable, NonBlockingInputStream
     return resolvedLength != DataSpec.LENGTH_UNBOUNDED ? resolvedLength : dataSpec.length;
   }
 
+  /**
+   * Returns a breakdown of the timing of the most recent load attempt. The connection time is not
+   * measured, and the response headers time is the time at which the {@link DataSource} finished
+   * opening.
+   *
+   * @return The timing of the most recent load attempt, or null if no attempt has finished.
+   */
+  public TransferTiming getTransferTiming() {
+    return transferTiming;
+  }
+
   /**
    * Whether the stream has finished loading.
    *
@@ -152,6 +176,7 @@ public final class DataSourceStream implements Loadable, NonBlockingInputStream
     if (allocation != null) {
       allocation.release();
       allocation = null;
+      readByteBuffers = null;
     }
   }
 
@@ -192,7 +217,18 @@ public final class DataSourceStream implements Loadable, NonBlockingInputStream
     byte[][] buffers = allocation.getBuffers();
     while (bytesRead < bytesToRead) {
       int bufferReadLength = Math.min(readHead.fragmentRemaining, bytesToRead - bytesRead);
-      if (target != null) {
+      if (buffers == null && (target != null || targetArray != null)) {
+        ByteBuffer source = readByteBuffers[readHead.fragmentIndex];
+        source.clear();
+        source.position(readHead.fragmentOffset);
+        source.limit(readHead.fragmentOffset + bufferReadLength);
+        if (target != null) {
+          target.put(source);
+        } else {
+          source.get(targetArray, targetArrayOffset, bufferReadLength);
+          targetArrayOffset += bufferReadLength;
+        }
+      } else if (target != null) {
         target.put(buffers[readHead.fragmentIndex], readHead.fragmentOffset, bufferReadLength);
       } else if (targetArray != null) {
         System.arraycopy(buffers[readHead.fragmentIndex], readHead.fragmentOffset, targetArray,
@@ -231,8 +267,12 @@ public final class DataSourceStream implements Loadable, NonBlockingInputStream
       // The load was canceled, or is already complete.
       return;
     }
+    DataSpec loadDataSpec = null;
+    long requestStartTimeMs = SystemClock.elapsedRealtime();
+    long openedTimeMs = TransferTiming.UNKNOWN_TIME;
+    long firstByteTimeMs = TransferTiming.UNKNOWN_TIME;
+    long loadStartPosition = loadPosition;
     try {
-      DataSpec loadDataSpec;
       if (resolvedLength == DataSpec.LENGTH_UNBOUNDED) {
         loadDataSpec = dataSpec;
         resolvedLength = dataSource.open(loadDataSpec);
@@ -245,8 +285,18 @@ public final class DataSourceStream implements Loadable, NonBlockingInputStream
             resolvedLength - loadPosition, dataSpec.key);
         dataSource.open(loadDataSpec);
       }
+      openedTimeMs = SystemClock.elapsedRealtime();
       if (allocation == null) {
         allocation = allocator.allocate((int) resolvedLength);
+        ByteBuffer[] byteBuffers = allocation.getByteBuffers();
+        if (byteBuffers != null) {
+          // The read head uses duplicates, so that its position and limit manipulation is
+          // independent of that performed by the load.
+          readByteBuffers = new ByteBuffer[byteBuffers.length];
+          for (int i = 0; i < byteBuffers.length; i++) {
+            readByteBuffers[i] = byteBuffers[i].duplicate();
+          }
+        }
       }
       if (loadPosition == 0) {
         writeFragmentIndex = 0;
@@ -256,14 +306,23 @@ public final class DataSourceStream implements Loadable, NonBlockingInputStream
 
       int read = Integer.MAX_VALUE;
       byte[][] buffers = allocation.getBuffers();
+      ByteBuffer[] byteBuffers = allocation.getByteBuffers();
       while (!loadCanceled && loadPosition < resolvedLength && read > 0) {
         if (Thread.interrupted()) {
           throw new InterruptedException();
         }
         int writeLength = (int) Math.min(writeFragmentRemainingLength,
             resolvedLength - loadPosition);
-        read = dataSource.read(buffers[writeFragmentIndex], writeFragmentOffset, writeLength);
+        if (buffers != null) {
+          read = dataSource.read(buffers[writeFragmentIndex], writeFragmentOffset, writeLength);
+        } else {
+          read = readToByteBuffer(byteBuffers[writeFragmentIndex], writeFragmentOffset,
+              writeLength);
+        }
         if (read > 0) {
+          if (firstByteTimeMs == TransferTiming.UNKNOWN_TIME) {
+            firstByteTimeMs = SystemClock.elapsedRealtime();
+          }
           loadPosition += read;
           writeFragmentOffset += read;
           writeFragmentRemainingLength -= read;
@@ -279,7 +338,29 @@ public final class DataSourceStream implements Loadable, NonBlockingInputStream
       }
     } finally {
       Util.closeQuietly(dataSource);
+      if (openedTimeMs != TransferTiming.UNKNOWN_TIME) {
+        transferTiming = new TransferTiming(loadDataSpec, requestStartTimeMs,
+            TransferTiming.UNKNOWN_TIME, openedTimeMs, firstByteTimeMs,
+            SystemClock.elapsedRealtime(), loadPosition - loadStartPosition);
+      }
+    }
+  }
+
+  /**
+   * Reads from the {@link DataSource} into a {@link ByteBuffer} fragment, via {@link #scratch}.
+   */
+  private int readToByteBuffer(ByteBuffer target, int targetOffset, int readLength)
+      throws IOException {
+    if (scratch == null) {
+      scratch = new byte[SCRATCH_LENGTH];
+    }
+    int read = dataSource.read(scratch, 0, Math.min(readLength, scratch.length));
+    if (read > 0) {
+      target.clear();
+      target.position(targetOffset);
+      target.put(scratch, 0, read);
     }
+    return read;
   }
 
   private static class ReadHead {
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.SlidingPercentile;
+import com.google.android.exoplayer.util.Util;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A {@link DataSource} that races a second, identical request against the first if the first byte
+ * of the response is slow to arrive.
+ * <p>
+ * Each request is first made using one of two upstream {@link DataSource}s. If the first byte has
+ * not arrived within the hedge delay, the same request is made using the other upstream source.
+ * Whichever request delivers its first byte first is used to read the data, and the other is
+ * canceled. The hedge delay is a percentile of the times to first byte recorded in a
+ * {@link SlidingPercentile}, which may be shared between several sources. A time to first byte is
+ * recorded for each successful request, measured from the start of its first attempt to the arrival
+ * of the first byte from whichever attempt won. The primary attempt's own time to first byte is at
+ * least this long, so recording only the attempts that win would under-estimate the delays that
+ * hedging is there to cut short.
+ * <p>
+ * A request that fails before the hedge delay elapses is not retried, so errors are reported as
+ * promptly as they would be without hedging.
+ */
+public final class HedgingDataSource implements DataSource {
+
+  /**
+   * The default percentile of recent times to first byte after which a request is hedged.
+   */
+  public static final float DEFAULT_HEDGE_PERCENTILE = 0.95f;
+  /**
+   * The default hedge delay used when no times to first byte have been recorded, in milliseconds.
+   */
+  public static final int DEFAULT_INITIAL_HEDGE_DELAY_MS = 1000;
+
+  private static final int FIRST_READ_LENGTH = 4 * 1024;
+
+  /**
+   * Runs the background work of all instances, so that threads are reused across attempts.
+   */
+  private static final ExecutorService EXECUTOR = Util.newCachedThreadPool("HedgingDataSource");
+
+  private final Attempt[] attempts;
+  private final SlidingPercentile timeToFirstByteHistory;
+  private final float hedgePercentile;
+  private final int initialHedgeDelayMs;
+  private final Object lock;
+
+  private Attempt winner;
+  private int firstReadPosition;
+
+  /**
+   * @param primary The upstream {@link DataSource} used to make requests.
+   * @param secondary The upstream {@link DataSource} used to make hedged requests. The roles of
+   *     the two sources are swapped if one of them is busy being canceled.
+   * @param timeToFirstByteHistory Records the times to first byte of requests, in milliseconds.
+   */
+  public HedgingDataSource(DataSource primary, DataSource secondary,
+      SlidingPercentile timeToFirstByteHistory) {
+    this(primary, secondary, timeToFirstByteHistory, DEFAULT_HEDGE_PERCENTILE,
+        DEFAULT_INITIAL_HEDGE_DELAY_MS);
+  }
+
+  /**
+   * @param primary The upstream {@link DataSource} used to make requests.
+   * @param secondary The upstream {@link DataSource} used to make hedged requests. The roles of
+   *     the two sources are swapped if one of them is busy being canceled.
+   * @param timeToFirstByteHistory Records the times to first byte of requests, in milliseconds.
+   * @param hedgePercentile The percentile of recorded times to first byte after which a request is
+   *     hedged.
+   * @param initialHedgeDelayMs The hedge delay to use if no times to first byte have been
+   *     recorded, in milliseconds.
+   */
+  public HedgingDataSource(DataSource primary, DataSource secondary,
+      SlidingPercentile timeToFirstByteHistory, float hedgePercentile, int initialHedgeDelayMs) {
+    Assertions.checkArgument(hedgePercentile > 0 && hedgePercentile <= 1);
+    this.attempts = new Attempt[] {new Attempt(primary), new Attempt(secondary)};
+    this.timeToFirstByteHistory = Assertions.checkNotNull(timeToFirstByteHistory);
+    this.hedgePercentile = hedgePercentile;
+    this.initialHedgeDelayMs = initialHedgeDelayMs;
+    this.lock = new Object();
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    Assertions.checkState(winner == null);
+    firstReadPosition = 0;
+    long hedgeDelayMs = getHedgeDelayMs();
+    Attempt primary = null;
+    Attempt hedge = null;
+    long timeToFirstByteMs;
+    try {
+      synchronized (lock) {
+        // Wait for an upstream source to become available, in case both are still being canceled.
+        while (attempts[0].inUse && attempts[1].inUse) {
+          lock.wait();
+        }
+        primary = attempts[0].inUse ? attempts[1] : attempts[0];
+        Attempt other = primary == attempts[0] ? attempts[1] : attempts[0];
+        primary.start(dataSpec);
+        long hedgeTimeMs = SystemClock.elapsedRealtime() + hedgeDelayMs;
+        while (winner == null) {
+          if (primary.hasSucceeded()) {
+            winner = primary;
+          } else if (hedge != null && hedge.hasSucceeded()) {
+            winner = hedge;
+          } else if (primary.finished && (hedge == null || hedge.finished)) {
+            throw primary.error;
+          } else if (hedge == null && !primary.finished) {
+            long nowMs = SystemClock.elapsedRealtime();
+            if (nowMs >= hedgeTimeMs && !other.inUse) {
+              hedge = other;
+              hedge.start(dataSpec);
+            } else {
+              lock.wait(other.inUse ? 0 : hedgeTimeMs - nowMs);
+            }
+          } else {
+            lock.wait();
+          }
+        }
+        timeToFirstByteMs = winner.finishTimeMs - primary.startTimeMs;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } finally {
+      if (primary != null && primary != winner) {
+        primary.cancel();
+      }
+      if (hedge != null && hedge != winner) {
+        hedge.cancel();
+      }
+    }
+    synchronized (timeToFirstByteHistory) {
+      timeToFirstByteHistory.addSample(1, timeToFirstByteMs);
+    }
+    return dataSpec.length == DataSpec.LENGTH_UNBOUNDED ? winner.resolvedLength : dataSpec.length;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws IOException {
+    if (winner.firstReadLength == -1) {
+      return -1;
+    } else if (firstReadPosition < winner.firstReadLength) {
+      int read = Math.min(readLength, winner.firstReadLength - firstReadPosition);
+      System.arraycopy(winner.firstReadBuffer, firstReadPosition, buffer, offset, read);
+      firstReadPosition += read;
+      return read;
+    }
+    return winner.dataSource.read(buffer, offset, readLength);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (winner != null) {
+      Attempt attempt = winner;
+      winner = null;
+      try {
+        attempt.dataSource.close();
+      } finally {
+        synchronized (lock) {
+          attempt.inUse = false;
+          lock.notifyAll();
+        }
+      }
+    }
+  }
+
+  private long getHedgeDelayMs() {
+    float percentile;
+    synchronized (timeToFirstByteHistory) {
+      percentile = timeToFirstByteHistory.getPercentile(hedgePercentile);
+    }
+    return Float.isNaN(percentile) ? initialHedgeDelayMs : (long) percentile;
+  }
+
+  /**
+   * Opens an upstream source and reads the first bytes of the response on a background thread.
+   * <p>
+   * All fields other than the first read buffer are guarded by {@link HedgingDataSource#lock}.
+   */
+  private final class Attempt implements Runnable {
+
+    public final DataSource dataSource;
+    public final byte[] firstReadBuffer;
+
+    public boolean inUse;
+    public boolean finished;
+    public boolean canceled;
+    public IOException error;
+    public long resolvedLength;
+    public int firstReadLength;
+    public long startTimeMs;
+    public long finishTimeMs;
+
+    private DataSpec dataSpec;
+    private Thread thread;
+
+    public Attempt(DataSource dataSource) {
+      this.dataSource = dataSource;
+      this.firstReadBuffer = new byte[FIRST_READ_LENGTH];
+    }
+
+    /**
+     * Starts the attempt. Must be called whilst holding the lock.
+     */
+    public void start(DataSpec dataSpec) {
+      this.dataSpec = dataSpec;
+      inUse = true;
+      finished = false;
+      canceled = false;
+      error = null;
+      startTimeMs = SystemClock.elapsedRealtime();
+      EXECUTOR.execute(this);
+    }
+
+    /**
+     * Whether the first bytes of the response have been read. Must be called whilst holding the
+     * lock.
+     */
+    public boolean hasSucceeded() {
+      return finished && error == null;
+    }
+
+    /**
+     * Cancels the attempt, closing the upstream source once it is no longer being used.
+     */
+    public void cancel() {
+      synchronized (lock) {
+        canceled = true;
+        if (!finished) {
+          // The background task will close the source. It may not have started running yet.
+          if (thread != null) {
+            thread.interrupt();
+          }
+          return;
+        } else if (!inUse || error != null) {
+          // The source is already closed, or is being closed by the background thread.
+          return;
+        }
+      }
+      closeAndRelease();
+    }
+
+    @Override
+    public void run() {
+      long length = DataSpec.LENGTH_UNBOUNDED;
+      int read = 0;
+      IOException openError = null;
+      try {
+        synchronized (lock) {
+          thread = Thread.currentThread();
+          if (canceled) {
+            // Canceled before the task started running.
+            throw new InterruptedIOException();
+          }
+        }
+        length = dataSource.open(dataSpec);
+        read = dataSource.read(firstReadBuffer, 0, FIRST_READ_LENGTH);
+      } catch (IOException e) {
+        openError = e;
+      }
+      boolean close;
+      synchronized (lock) {
+        if (openError == null) {
+          resolvedLength = length;
+          firstReadLength = read;
+        }
+        error = openError;
+        finishTimeMs = SystemClock.elapsedRealtime();
+        finished = true;
+        thread = null;
+        Thread.interrupted();
+        close = canceled || error != null;
+        lock.notifyAll();
+      }
+      if (close) {
+        closeAndRelease();
+      }
+    }
+
+    private void closeAndRelease() {
+      Util.closeQuietly(dataSource);
+      synchronized (lock) {
+        inUse = false;
+        lock.notifyAll();
+      }
+    }
+
+  }
+
+}
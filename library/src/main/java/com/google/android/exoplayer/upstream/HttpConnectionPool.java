@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.Clock;
+import com.google.android.exoplayer.util.SystemClock;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Manages the keep-alive connections of one or more {@link HttpDataSource}s, on a per-host basis.
+ * <p>
+ * A source using the pool acquires a connection slot for the host before connecting, and blocks
+ * whilst the maximum number of connections to the host are already in use. When the source is
+ * closed having consumed the whole response, the connection is not disconnected, which allows the
+ * platform's {@link java.net.HttpURLConnection} implementation to return the underlying socket
+ * (and any TLS session) to its keep-alive cache for the next request to the same host.
+ * <p>
+ * The sockets themselves are owned by the platform, so the pool tracks the connections that it has
+ * left alive. A kept-alive connection that has been idle for longer than the idle timeout is
+ * evicted, and is no longer counted as reusable. The idle timeout should therefore not exceed the
+ * platform's keep-alive duration, which is five minutes by default. A request made whilst a
+ * reusable connection to its host exists is counted as reusing it, and other requests are counted
+ * as new connections.
+ */
+public final class HttpConnectionPool {
+
+  /**
+   * The default maximum number of connections to each host.
+   */
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+  /**
+   * The default idle timeout, in milliseconds.
+   */
+  public static final long DEFAULT_IDLE_TIMEOUT_MS = 60 * 1000;
+  /**
+   * The default maximum time to wait for a connection slot, in milliseconds.
+   */
+  public static final long DEFAULT_ACQUIRE_TIMEOUT_MS = 8 * 1000;
+
+  private final int maxConnectionsPerHost;
+  private final long idleTimeoutMs;
+  private final long acquireTimeoutMs;
+  private final Clock clock;
+  private final HashMap<String, HostConnections> hosts;
+
+  private int newConnectionCount;
+  private int reusedConnectionCount;
+
+  public HttpConnectionPool() {
+    this(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+  }
+
+  /**
+   * @param maxConnectionsPerHost The maximum number of connections to each host.
+   */
+  public HttpConnectionPool(int maxConnectionsPerHost) {
+    this(maxConnectionsPerHost, DEFAULT_IDLE_TIMEOUT_MS, DEFAULT_ACQUIRE_TIMEOUT_MS);
+  }
+
+  /**
+   * @param maxConnectionsPerHost The maximum number of connections to each host.
+   * @param idleTimeoutMs The time for which an idle connection is kept alive, in milliseconds.
+   * @param acquireTimeoutMs The maximum time to wait for a connection slot, in milliseconds.
+   */
+  public HttpConnectionPool(int maxConnectionsPerHost, long idleTimeoutMs,
+      long acquireTimeoutMs) {
+    this(maxConnectionsPerHost, idleTimeoutMs, acquireTimeoutMs, new SystemClock());
+  }
+
+  /**
+   * @param maxConnectionsPerHost The maximum number of connections to each host.
+   * @param idleTimeoutMs The time for which an idle connection is kept alive, in milliseconds.
+   * @param acquireTimeoutMs The maximum time to wait for a connection slot, in milliseconds.
+   * @param clock The {@link Clock} used to measure idle time.
+   */
+  public HttpConnectionPool(int maxConnectionsPerHost, long idleTimeoutMs, long acquireTimeoutMs,
+      Clock clock) {
+    Assertions.checkArgument(maxConnectionsPerHost > 0);
+    Assertions.checkArgument(idleTimeoutMs >= 0);
+    Assertions.checkArgument(acquireTimeoutMs > 0);
+    this.maxConnectionsPerHost = maxConnectionsPerHost;
+    this.idleTimeoutMs = idleTimeoutMs;
+    this.acquireTimeoutMs = acquireTimeoutMs;
+    this.clock = Assertions.checkNotNull(clock);
+    hosts = new HashMap<String, HostConnections>();
+  }
+
+  /**
+   * Acquires a connection slot for a host, blocking whilst the maximum number of connections to
+   * the host are in use.
+   *
+   * @param host The host, including the scheme and port.
+   * @return Whether an idle kept-alive connection to the host is reused, as opposed to a new
+   *     connection being established.
+   * @throws InterruptedIOException If the thread is interrupted whilst blocked.
+   * @throws IOException If no connection slot becomes available within the acquire timeout.
+   */
+  public synchronized boolean acquire(String host) throws IOException {
+    HostConnections connections = hosts.get(host);
+    if (connections == null) {
+      connections = new HostConnections();
+      hosts.put(host, connections);
+    }
+    long timeoutMs = clock.elapsedRealtime() + acquireTimeoutMs;
+    while (connections.activeCount == maxConnectionsPerHost) {
+      long waitMs = timeoutMs - clock.elapsedRealtime();
+      if (waitMs <= 0) {
+        throw new IOException("Timed out waiting for a connection to " + host);
+      }
+      try {
+        wait(waitMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+    connections.activeCount++;
+    evictIdleConnections(connections);
+    if (connections.idleSinceMs.isEmpty()) {
+      newConnectionCount++;
+      return false;
+    }
+    // The platform reuses the most recently used socket, which is the least likely to have been
+    // closed by the server.
+    connections.idleSinceMs.removeLast();
+    reusedConnectionCount++;
+    return true;
+  }
+
+  /**
+   * Releases a connection slot acquired by {@link #acquire(String)}.
+   *
+   * @param host The host, including the scheme and port.
+   * @param keptAlive Whether the connection was kept alive, and may therefore be reused.
+   */
+  public synchronized void release(String host, boolean keptAlive) {
+    HostConnections connections = hosts.get(host);
+    Assertions.checkState(connections != null && connections.activeCount > 0);
+    connections.activeCount--;
+    if (keptAlive) {
+      connections.idleSinceMs.addLast(clock.elapsedRealtime());
+    }
+    evictIdleConnections(connections);
+    if (connections.activeCount == 0 && connections.idleSinceMs.isEmpty()) {
+      hosts.remove(host);
+    }
+    notifyAll();
+  }
+
+  /**
+   * Returns the number of connection slots for a host that are currently acquired.
+   *
+   * @param host The host, including the scheme and port.
+   * @return The number of acquired connection slots.
+   */
+  public synchronized int getActiveCount(String host) {
+    HostConnections connections = hosts.get(host);
+    return connections == null ? 0 : connections.activeCount;
+  }
+
+  /**
+   * Returns the number of connections that have been newly established.
+   *
+   * @return The number of new connections.
+   */
+  public synchronized int getNewConnectionCount() {
+    return newConnectionCount;
+  }
+
+  /**
+   * Returns the number of connections that have been reused.
+   *
+   * @return The number of reused connections.
+   */
+  public synchronized int getReusedConnectionCount() {
+    return reusedConnectionCount;
+  }
+
+  private void evictIdleConnections(HostConnections connections) {
+    long nowMs = clock.elapsedRealtime();
+    while (!connections.idleSinceMs.isEmpty()
+        && (nowMs - connections.idleSinceMs.getFirst() > idleTimeoutMs
+        || connections.idleSinceMs.size() + connections.activeCount > maxConnectionsPerHost)) {
+      connections.idleSinceMs.removeFirst();
+    }
+  }
+
+  private static final class HostConnections {
+
+    public final ArrayDeque<Long> idleSinceMs;
+
+    public int activeCount;
+
+    public HostConnections() {
+      idleSinceMs = new ArrayDeque<Long>();
+    }
+
+  }
+
+}
@@ -19,6 +19,7 @@ import com.google.android.exoplayer.util.Assertions;
 import com.google.android.exoplayer.util.Predicate;
 import com.google.android.exoplayer.util.Util;
 
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -135,8 +136,11 @@ public class HttpDataSource implements DataSource {
   private final Predicate<String> contentTypePredicate;
   private final HashMap<String, String> requestProperties;
   private final TransferListener listener;
+  private final HttpConnectionPool connectionPool;
 
   private DataSpec dataSpec;
+  private String connectionPoolHost;
+  private boolean connectionReused;
   private HttpURLConnection connection;
   private InputStream inputStream;
   private boolean opened;
@@ -144,6 +148,11 @@ public class HttpDataSource implements DataSource {
   private long dataLength;
   private long bytesRead;
 
+  private long requestStartTimeMs;
+  private long connectTimeMs;
+  private long responseHeadersTimeMs;
+  private long firstByteTimeMs;
+
   /**
    * @param userAgent The User-Agent string that should be used.
    * @param contentTypePredicate An optional {@link Predicate}. If a content type is
@@ -180,12 +189,32 @@ public class HttpDataSource implements DataSource {
    */
   public HttpDataSource(String userAgent, Predicate<String> contentTypePredicate,
       TransferListener listener, int connectTimeoutMillis, int readTimeoutMillis) {
+    this(userAgent, contentTypePredicate, listener, connectTimeoutMillis, readTimeoutMillis, null);
+  }
+
+  /**
+   * @param userAgent The User-Agent string that should be used.
+   * @param contentTypePredicate An optional {@link Predicate}. If a content type is
+   *     rejected by the predicate then a {@link InvalidContentTypeException} is thrown from
+   *     {@link #open(DataSpec)}.
+   * @param listener An optional listener.
+   * @param connectTimeoutMillis The connection timeout, in milliseconds. A timeout of zero is
+   *     interpreted as an infinite timeout.
+   * @param readTimeoutMillis The read timeout, in milliseconds. A timeout of zero is interpreted
+   *     as an infinite timeout.
+   * @param connectionPool An optional {@link HttpConnectionPool}. If null, the connection is
+   *     disconnected each time the source is closed.
+   */
+  public HttpDataSource(String userAgent, Predicate<String> contentTypePredicate,
+      TransferListener listener, int connectTimeoutMillis, int readTimeoutMillis,
+      HttpConnectionPool connectionPool) {
     this.userAgent = Assertions.checkNotEmpty(userAgent);
     this.contentTypePredicate = contentTypePredicate;
     this.listener = listener;
     this.requestProperties = new HashMap<String, String>();
     this.connectTimeoutMillis = connectTimeoutMillis;
     this.readTimeoutMillis = readTimeoutMillis;
+    this.connectionPool = connectionPool;
   }
 
   /**
@@ -229,9 +258,14 @@ public class HttpDataSource implements DataSource {
   public long open(DataSpec dataSpec) throws HttpDataSourceException {
     this.dataSpec = dataSpec;
     this.bytesRead = 0;
+    requestStartTimeMs = SystemClock.elapsedRealtime();
+    connectTimeMs = TransferTiming.UNKNOWN_TIME;
+    responseHeadersTimeMs = TransferTiming.UNKNOWN_TIME;
+    firstByteTimeMs = TransferTiming.UNKNOWN_TIME;
     try {
       connection = makeConnection(dataSpec);
     } catch (IOException e) {
+      closeConnection();
       throw new HttpDataSourceException("Unable to connect to " + dataSpec.uri.toString(), e,
           dataSpec);
     }
@@ -240,7 +274,9 @@ public class HttpDataSource implements DataSource {
     int responseCode;
     try {
       responseCode = connection.getResponseCode();
+      responseHeadersTimeMs = SystemClock.elapsedRealtime();
     } catch (IOException e) {
+      closeConnection();
       throw new HttpDataSourceException("Unable to connect to " + dataSpec.uri.toString(), e,
           dataSpec);
     }
@@ -262,6 +298,7 @@ public class HttpDataSource implements DataSource {
     if (dataLength == DataSpec.LENGTH_UNBOUNDED) {
       // The DataSpec specified unbounded length and we failed to resolve a length from the
       // response headers.
+      closeConnection();
       throw new HttpDataSourceException(
           new UnexpectedLengthException(DataSpec.LENGTH_UNBOUNDED, DataSpec.LENGTH_UNBOUNDED),
           dataSpec);
@@ -285,6 +322,9 @@ public class HttpDataSource implements DataSource {
 
     opened = true;
     if (listener != null) {
+      if (connectionPoolHost != null && listener instanceof ConnectionReuseListener) {
+        ((ConnectionReuseListener) listener).onConnectionAcquired(connectionReused);
+      }
       listener.onTransferStart();
     }
 
@@ -301,6 +341,9 @@ public class HttpDataSource implements DataSource {
     }
 
     if (read > 0) {
+      if (bytesRead == 0) {
+        firstByteTimeMs = SystemClock.elapsedRealtime();
+      }
       bytesRead += read;
       if (listener != null) {
         listener.onBytesTransferred(read);
@@ -317,11 +360,15 @@ public class HttpDataSource implements DataSource {
 
   @Override
   public void close() throws HttpDataSourceException {
+    // The connection can only be kept alive if the whole response has been consumed.
+    boolean keepAlive = connectionPoolHost != null && inputStream != null && bytesRead == dataLength
+        && !"close".equalsIgnoreCase(connection.getHeaderField("Connection"));
     try {
       if (inputStream != null) {
         try {
           inputStream.close();
         } catch (IOException e) {
+          keepAlive = false;
           throw new HttpDataSourceException(e, dataSpec);
         }
         inputStream = null;
@@ -331,17 +378,32 @@ public class HttpDataSource implements DataSource {
         opened = false;
         if (listener != null) {
           listener.onTransferEnd();
+          if (listener instanceof TransferTimingListener) {
+            ((TransferTimingListener) listener).onTransferTiming(new TransferTiming(dataSpec,
+                requestStartTimeMs, connectTimeMs, responseHeadersTimeMs, firstByteTimeMs,
+                SystemClock.elapsedRealtime(), bytesRead));
+          }
         }
-        closeConnection();
       }
+      closeConnection(keepAlive);
     }
   }
 
   private void closeConnection() {
+    closeConnection(false);
+  }
+
+  private void closeConnection(boolean keepAlive) {
     if (connection != null) {
-      connection.disconnect();
+      if (!keepAlive) {
+        connection.disconnect();
+      }
       connection = null;
     }
+    if (connectionPoolHost != null) {
+      connectionPool.release(connectionPoolHost, keepAlive);
+      connectionPoolHost = null;
+    }
   }
 
   /**
@@ -376,6 +438,11 @@ public class HttpDataSource implements DataSource {
 
   private HttpURLConnection makeConnection(DataSpec dataSpec) throws IOException {
     URL url = new URL(dataSpec.uri.toString());
+    if (connectionPool != null) {
+      String host = url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+      connectionReused = connectionPool.acquire(host);
+      connectionPoolHost = host;
+    }
     HttpURLConnection connection = (HttpURLConnection) url.openConnection();
     connection.setConnectTimeout(connectTimeoutMillis);
     connection.setReadTimeout(readTimeoutMillis);
@@ -389,6 +456,7 @@ public class HttpDataSource implements DataSource {
     connection.setRequestProperty("User-Agent", userAgent);
     connection.setRequestProperty("Range", buildRangeHeader(dataSpec));
     connection.connect();
+    connectTimeMs = SystemClock.elapsedRealtime();
     return connection;
   }
 
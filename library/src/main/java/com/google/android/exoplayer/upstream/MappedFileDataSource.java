@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.upstream.FileDataSource.FileDataSourceException;
+import com.google.android.exoplayer.util.Assertions;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A local file {@link DataSource} that reads from memory mapped regions of the file.
+ * <p>
+ * Files are mapped in fixed size regions, which are retained in a bounded cache so that they
+ * can be reused if the same file is opened again, for example when seeking. The cache holds regions
+ * of any number of files, so regions are also reused when the source alternates between files, as
+ * it does when reading the span files of a
+ * {@link com.google.android.exoplayer.upstream.cache.CacheDataSource}. Reads are served by copying
+ * directly from the mapped regions, and so do not require a system call. A read may return fewer
+ * bytes than requested if it reaches the end of a region.
+ * <p>
+ * Regions are unmapped when they are garbage collected, which may be some time after they are
+ * evicted from the cache. Regions of a file whose length or modification time has changed are
+ * never reused, and are evicted as other regions are mapped.
+ */
+public final class MappedFileDataSource implements DataSource {
+
+  /**
+   * The default size of each mapped region, in bytes.
+   */
+  public static final int DEFAULT_REGION_SIZE = 4 * 1024 * 1024;
+  /**
+   * The default maximum number of mapped regions to retain.
+   */
+  public static final int DEFAULT_MAX_MAPPED_REGIONS = 4;
+
+  private final int regionSize;
+  private final Map<RegionKey, MappedByteBuffer> regions;
+
+  private String path;
+  private long fileLength;
+  private long fileLastModified;
+  private long position;
+  private long bytesRemaining;
+  private long currentRegionIndex;
+  private ByteBuffer currentRegion;
+
+  public MappedFileDataSource() {
+    this(DEFAULT_REGION_SIZE, DEFAULT_MAX_MAPPED_REGIONS);
+  }
+
+  /**
+   * @param regionSize The size of each mapped region, in bytes.
+   * @param maxMappedRegions The maximum number of mapped regions to retain.
+   */
+  public MappedFileDataSource(int regionSize, final int maxMappedRegions) {
+    Assertions.checkArgument(regionSize > 0);
+    Assertions.checkArgument(maxMappedRegions > 0);
+    this.regionSize = regionSize;
+    this.regions = new LinkedHashMap<RegionKey, MappedByteBuffer>(maxMappedRegions + 1, 1, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<RegionKey, MappedByteBuffer> eldest) {
+        return size() > maxMappedRegions;
+      }
+    };
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws FileDataSourceException {
+    String path = dataSpec.uri.getPath();
+    File file = new File(path);
+    long fileLength = file.length();
+    long fileLastModified = file.lastModified();
+    if (!file.isFile()) {
+      throw new FileDataSourceException(new FileNotFoundException(path));
+    }
+    this.path = path;
+    this.fileLength = fileLength;
+    this.fileLastModified = fileLastModified;
+    position = dataSpec.position;
+    bytesRemaining = dataSpec.length == DataSpec.LENGTH_UNBOUNDED
+        ? fileLength - dataSpec.position
+        : dataSpec.length;
+    if (bytesRemaining < 0 || position + bytesRemaining > fileLength) {
+      throw new FileDataSourceException(new IOException("Invalid range: " + dataSpec));
+    }
+    currentRegion = null;
+    return bytesRemaining;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws FileDataSourceException {
+    if (bytesRemaining == 0) {
+      return -1;
+    }
+    ByteBuffer region = getRegionForPosition();
+    int bytesRead = (int) Math.min(Math.min(bytesRemaining, readLength), region.remaining());
+    region.get(buffer, offset, bytesRead);
+    position += bytesRead;
+    bytesRemaining -= bytesRead;
+    return bytesRead;
+  }
+
+  /**
+   * Reads up to {@code target.remaining()} bytes directly into a {@link ByteBuffer}, avoiding an
+   * intermediate copy into a byte array.
+   *
+   * @param target The buffer into which the read data should be stored.
+   * @return The number of bytes read, or -1 if the end of the requested data has been reached.
+   * @throws FileDataSourceException If an error occurs mapping the file.
+   */
+  public int read(ByteBuffer target) throws FileDataSourceException {
+    if (bytesRemaining == 0) {
+      return -1;
+    }
+    ByteBuffer region = getRegionForPosition();
+    int bytesRead = (int) Math.min(Math.min(bytesRemaining, target.remaining()),
+        region.remaining());
+    int regionLimit = region.limit();
+    region.limit(region.position() + bytesRead);
+    target.put(region);
+    region.limit(regionLimit);
+    position += bytesRead;
+    bytesRemaining -= bytesRead;
+    return bytesRead;
+  }
+
+  @Override
+  public void close() {
+    // The mapped regions are retained for reuse, and do not hold the file open.
+    currentRegion = null;
+  }
+
+  /**
+   * Returns a view of the region that contains the current read position, positioned at it.
+   */
+  private ByteBuffer getRegionForPosition() throws FileDataSourceException {
+    long regionIndex = position / regionSize;
+    if (currentRegion == null || regionIndex != currentRegionIndex) {
+      currentRegion = getRegion(regionIndex).duplicate();
+      currentRegionIndex = regionIndex;
+    }
+    currentRegion.position((int) (position - regionIndex * regionSize));
+    return currentRegion;
+  }
+
+  private MappedByteBuffer getRegion(long regionIndex) throws FileDataSourceException {
+    RegionKey key = new RegionKey(path, fileLength, fileLastModified, regionIndex);
+    MappedByteBuffer region = regions.get(key);
+    if (region == null) {
+      long regionPosition = regionIndex * regionSize;
+      long regionLength = Math.min(regionSize, fileLength - regionPosition);
+      RandomAccessFile file = null;
+      try {
+        file = new RandomAccessFile(path, "r");
+        region = file.getChannel().map(FileChannel.MapMode.READ_ONLY, regionPosition,
+            regionLength);
+      } catch (IOException e) {
+        throw new FileDataSourceException(e);
+      } finally {
+        if (file != null) {
+          try {
+            // The mapping remains valid after the file is closed.
+            file.close();
+          } catch (IOException e) {
+            // Ignore.
+          }
+        }
+      }
+      regions.put(key, region);
+    }
+    return region;
+  }
+
+  /**
+   * Identifies a region of a version of a file.
+   */
+  private static final class RegionKey {
+
+    private final String path;
+    private final long fileLength;
+    private final long fileLastModified;
+    private final long regionIndex;
+
+    public RegionKey(String path, long fileLength, long fileLastModified, long regionIndex) {
+      this.path = path;
+      this.fileLength = fileLength;
+      this.fileLastModified = fileLastModified;
+      this.regionIndex = regionIndex;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof RegionKey)) {
+        return false;
+      }
+      RegionKey other = (RegionKey) obj;
+      return regionIndex == other.regionIndex && fileLength == other.fileLength
+          && fileLastModified == other.fileLastModified && path.equals(other.path);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = path.hashCode();
+      result = 31 * result + (int) (fileLength ^ (fileLength >>> 32));
+      result = 31 * result + (int) (fileLastModified ^ (fileLastModified >>> 32));
+      result = 31 * result + (int) (regionIndex ^ (regionIndex >>> 32));
+      return result;
+    }
+
+  }
+
+}
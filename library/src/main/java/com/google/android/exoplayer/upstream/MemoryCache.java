@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A bounded in-memory cache of byte arrays, with least recently used eviction.
+ * <p>
+ * Instances are thread safe, and may be shared between {@link MemoryCacheDataSource}s.
+ */
+public final class MemoryCache {
+
+  private final long maxBytes;
+  private final LinkedHashMap<String, byte[]> entries;
+
+  private long cachedBytes;
+  private int hitCount;
+  private int missCount;
+
+  /**
+   * @param maxBytes The maximum total length of the cached byte arrays.
+   */
+  public MemoryCache(long maxBytes) {
+    Assertions.checkArgument(maxBytes > 0);
+    this.maxBytes = maxBytes;
+    entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+  }
+
+  /**
+   * Gets the data cached for a key, and records a hit or a miss.
+   *
+   * @param key The key.
+   * @return The cached data, or null if the key is not cached. The returned array must not be
+   *     modified.
+   */
+  public synchronized byte[] get(String key) {
+    byte[] data = entries.get(key);
+    if (data != null) {
+      hitCount++;
+    } else {
+      missCount++;
+    }
+    return data;
+  }
+
+  /**
+   * Caches data for a key, evicting the least recently used entries as necessary. Data longer than
+   * the maximum size of the cache is not cached.
+   *
+   * @param key The key.
+   * @param data The data. The array must not be modified after it's been cached.
+   */
+  public synchronized void put(String key, byte[] data) {
+    if (data.length > maxBytes) {
+      return;
+    }
+    byte[] previousData = entries.put(key, data);
+    if (previousData != null) {
+      cachedBytes -= previousData.length;
+    }
+    cachedBytes += data.length;
+    Iterator<byte[]> iterator = entries.values().iterator();
+    while (cachedBytes > maxBytes) {
+      cachedBytes -= iterator.next().length;
+      iterator.remove();
+    }
+  }
+
+  /**
+   * Removes all entries from the cache.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    cachedBytes = 0;
+  }
+
+  /**
+   * @return The total length of the cached byte arrays.
+   */
+  public synchronized long getCachedBytes() {
+    return cachedBytes;
+  }
+
+  /**
+   * @return The number of calls to {@link #get(String)} that found cached data.
+   */
+  public synchronized int getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * @return The number of calls to {@link #get(String)} that did not find cached data.
+   */
+  public synchronized int getMissCount() {
+    return missCount;
+  }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+
+import java.io.IOException;
+
+/**
+ * A {@link DataSource} that caches small requests in a {@link MemoryCache}.
+ * <p>
+ * Bounded requests whose length does not exceed a specified maximum are cached, keyed by the key
+ * (or the uri, if no key is set), position and length of the request. Other requests are passed
+ * through to the upstream source. By choosing a maximum that's larger than typical initialization
+ * and index requests, but smaller than typical media chunks, the cache can be used to avoid
+ * refetching initialization and index data when a player is rebuilt for the same content. A
+ * {@link DataSource} for a {@link com.google.android.exoplayer.upstream.cache.Cache} or the network
+ * can be used as the upstream source.
+ */
+public final class MemoryCacheDataSource implements DataSource {
+
+  private final DataSource upstream;
+  private final MemoryCache cache;
+  private final long maxCacheableLength;
+
+  private String cacheKey;
+  private byte[] data;
+  private int dataPosition;
+  private boolean upstreamOpened;
+
+  /**
+   * @param upstream The upstream {@link DataSource}.
+   * @param cache The cache, which may be shared with other instances.
+   * @param maxCacheableLength The maximum length of a request that will be cached.
+   */
+  public MemoryCacheDataSource(DataSource upstream, MemoryCache cache, long maxCacheableLength) {
+    Assertions.checkArgument(maxCacheableLength > 0 && maxCacheableLength <= Integer.MAX_VALUE);
+    this.upstream = Assertions.checkNotNull(upstream);
+    this.cache = Assertions.checkNotNull(cache);
+    this.maxCacheableLength = maxCacheableLength;
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    dataPosition = 0;
+    if (dataSpec.length == DataSpec.LENGTH_UNBOUNDED || dataSpec.length > maxCacheableLength) {
+      cacheKey = null;
+      data = null;
+    } else {
+      cacheKey = (dataSpec.key != null ? dataSpec.key : dataSpec.uri.toString()) + ":"
+          + dataSpec.absoluteStreamPosition + ":" + dataSpec.length;
+      data = cache.get(cacheKey);
+      if (data != null) {
+        // The data will be read from the cache.
+        cacheKey = null;
+        return data.length;
+      }
+      // The data will be read from upstream, and copied into a new array to be cached.
+      data = new byte[(int) dataSpec.length];
+    }
+    upstreamOpened = true;
+    return upstream.open(dataSpec);
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws IOException {
+    if (!upstreamOpened) {
+      if (dataPosition == data.length) {
+        return -1;
+      }
+      int read = Math.min(readLength, data.length - dataPosition);
+      System.arraycopy(data, dataPosition, buffer, offset, read);
+      dataPosition += read;
+      return read;
+    }
+    int read = upstream.read(buffer, offset, readLength);
+    if (cacheKey != null && read > 0) {
+      if (dataPosition + read > data.length) {
+        // The upstream source returned more data than requested. Don't cache it.
+        cacheKey = null;
+      } else {
+        System.arraycopy(buffer, offset, data, dataPosition, read);
+        dataPosition += read;
+        if (dataPosition == data.length) {
+          cache.put(cacheKey, data);
+          cacheKey = null;
+        }
+      }
+    }
+    return read;
+  }
+
+  @Override
+  public void close() throws IOException {
+    cacheKey = null;
+    data = null;
+    if (upstreamOpened) {
+      upstreamOpened = false;
+      upstream.close();
+    }
+  }
+
+}
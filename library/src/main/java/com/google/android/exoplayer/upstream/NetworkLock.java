@@ -28,6 +28,9 @@ import java.util.PriorityQueue;
  * highest) priority task.
  * <p>
  * Note that lower integer values correspond to higher priorities.
+ * <p>
+ * See {@link NetworkScheduler} for a mechanism that shares bandwidth between classes of task,
+ * rather than allowing only the highest priority tasks to proceed.
  */
 public final class NetworkLock {
 
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shares network bandwidth between classes of traffic in proportion to their weights.
+ * <p>
+ * Each class has a token bucket that is refilled as bytes are transferred by any active class. A
+ * transfer of {@code n} bytes by any class adds a share of {@code n} tokens to the bucket of every
+ * active class in proportion to its weight, and removes {@code n} tokens from the bucket of the
+ * class that made the transfer. A class may proceed whilst its bucket holds tokens, or if no other
+ * active class holds more tokens than it does. The scheduler is therefore work-conserving. When
+ * only one class is active it proceeds unhindered, and when several classes are active a class
+ * that has used more than its share waits for the others to catch up.
+ * <p>
+ * A class is active whilst it has reads that are in progress or waiting to proceed, and for a
+ * short grace period after its last read ends, so that the brief gaps between consecutive reads do
+ * not forfeit its share. A class that stops reading, for example because its consumer's buffer is
+ * full, neither accrues tokens nor holds up other classes once the grace period has elapsed.
+ * <p>
+ * A read that must wait is blocked rather than failed, so lower priority transfers are throttled
+ * rather than aborted.
+ */
+public final class NetworkScheduler {
+
+  /**
+   * Class for traffic associated with media streaming.
+   */
+  public static final int CLASS_STREAMING = 0;
+  /**
+   * Class for traffic associated with prefetching media that may be played soon.
+   */
+  public static final int CLASS_PREFETCH = 1;
+  /**
+   * Class for traffic associated with background downloads.
+   */
+  public static final int CLASS_DOWNLOAD = 2;
+
+  /**
+   * The default weight of {@link #CLASS_STREAMING}.
+   */
+  public static final int DEFAULT_STREAMING_WEIGHT = 16;
+  /**
+   * The default weight of {@link #CLASS_PREFETCH}.
+   */
+  public static final int DEFAULT_PREFETCH_WEIGHT = 4;
+  /**
+   * The default weight of {@link #CLASS_DOWNLOAD}.
+   */
+  public static final int DEFAULT_DOWNLOAD_WEIGHT = 1;
+
+  /**
+   * The maximum number of tokens that a bucket can hold, and the maximum debt that it can incur.
+   */
+  private static final long MAX_TOKENS = 256 * 1024;
+  /**
+   * The time for which a class remains active after its last read ends, in milliseconds.
+   */
+  private static final long ACTIVE_GRACE_PERIOD_MS = 100;
+
+  private final int[] weights;
+  private final int[] readCounts;
+  private final long[] lastReadEndTimesMs;
+  private final long[] tokens;
+  private final long[] weightedRemainders;
+  private final ReentrantLock lock;
+  private final Condition[] conditions;
+
+  /**
+   * Constructs a scheduler for {@link #CLASS_STREAMING}, {@link #CLASS_PREFETCH} and
+   * {@link #CLASS_DOWNLOAD}, using their default weights.
+   */
+  public NetworkScheduler() {
+    this(new int[] {DEFAULT_STREAMING_WEIGHT, DEFAULT_PREFETCH_WEIGHT, DEFAULT_DOWNLOAD_WEIGHT});
+  }
+
+  /**
+   * @param weights The weight of each class, indexed by class.
+   */
+  public NetworkScheduler(int[] weights) {
+    for (int i = 0; i < weights.length; i++) {
+      Assertions.checkArgument(weights[i] > 0);
+    }
+    this.weights = weights.clone();
+    readCounts = new int[weights.length];
+    lastReadEndTimesMs = new long[weights.length];
+    tokens = new long[weights.length];
+    weightedRemainders = new long[weights.length];
+    lock = new ReentrantLock();
+    conditions = new Condition[weights.length];
+    for (int i = 0; i < weights.length; i++) {
+      conditions[i] = lock.newCondition();
+    }
+  }
+
+  /**
+   * Blocks until a read of the specified class may proceed, and then marks the read as being in
+   * progress. Each call must be followed by a call to {@link #endRead(int, int)}, including when
+   * this method throws.
+   *
+   * @param trafficClass The class of the read.
+   * @throws InterruptedException If the thread is interrupted whilst blocked.
+   */
+  public void beginRead(int trafficClass) throws InterruptedException {
+    lock.lock();
+    try {
+      readCounts[trafficClass]++;
+      long waitMs;
+      while ((waitMs = getWaitTimeMs(trafficClass, SystemClock.elapsedRealtime())) != 0) {
+        if (waitMs == -1) {
+          conditions[trafficClass].await();
+        } else {
+          conditions[trafficClass].await(waitMs, TimeUnit.MILLISECONDS);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Marks a read started by {@link #beginRead(int)} as having ended.
+   *
+   * @param trafficClass The class of the read.
+   * @param bytesTransferred The number of bytes transferred by the read.
+   */
+  public void endRead(int trafficClass, int bytesTransferred) {
+    lock.lock();
+    try {
+      Assertions.checkState(readCounts[trafficClass] > 0);
+      long nowMs = SystemClock.elapsedRealtime();
+      if (bytesTransferred > 0) {
+        int activeWeightSum = 0;
+        for (int i = 0; i < weights.length; i++) {
+          if (isActive(i, nowMs)) {
+            activeWeightSum += weights[i];
+          }
+        }
+        for (int i = 0; i < weights.length; i++) {
+          long change = i == trafficClass ? -bytesTransferred : 0;
+          if (isActive(i, nowMs)) {
+            // The part of the weighted transfer that doesn't divide into a whole token is carried
+            // forward, so that rounding doesn't erode the share of any class.
+            weightedRemainders[i] += (long) bytesTransferred * weights[i];
+            long share = weightedRemainders[i] / activeWeightSum;
+            weightedRemainders[i] -= share * activeWeightSum;
+            change += share;
+          }
+          // The share and debit of the class that made the transfer are applied together, so that
+          // clamping affects credit and debt alike.
+          tokens[i] = Math.max(-MAX_TOKENS, Math.min(MAX_TOKENS, tokens[i] + change));
+        }
+      }
+      readCounts[trafficClass]--;
+      lastReadEndTimesMs[trafficClass] = nowMs;
+      signalEligibleClasses(nowMs);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean isActive(int trafficClass, long nowMs) {
+    return readCounts[trafficClass] > 0
+        || nowMs - lastReadEndTimesMs[trafficClass] < ACTIVE_GRACE_PERIOD_MS;
+  }
+
+  /**
+   * Returns 0 if a read of the specified class may proceed. Else returns the time after which the
+   * class should be reconsidered, in milliseconds, or -1 if the class must wait to be signaled.
+   */
+  private long getWaitTimeMs(int trafficClass, long nowMs) {
+    long classTokens = tokens[trafficClass];
+    if (classTokens > 0) {
+      return 0;
+    }
+    long waitMs = 0;
+    for (int i = 0; i < weights.length; i++) {
+      if (i != trafficClass && isActive(i, nowMs) && tokens[i] > classTokens) {
+        if (readCounts[i] > 0) {
+          // The class will signal us when its read ends.
+          return -1;
+        }
+        // The class is in its grace period.
+        waitMs = Math.max(waitMs, lastReadEndTimesMs[i] + ACTIVE_GRACE_PERIOD_MS - nowMs);
+      }
+    }
+    return waitMs;
+  }
+
+  /**
+   * Signals each class with waiting reads that no longer needs to wait for another read to end, so
+   * that it may either proceed or wait for a grace period to elapse.
+   */
+  private void signalEligibleClasses(long nowMs) {
+    for (int i = 0; i < weights.length; i++) {
+      if (readCounts[i] > 0 && getWaitTimeMs(i, nowMs) != -1) {
+        conditions[i].signalAll();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.upstream.Loader.Listener;
+import com.google.android.exoplayer.upstream.Loader.Loadable;
+import com.google.android.exoplayer.upstream.Loader.UnexpectedLoaderException;
+import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.Util;
+
+import android.annotation.SuppressLint;
+import android.os.Handler;
+import android.os.Message;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Manages the concurrent background loading of up to a fixed number of {@link Loadable}s.
+ * <p>
+ * This class is a variant of {@link Loader} that allows a caller to pipeline loads, for example by
+ * starting to load the next chunk of a stream whilst the current chunk is still loading. Each load
+ * has its own {@link Listener}, and can be canceled independently of the others. As with
+ * {@link Loader}, listeners are invoked on the thread that started the corresponding load.
+ */
+public final class ParallelLoader {
+
+  private static final int MSG_END_OF_SOURCE = 0;
+  private static final int MSG_ERROR = 1;
+
+  private final ExecutorService downloadExecutorService;
+  private final int maxConcurrentLoads;
+  private final ArrayList<LoadTask> currentTasks;
+
+  /**
+   * @param threadName A name for the loader's threads.
+   * @param maxConcurrentLoads The maximum number of {@link Loadable}s that can be loaded at once.
+   */
+  public ParallelLoader(String threadName, int maxConcurrentLoads) {
+    Assertions.checkArgument(maxConcurrentLoads > 0);
+    this.downloadExecutorService = Util.newFixedThreadPool(threadName, maxConcurrentLoads);
+    this.maxConcurrentLoads = maxConcurrentLoads;
+    this.currentTasks = new ArrayList<LoadTask>();
+  }
+
+  /**
+   * Start loading a {@link Loadable}.
+   * <p>
+   * This method must only be called when {@link #canStartLoading()} returns true, and must not be
+   * called for a {@link Loadable} that is already being loaded.
+   *
+   * @param loadable The {@link Loadable} to load.
+   * @param listener A listener to invoke when the load completes, is canceled or fails.
+   */
+  public void startLoading(Loadable loadable, Listener listener) {
+    Assertions.checkState(canStartLoading());
+    Assertions.checkState(getTask(loadable) == null);
+    LoadTask task = new LoadTask(loadable, listener);
+    currentTasks.add(task);
+    downloadExecutorService.submit(task);
+  }
+
+  /**
+   * Whether another {@link Loadable} can be loaded without exceeding the maximum number of
+   * concurrent loads.
+   *
+   * @return Whether another {@link Loadable} can be loaded.
+   */
+  public boolean canStartLoading() {
+    return currentTasks.size() < maxConcurrentLoads;
+  }
+
+  /**
+   * Whether the {@link ParallelLoader} is currently loading any {@link Loadable}.
+   *
+   * @return Whether the {@link ParallelLoader} is currently loading any {@link Loadable}.
+   */
+  public boolean isLoading() {
+    return !currentTasks.isEmpty();
+  }
+
+  /**
+   * Whether the {@link ParallelLoader} is currently loading the specified {@link Loadable}.
+   *
+   * @param loadable The {@link Loadable}.
+   * @return Whether the {@link ParallelLoader} is currently loading {@code loadable}.
+   */
+  public boolean isLoading(Loadable loadable) {
+    return getTask(loadable) != null;
+  }
+
+  /**
+   * Returns the number of {@link Loadable}s currently being loaded.
+   *
+   * @return The number of {@link Loadable}s currently being loaded.
+   */
+  public int getLoadingCount() {
+    return currentTasks.size();
+  }
+
+  /**
+   * Cancels the load of the specified {@link Loadable}.
+   * <p>
+   * This method should only be called when the {@link Loadable} is being loaded.
+   *
+   * @param loadable The {@link Loadable} whose load should be canceled.
+   */
+  public void cancelLoading(Loadable loadable) {
+    LoadTask task = getTask(loadable);
+    Assertions.checkState(task != null);
+    task.quit();
+  }
+
+  /**
+   * Cancels all current loads.
+   */
+  public void cancelAllLoading() {
+    for (int i = 0; i < currentTasks.size(); i++) {
+      currentTasks.get(i).quit();
+    }
+  }
+
+  /**
+   * Releases the {@link ParallelLoader}.
+   * <p>
+   * This method should be called when the {@link ParallelLoader} is no longer required.
+   */
+  public void release() {
+    cancelAllLoading();
+    downloadExecutorService.shutdown();
+  }
+
+  private LoadTask getTask(Loadable loadable) {
+    for (int i = 0; i < currentTasks.size(); i++) {
+      LoadTask task = currentTasks.get(i);
+      if (task.loadable == loadable) {
+        return task;
+      }
+    }
+    return null;
+  }
+
+  @SuppressLint("HandlerLeak")
+  private final class LoadTask extends Handler implements Runnable {
+
+    private static final String TAG = "LoadTask";
+
+    private final Loadable loadable;
+    private final Listener listener;
+
+    private Thread executorThread;
+
+    public LoadTask(Loadable loadable, Listener listener) {
+      this.loadable = loadable;
+      this.listener = listener;
+    }
+
+    public void quit() {
+      loadable.cancelLoad();
+      synchronized (this) {
+        if (executorThread != null) {
+          executorThread.interrupt();
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        synchronized (this) {
+          executorThread = Thread.currentThread();
+        }
+        if (!loadable.isLoadCanceled()) {
+          loadable.load();
+        }
+        sendEmptyMessage(MSG_END_OF_SOURCE);
+      } catch (IOException e) {
+        obtainMessage(MSG_ERROR, e).sendToTarget();
+      } catch (InterruptedException e) {
+        // The load was canceled.
+        Assertions.checkState(loadable.isLoadCanceled());
+        sendEmptyMessage(MSG_END_OF_SOURCE);
+      } catch (Exception e) {
+        // This should never happen, but handle it anyway.
+        Log.e(TAG, "Unexpected error loading stream", e);
+        obtainMessage(MSG_ERROR, new UnexpectedLoaderException(e)).sendToTarget();
+      } finally {
+        // The executor's threads are reused by subsequent loads, so ensure that a late call to
+        // quit() cannot interrupt them.
+        synchronized (this) {
+          executorThread = null;
+          Thread.interrupted();
+        }
+      }
+    }
+
+    @Override
+    public void handleMessage(Message msg) {
+      currentTasks.remove(this);
+      if (loadable.isLoadCanceled()) {
+        listener.onCanceled();
+        return;
+      }
+      switch (msg.what) {
+        case MSG_END_OF_SOURCE:
+          listener.onLoaded();
+          break;
+        case MSG_ERROR:
+          listener.onError((IOException) msg.obj);
+          break;
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.Util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A {@link DataSource} that reads ahead from an upstream {@link DataSource} on a background thread.
+ * <p>
+ * The upstream source is opened on the calling thread. A background thread then reads from it into
+ * a bounded queue of buffers obtained from an {@link Allocator}, and calls to
+ * {@link #read(byte[], int, int)} copy from the queue, blocking only when it is empty. This hides
+ * the latency of upstream sources whose individual reads are slow, for example because they
+ * access the network or slow storage.
+ * <p>
+ * The upstream source reports bytes to its {@link TransferListener} as they are read ahead, which
+ * may include bytes that are never consumed if the source is closed mid-stream. {@link #close()}
+ * stops the background thread and waits for it to finish before closing the upstream source, so
+ * the end of the transfer is always reported after the last of its bytes.
+ */
+public final class ReadAheadDataSource implements DataSource {
+
+  /**
+   * Runs the background work of all instances, so that threads are reused across opens.
+   */
+  private static final ExecutorService EXECUTOR = Util.newCachedThreadPool("ReadAheadDataSource");
+
+  private final DataSource upstream;
+  private final Allocator allocator;
+  private final int readAheadLength;
+
+  private Allocation allocation;
+  private ReadAhead readAhead;
+
+  /**
+   * @param upstream The upstream {@link DataSource}.
+   * @param allocator The {@link Allocator} from which buffers are obtained. The allocations must be
+   *     backed by byte arrays, as is the case for {@link BufferPool}.
+   * @param readAheadLength The maximum number of bytes to read ahead.
+   */
+  public ReadAheadDataSource(DataSource upstream, Allocator allocator, int readAheadLength) {
+    Assertions.checkArgument(readAheadLength > 0);
+    this.upstream = Assertions.checkNotNull(upstream);
+    this.allocator = Assertions.checkNotNull(allocator);
+    this.readAheadLength = readAheadLength;
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    long length = upstream.open(dataSpec);
+    allocation = allocator.allocate(readAheadLength);
+    Assertions.checkState(allocation.getBuffers() != null);
+    readAhead = new ReadAhead(upstream, allocation, length);
+    EXECUTOR.execute(readAhead);
+    return length;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws IOException {
+    return readAhead.read(buffer, offset, readLength);
+  }
+
+  @Override
+  public void close() throws IOException {
+    boolean interrupted = false;
+    if (readAhead != null) {
+      readAhead.cancel();
+      // The background thread uses the upstream source and the allocation, so we must wait for it
+      // to finish before either can be released.
+      interrupted = readAhead.blockUntilFinished();
+      readAhead = null;
+    }
+    if (allocation != null) {
+      allocation.release();
+      allocation = null;
+    }
+    try {
+      upstream.close();
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Reads from an upstream source into the fragments of an allocation, which are used as a
+   * circular queue.
+   */
+  private static final class ReadAhead implements Runnable {
+
+    private final DataSource dataSource;
+    private final byte[][] buffers;
+    private final int[] fragmentOffsets;
+    private final int[] fragmentLengths;
+    private final int[] readLengths;
+    private final long length;
+
+    private long bytesRemaining;
+    private int readIndex;
+    private int readPosition;
+    private int writeIndex;
+    private int filledCount;
+    private IOException error;
+    private boolean endOfInput;
+    private boolean finished;
+    private boolean canceled;
+    private Thread thread;
+
+    /**
+     * @param dataSource The opened upstream source.
+     * @param allocation The allocation whose fragments are used as the queue.
+     * @param length The length of the data to read, or {@link DataSpec#LENGTH_UNBOUNDED}.
+     */
+    public ReadAhead(DataSource dataSource, Allocation allocation, long length) {
+      this.dataSource = dataSource;
+      this.length = length;
+      this.bytesRemaining = length;
+      buffers = allocation.getBuffers();
+      fragmentOffsets = new int[buffers.length];
+      fragmentLengths = new int[buffers.length];
+      for (int i = 0; i < buffers.length; i++) {
+        fragmentOffsets[i] = allocation.getFragmentOffset(i);
+        fragmentLengths[i] = allocation.getFragmentLength(i);
+      }
+      readLengths = new int[buffers.length];
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        thread = Thread.currentThread();
+      }
+      try {
+        while (true) {
+          int index;
+          synchronized (this) {
+            while (filledCount == buffers.length && !canceled) {
+              wait();
+            }
+            if (canceled) {
+              break;
+            }
+            index = writeIndex;
+          }
+          // The fragment at index is not visible to the reader until filledCount is incremented,
+          // so it's safe to write into it without holding the lock. Fill it as far as possible
+          // before publishing it, so that each slot holds a whole fragment rather than the result
+          // of a single, possibly short, upstream read.
+          int readLength = bytesRemaining == DataSpec.LENGTH_UNBOUNDED ? fragmentLengths[index]
+              : (int) Math.min(bytesRemaining, fragmentLengths[index]);
+          int filledLength = 0;
+          int read = readLength == 0 ? -1 : 0;
+          while (filledLength < readLength) {
+            read = dataSource.read(buffers[index], fragmentOffsets[index] + filledLength,
+                readLength - filledLength);
+            if (read == -1) {
+              break;
+            }
+            filledLength += read;
+          }
+          synchronized (this) {
+            if (bytesRemaining != DataSpec.LENGTH_UNBOUNDED) {
+              bytesRemaining -= filledLength;
+            }
+            if (filledLength > 0) {
+              readLengths[index] = filledLength;
+              writeIndex = (writeIndex + 1) % buffers.length;
+              filledCount++;
+              notifyAll();
+            }
+            if (read == -1) {
+              if (bytesRemaining != DataSpec.LENGTH_UNBOUNDED && bytesRemaining != 0) {
+                throw new UnexpectedLengthException(length, length - bytesRemaining);
+              }
+              endOfInput = true;
+              break;
+            }
+          }
+        }
+      } catch (InterruptedException e) {
+        // Canceled.
+      } catch (IOException e) {
+        synchronized (this) {
+          error = e;
+        }
+      } finally {
+        synchronized (this) {
+          finished = true;
+          thread = null;
+          Thread.interrupted();
+          notifyAll();
+        }
+      }
+    }
+
+    /**
+     * Reads from the queue, blocking until data is available or the end of the input is reached.
+     *
+     * @return The number of bytes read, or -1 if the end of the input has been reached.
+     */
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+      int index;
+      int available;
+      synchronized (this) {
+        while (filledCount == 0 && !finished) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+          }
+        }
+        if (filledCount == 0) {
+          if (endOfInput) {
+            return -1;
+          }
+          throw error != null ? error : new InterruptedIOException();
+        }
+        index = readIndex;
+        available = readLengths[index] - readPosition;
+      }
+      int read = Math.min(available, readLength);
+      System.arraycopy(buffers[index], fragmentOffsets[index] + readPosition, buffer, offset, read);
+      readPosition += read;
+      if (read == available) {
+        synchronized (this) {
+          readIndex = (readIndex + 1) % buffers.length;
+          readPosition = 0;
+          filledCount--;
+          notifyAll();
+        }
+      }
+      return read;
+    }
+
+    public synchronized void cancel() {
+      canceled = true;
+      if (thread != null) {
+        thread.interrupt();
+      }
+    }
+
+    /**
+     * Blocks until the background thread has finished.
+     *
+     * @return Whether the calling thread was interrupted whilst blocking.
+     */
+    public synchronized boolean blockUntilFinished() {
+      boolean interrupted = false;
+      while (!finished) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      return interrupted;
+    }
+
+  }
+
+}
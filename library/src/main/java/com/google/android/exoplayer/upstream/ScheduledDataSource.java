@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Schedules {@link #open(DataSpec)} and {@link #read(byte[], int, int)} calls using a
+ * {@link NetworkScheduler}. Unlike {@link PriorityDataSource}, calls that cannot proceed block
+ * until they can, rather than failing.
+ */
+public final class ScheduledDataSource implements DataSource {
+
+  private final NetworkScheduler scheduler;
+  private final int trafficClass;
+  private final DataSource upstream;
+
+  /**
+   * @param scheduler The {@link NetworkScheduler}.
+   * @param trafficClass The class of the traffic transferred by the source.
+   * @param upstream The upstream {@link DataSource}.
+   */
+  public ScheduledDataSource(NetworkScheduler scheduler, int trafficClass, DataSource upstream) {
+    this.scheduler = Assertions.checkNotNull(scheduler);
+    this.trafficClass = trafficClass;
+    this.upstream = Assertions.checkNotNull(upstream);
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    beginRead();
+    try {
+      return upstream.open(dataSpec);
+    } finally {
+      scheduler.endRead(trafficClass, 0);
+    }
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int max) throws IOException {
+    int read = 0;
+    beginRead();
+    try {
+      read = upstream.read(buffer, offset, max);
+      return read;
+    } finally {
+      scheduler.endRead(trafficClass, read);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    upstream.close();
+  }
+
+  private void beginRead() throws InterruptedIOException {
+    try {
+      scheduler.beginRead(trafficClass);
+    } catch (InterruptedException e) {
+      scheduler.endRead(trafficClass, 0);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+}
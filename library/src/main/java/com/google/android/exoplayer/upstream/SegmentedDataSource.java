@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.Util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A {@link DataSource} that splits each sufficiently long request into contiguous sub-ranges, and
+ * fetches them in parallel from a number of upstream {@link DataSource}s.
+ * <p>
+ * The first sub-range is read directly from the first upstream source on the calling thread. The
+ * remaining sub-ranges are each fetched into memory on a background thread, from the remaining
+ * upstream sources. Reads are sequential, and data is returned as soon as it is available. Hence
+ * the start of the data can be consumed before the whole request has been fetched.
+ * <p>
+ * Each later sub-range is held in memory until it has been read, so its length is capped at a
+ * maximum segment length. If a request is longer than the sub-ranges can cover, the first
+ * sub-range, which is not held in memory, is lengthened to cover the remainder.
+ * <p>
+ * Since the upstream transfers overlap, upstream sources that report to a {@link TransferListener}
+ * should share a listener that handles concurrent transfers, such as {@link DefaultBandwidthMeter}.
+ * The meter will then measure the aggregate throughput of the parallel transfers.
+ */
+public final class SegmentedDataSource implements DataSource {
+
+  /**
+   * The default maximum length of a sub-range that's fetched into memory.
+   */
+  public static final int DEFAULT_MAX_SEGMENT_LENGTH = 4 * 1024 * 1024;
+
+  private static final int MAX_SEGMENT_READ_LENGTH = 32 * 1024;
+
+  /**
+   * Runs the background work of all instances, so that threads are reused across opens.
+   */
+  private static final ExecutorService EXECUTOR = Util.newCachedThreadPool("SegmentedDataSource");
+
+  private final DataSource[] upstreams;
+  private final long minSegmentLength;
+  private final int maxSegmentLength;
+
+  private Segment[] segments;
+  private long firstSegmentLength;
+  private int segmentIndex;
+  private long segmentReadPosition;
+
+  /**
+   * @param upstreams The upstream {@link DataSource}s. A request is split into at most as many
+   *     sub-ranges as there are sources. The sources must not be used elsewhere.
+   * @param minSegmentLength The minimum length of a sub-range. Requests shorter than twice this
+   *     value, and unbounded requests, are read from the first upstream source without splitting.
+   */
+  public SegmentedDataSource(DataSource[] upstreams, long minSegmentLength) {
+    this(upstreams, minSegmentLength, DEFAULT_MAX_SEGMENT_LENGTH);
+  }
+
+  /**
+   * @param upstreams The upstream {@link DataSource}s. A request is split into at most as many
+   *     sub-ranges as there are sources. The sources must not be used elsewhere.
+   * @param minSegmentLength The minimum length of a sub-range. Requests shorter than twice this
+   *     value, and unbounded requests, are read from the first upstream source without splitting.
+   * @param maxSegmentLength The maximum length of each sub-range that's fetched into memory. At
+   *     most this many bytes are held for each upstream source other than the first.
+   */
+  public SegmentedDataSource(DataSource[] upstreams, long minSegmentLength,
+      int maxSegmentLength) {
+    Assertions.checkArgument(upstreams.length > 0);
+    Assertions.checkArgument(minSegmentLength > 0);
+    Assertions.checkArgument(maxSegmentLength >= minSegmentLength);
+    this.upstreams = upstreams.clone();
+    this.minSegmentLength = minSegmentLength;
+    this.maxSegmentLength = maxSegmentLength;
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    segmentIndex = 0;
+    segmentReadPosition = 0;
+    int segmentCount = dataSpec.length == DataSpec.LENGTH_UNBOUNDED ? 1
+        : (int) Math.min(upstreams.length, dataSpec.length / minSegmentLength);
+    if (segmentCount <= 1) {
+      return upstreams[0].open(dataSpec);
+    }
+    long segmentLength = Math.min((dataSpec.length + segmentCount - 1) / segmentCount,
+        maxSegmentLength);
+    // The later sub-ranges have at most segmentLength bytes, and the first covers the remainder.
+    long firstLength = Math.max(segmentLength,
+        dataSpec.length - (segmentCount - 1) * segmentLength);
+    // Rounding up the sub-range length can leave nothing for the last sub-ranges, so drop them.
+    segmentCount = 1 + (int) ((dataSpec.length - firstLength + segmentLength - 1) / segmentLength);
+
+    // Start fetching the later sub-ranges, before opening the first.
+    segments = new Segment[segmentCount];
+    for (int i = 1; i < segmentCount; i++) {
+      long offset = firstLength + (i - 1) * segmentLength;
+      long length = Math.min(segmentLength, dataSpec.length - offset);
+      DataSpec segmentDataSpec = new DataSpec(dataSpec.uri,
+          dataSpec.absoluteStreamPosition + offset, length, dataSpec.key,
+          dataSpec.position + offset, dataSpec.uriIsFullStream);
+      segments[i] = new Segment(upstreams[i], segmentDataSpec);
+      EXECUTOR.execute(segments[i]);
+    }
+    firstSegmentLength = firstLength;
+    upstreams[0].open(new DataSpec(dataSpec.uri, dataSpec.absoluteStreamPosition, firstLength,
+        dataSpec.key, dataSpec.position, dataSpec.uriIsFullStream));
+    return dataSpec.length;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws IOException {
+    if (segments == null) {
+      return upstreams[0].read(buffer, offset, readLength);
+    }
+    if (segmentIndex == 0) {
+      int read = upstreams[0].read(buffer, offset, readLength);
+      if (read != -1) {
+        segmentReadPosition += read;
+        return read;
+      }
+      if (segmentReadPosition != firstSegmentLength) {
+        // The first sub-range ended early. Continuing with the next would leave a gap in the data.
+        throw new UnexpectedLengthException(firstSegmentLength, segmentReadPosition);
+      }
+      // We've finished reading the first sub-range.
+      segmentIndex++;
+      segmentReadPosition = 0;
+    }
+    while (segmentIndex < segments.length) {
+      // Each later sub-range throws if it ended early, so -1 is only returned at its end.
+      int read = segments[segmentIndex].read(buffer, offset, readLength,
+          (int) segmentReadPosition);
+      if (read != -1) {
+        segmentReadPosition += read;
+        return read;
+      }
+      segmentIndex++;
+      segmentReadPosition = 0;
+    }
+    return -1;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      upstreams[0].close();
+    } finally {
+      if (segments != null) {
+        for (int i = 1; i < segments.length; i++) {
+          segments[i].cancel();
+        }
+        boolean interrupted = false;
+        for (int i = 1; i < segments.length; i++) {
+          // The background threads use the upstream sources, so we must wait for them to finish
+          // before the sources can be used again.
+          interrupted |= segments[i].blockUntilFinished();
+        }
+        segments = null;
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  /**
+   * Fetches a sub-range of the data into memory.
+   */
+  private static final class Segment implements Runnable {
+
+    private final DataSource dataSource;
+    private final DataSpec dataSpec;
+    private final byte[] data;
+
+    private int loadedLength;
+    private IOException error;
+    private boolean finished;
+    private boolean canceled;
+    private Thread thread;
+
+    public Segment(DataSource dataSource, DataSpec dataSpec) {
+      this.dataSource = dataSource;
+      this.dataSpec = dataSpec;
+      data = new byte[(int) dataSpec.length];
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        thread = Thread.currentThread();
+      }
+      try {
+        if (!isCanceled()) {
+          dataSource.open(dataSpec);
+        }
+        while (!isCanceled() && loadedLength < data.length) {
+          int read = dataSource.read(data, loadedLength,
+              Math.min(data.length - loadedLength, MAX_SEGMENT_READ_LENGTH));
+          if (read == -1) {
+            throw new UnexpectedLengthException(data.length, loadedLength);
+          }
+          synchronized (this) {
+            loadedLength += read;
+            notifyAll();
+          }
+        }
+      } catch (IOException e) {
+        synchronized (this) {
+          error = e;
+        }
+      } finally {
+        Util.closeQuietly(dataSource);
+        synchronized (this) {
+          finished = true;
+          thread = null;
+          Thread.interrupted();
+          notifyAll();
+        }
+      }
+    }
+
+    /**
+     * Reads from the fetched data, blocking until data at {@code position} is available.
+     *
+     * @return The number of bytes read, or -1 if the end of the sub-range has been reached.
+     */
+    public int read(byte[] buffer, int offset, int readLength, int position) throws IOException {
+      int available;
+      synchronized (this) {
+        while (position == loadedLength && position < data.length && !finished) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+          }
+        }
+        if (position == data.length) {
+          return -1;
+        } else if (position == loadedLength) {
+          throw error != null ? error : new UnexpectedLengthException(data.length, loadedLength);
+        }
+        available = loadedLength - position;
+      }
+      int read = Math.min(available, readLength);
+      System.arraycopy(data, position, buffer, offset, read);
+      return read;
+    }
+
+    public synchronized void cancel() {
+      canceled = true;
+      if (thread != null) {
+        thread.interrupt();
+      }
+    }
+
+    /**
+     * Blocks until the background fetch has finished.
+     *
+     * @return Whether the calling thread was interrupted whilst blocking.
+     */
+    public synchronized boolean blockUntilFinished() {
+      boolean interrupted = false;
+      while (!finished) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      return interrupted;
+    }
+
+    private synchronized boolean isCanceled() {
+      return canceled;
+    }
+
+  }
+
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.Util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A {@link DataSource} that shares a single upstream transfer between all instances in a
+ * {@link Group} that concurrently request the same data.
+ * <p>
+ * Requests are considered to be the same if they have the same key (or the same uri, if no key is
+ * set), position and length. The first request for the data starts a transfer, using an upstream
+ * {@link DataSource} obtained from the group's {@link UpstreamFactory}. Subsequent requests for the
+ * same data join the transfer whilst it's in progress, and read the data from the start. Each
+ * subscriber may close its source at any time without affecting the others. The transfer is
+ * canceled when its last subscriber closes.
+ * <p>
+ * There is no transfer thread. Whichever subscriber first needs data that has not been loaded reads
+ * it from upstream on its own thread, so a request without other subscribers costs no more than
+ * reading upstream directly. Loaded data is buffered in memory until every subscriber has read it,
+ * up to {@link #MAX_BUFFERED_LENGTH} bytes. A subscriber that gets this far ahead of the slowest
+ * subscriber waits for it to catch up. Once any data has been discarded, new requests for the same
+ * data start a separate transfer. An error whilst loading is reported to every subscriber.
+ * <p>
+ * To populate a {@link com.google.android.exoplayer.upstream.cache.Cache} from a shared transfer,
+ * use instances of this class as the upstream sources of
+ * {@link com.google.android.exoplayer.upstream.cache.CacheDataSource}s. The source that holds the
+ * cache lock for the key writes the data into the cache, whilst other sources that read from
+ * upstream share the same transfer rather than starting their own.
+ */
+public final class SingleFlightDataSource implements DataSource {
+
+  /**
+   * The maximum number of bytes buffered for a transfer.
+   */
+  public static final int MAX_BUFFERED_LENGTH = 2 * 1024 * 1024;
+
+  /**
+   * Creates upstream {@link DataSource}s for shared transfers.
+   */
+  public interface UpstreamFactory {
+
+    /**
+     * Creates a new {@link DataSource}, which will be used for a single transfer.
+     *
+     * @return The created {@link DataSource}.
+     */
+    DataSource createDataSource();
+
+  }
+
+  /**
+   * A group of {@link SingleFlightDataSource}s whose transfers are shared.
+   */
+  public static final class Group {
+
+    private final UpstreamFactory upstreamFactory;
+    private final HashMap<String, Transfer> transfers;
+
+    /**
+     * @param upstreamFactory A factory for the upstream {@link DataSource}s used for transfers.
+     */
+    public Group(UpstreamFactory upstreamFactory) {
+      this.upstreamFactory = Assertions.checkNotNull(upstreamFactory);
+      transfers = new HashMap<String, Transfer>();
+    }
+
+    private synchronized Subscriber subscribe(DataSpec dataSpec) {
+      String key = (dataSpec.key != null ? dataSpec.key : dataSpec.uri.toString()) + ":"
+          + dataSpec.absoluteStreamPosition + ":" + dataSpec.length;
+      Transfer transfer = transfers.get(key);
+      Subscriber subscriber = transfer != null ? transfer.subscribe() : null;
+      if (subscriber == null) {
+        transfer = new Transfer(this, key, upstreamFactory.createDataSource(), dataSpec);
+        transfers.put(key, transfer);
+        subscriber = transfer.subscribe();
+      }
+      return subscriber;
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+      boolean canceled;
+      synchronized (this) {
+        canceled = subscriber.transfer.unsubscribe(subscriber);
+        if (canceled) {
+          remove(subscriber.transfer);
+        }
+      }
+      if (canceled) {
+        // No subscriber remains to use the upstream source, so it's safe to close it.
+        Util.closeQuietly(subscriber.transfer.dataSource);
+      }
+    }
+
+    private synchronized void remove(Transfer transfer) {
+      if (transfers.get(transfer.key) == transfer) {
+        transfers.remove(transfer.key);
+      }
+    }
+
+  }
+
+  private final Group group;
+
+  private Subscriber subscriber;
+
+  /**
+   * @param group The group whose transfers are shared.
+   */
+  public SingleFlightDataSource(Group group) {
+    this.group = Assertions.checkNotNull(group);
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws IOException {
+    subscriber = group.subscribe(dataSpec);
+    return subscriber.transfer.open();
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws IOException {
+    return subscriber.transfer.read(subscriber, buffer, offset, readLength);
+  }
+
+  @Override
+  public void close() {
+    if (subscriber != null) {
+      group.unsubscribe(subscriber);
+      subscriber = null;
+    }
+  }
+
+  /**
+   * A subscriber to a shared transfer.
+   */
+  private static final class Subscriber {
+
+    public final Transfer transfer;
+
+    public long position;
+
+    public Subscriber(Transfer transfer) {
+      this.transfer = transfer;
+    }
+
+  }
+
+  /**
+   * A shared transfer, which loads data into a list of fixed length blocks as its subscribers read.
+   * <p>
+   * The upstream source is opened and read by one subscriber at a time, outside of the transfer's
+   * lock. Subscribers only read data below {@code loadedLength}, so it's safe for the loading
+   * subscriber to write above it without holding the lock.
+   */
+  private static final class Transfer {
+
+    private static final int BLOCK_LENGTH = 32 * 1024;
+    private static final int MAX_BLOCK_COUNT = MAX_BUFFERED_LENGTH / BLOCK_LENGTH;
+
+    public final String key;
+    public final DataSource dataSource;
+
+    private final Group group;
+    private final DataSpec dataSpec;
+    private final ArrayList<byte[]> blocks;
+    private final ArrayList<byte[]> spareBlocks;
+    private final ArrayList<Subscriber> subscribers;
+
+    private long length;
+    private long bytesRemaining;
+    private boolean opening;
+    private boolean opened;
+    private boolean loading;
+    private long loadedLength;
+    private long discardedLength;
+    private IOException error;
+    private boolean finished;
+    private boolean canceled;
+
+    public Transfer(Group group, String key, DataSource dataSource, DataSpec dataSpec) {
+      this.group = group;
+      this.key = key;
+      this.dataSource = dataSource;
+      this.dataSpec = dataSpec;
+      blocks = new ArrayList<byte[]>();
+      spareBlocks = new ArrayList<byte[]>();
+      subscribers = new ArrayList<Subscriber>();
+    }
+
+    /**
+     * Adds a subscriber, provided that the transfer has not been canceled or failed, and that none
+     * of its data has been discarded.
+     *
+     * @return The subscriber, or null if the transfer cannot be subscribed to.
+     */
+    public synchronized Subscriber subscribe() {
+      if (canceled || error != null || discardedLength > 0) {
+        return null;
+      }
+      Subscriber subscriber = new Subscriber(this);
+      subscribers.add(subscriber);
+      return subscriber;
+    }
+
+    /**
+     * Removes a subscriber, canceling the transfer if no subscribers remain.
+     *
+     * @return Whether the transfer was canceled.
+     */
+    public synchronized boolean unsubscribe(Subscriber subscriber) {
+      subscribers.remove(subscriber);
+      if (!subscribers.isEmpty()) {
+        discardConsumedBlocks();
+        return false;
+      }
+      canceled = true;
+      return true;
+    }
+
+    /**
+     * Opens the upstream source if no other subscriber has done so, or else blocks until it has
+     * been opened.
+     *
+     * @return The length of the data, as resolved by the upstream source.
+     */
+    public long open() throws IOException {
+      synchronized (this) {
+        while (opening && !opened && error == null) {
+          waitInterruptibly();
+        }
+        if (opened) {
+          return length;
+        } else if (error != null) {
+          throw error;
+        }
+        opening = true;
+      }
+      long openedLength;
+      try {
+        openedLength = dataSource.open(dataSpec);
+      } catch (IOException e) {
+        onFinished(e);
+        throw e;
+      }
+      synchronized (this) {
+        length = openedLength;
+        bytesRemaining = openedLength;
+        opened = true;
+        finished = openedLength == 0;
+        notifyAll();
+      }
+      return openedLength;
+    }
+
+    /**
+     * Reads data for a subscriber. If the subscriber has read all of the loaded data, then either
+     * more data is loaded from upstream, or the subscriber blocks until another subscriber has
+     * loaded it.
+     *
+     * @return The number of bytes read, or -1 if the end of the data has been reached.
+     */
+    public int read(Subscriber subscriber, byte[] buffer, int offset, int readLength)
+        throws IOException {
+      while (true) {
+        byte[] block;
+        int blockPosition;
+        int loadLength;
+        synchronized (this) {
+          while (subscriber.position == loadedLength && !finished
+              && (loading || (blocks.size() == MAX_BLOCK_COUNT && isTailBlockFull()))) {
+            // Another subscriber is loading, or the slowest subscriber must catch up first.
+            waitInterruptibly();
+          }
+          if (subscriber.position < loadedLength) {
+            return readLoadedData(subscriber, buffer, offset, readLength);
+          } else if (finished) {
+            if (error != null) {
+              throw error;
+            }
+            return -1;
+          }
+          // Load more data.
+          loading = true;
+          if (isTailBlockFull()) {
+            blocks.add(spareBlocks.isEmpty() ? new byte[BLOCK_LENGTH]
+                : spareBlocks.remove(spareBlocks.size() - 1));
+          }
+          block = blocks.get(blocks.size() - 1);
+          blockPosition = (int) ((loadedLength - discardedLength) % BLOCK_LENGTH);
+          loadLength = bytesRemaining == DataSpec.LENGTH_UNBOUNDED ? BLOCK_LENGTH - blockPosition
+              : (int) Math.min(bytesRemaining, BLOCK_LENGTH - blockPosition);
+        }
+        int read;
+        try {
+          read = dataSource.read(block, blockPosition, loadLength);
+          if (read == -1 && bytesRemaining != DataSpec.LENGTH_UNBOUNDED) {
+            throw new UnexpectedLengthException(length, length - bytesRemaining);
+          }
+        } catch (IOException e) {
+          onFinished(e);
+          throw e;
+        }
+        synchronized (this) {
+          loading = false;
+          if (read == -1) {
+            finished = true;
+          } else {
+            loadedLength += read;
+            if (bytesRemaining != DataSpec.LENGTH_UNBOUNDED) {
+              bytesRemaining -= read;
+              finished = bytesRemaining == 0;
+            }
+          }
+          notifyAll();
+        }
+      }
+    }
+
+    /**
+     * Copies loaded data to a subscriber. Must be called whilst holding the lock.
+     */
+    private int readLoadedData(Subscriber subscriber, byte[] buffer, int offset, int readLength) {
+      long blockDataPosition = subscriber.position - discardedLength;
+      byte[] block = blocks.get((int) (blockDataPosition / BLOCK_LENGTH));
+      int blockOffset = (int) (blockDataPosition % BLOCK_LENGTH);
+      int read = (int) Math.min(Math.min(readLength, loadedLength - subscriber.position),
+          BLOCK_LENGTH - blockOffset);
+      System.arraycopy(block, blockOffset, buffer, offset, read);
+      subscriber.position += read;
+      if (blockOffset + read == BLOCK_LENGTH) {
+        discardConsumedBlocks();
+      }
+      return read;
+    }
+
+    /**
+     * Marks the transfer as having failed, and removes it from the group so that later requests
+     * start a new transfer.
+     */
+    private void onFinished(IOException e) {
+      synchronized (this) {
+        error = e;
+        finished = true;
+        loading = false;
+        notifyAll();
+      }
+      group.remove(this);
+    }
+
+    /**
+     * Discards blocks that have been read by every subscriber. Must be called whilst holding the
+     * lock.
+     */
+    private void discardConsumedBlocks() {
+      long minPosition = loadedLength;
+      for (int i = 0; i < subscribers.size(); i++) {
+        minPosition = Math.min(minPosition, subscribers.get(i).position);
+      }
+      boolean discarded = false;
+      while (minPosition - discardedLength >= BLOCK_LENGTH) {
+        spareBlocks.add(blocks.remove(0));
+        discardedLength += BLOCK_LENGTH;
+        discarded = true;
+      }
+      if (discarded) {
+        // A subscriber may be waiting for room to load more data.
+        notifyAll();
+      }
+    }
+
+    /**
+     * Whether a new block must be added before more data can be loaded. Must be called whilst
+     * holding the lock.
+     */
+    private boolean isTailBlockFull() {
+      return loadedLength - discardedLength == (long) blocks.size() * BLOCK_LENGTH;
+    }
+
+    private void waitInterruptibly() throws InterruptedIOException {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+
+  }
+
+}
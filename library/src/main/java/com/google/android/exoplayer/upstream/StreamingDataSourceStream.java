@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.upstream.DataSourceStream.DataSourceStreamLoadException;
+import com.google.android.exoplayer.upstream.Loader.Loadable;
+import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.Util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Loads data from a {@link DataSource} into a bounded ring of {@link Allocation}s. The loaded data
+ * can be consumed by treating the instance as a non-blocking {@link NonBlockingInputStream}.
+ * <p>
+ * Unlike {@link DataSourceStream}, which holds the whole of the data in memory until it is closed,
+ * this class holds at most {@code fragmentCount} allocations of {@code fragmentLength} bytes at any
+ * one time. Each allocation is returned to the {@link Allocator} as soon as the data it contains
+ * has been read, and the load blocks whilst the ring is full. Consequently the data can only be
+ * read once, and its length is not limited by the size of the allocator. The length also need not
+ * be known in advance. If {@code dataSource.open(dataSpec)} returns
+ * {@link DataSpec#LENGTH_UNBOUNDED} then the load continues until the end of the data is reached.
+ */
+public final class StreamingDataSourceStream implements Loadable, NonBlockingInputStream {
+
+  private static final int SCRATCH_LENGTH = 16 * 1024;
+
+  private final DataSource dataSource;
+  private final DataSpec dataSpec;
+  private final Allocator allocator;
+  private final int fragmentLength;
+  private final Allocation[] fragments;
+  private final ByteBuffer[][] readByteBuffers;
+  private final Head writeHead;
+  private final Head readHead;
+  private final Object windowLock;
+
+  private volatile boolean loadCanceled;
+  private volatile boolean closed;
+  private volatile long loadPosition;
+  private volatile long readPosition;
+  private volatile long resolvedLength;
+
+  private byte[] scratch;
+  // Guarded by windowLock.
+  private boolean loading;
+
+  /**
+   * @param dataSource The source from which the data should be loaded.
+   * @param dataSpec Defines the data to be loaded.
+   * @param allocator Used to obtain {@link Allocation}s for holding the data.
+   * @param fragmentLength The length of each allocation obtained from {@code allocator}.
+   * @param fragmentCount The maximum number of allocations held at any one time.
+   */
+  public StreamingDataSourceStream(DataSource dataSource, DataSpec dataSpec, Allocator allocator,
+      int fragmentLength, int fragmentCount) {
+    Assertions.checkArgument(fragmentLength > 0);
+    Assertions.checkArgument(fragmentCount > 0);
+    this.dataSource = dataSource;
+    this.dataSpec = dataSpec;
+    this.allocator = allocator;
+    this.fragmentLength = fragmentLength;
+    fragments = new Allocation[fragmentCount];
+    readByteBuffers = new ByteBuffer[fragmentCount][];
+    writeHead = new Head();
+    readHead = new Head();
+    windowLock = new Object();
+    resolvedLength = DataSpec.LENGTH_UNBOUNDED;
+  }
+
+  /**
+   * Returns the current read position for data being read out of the source.
+   *
+   * @return The current read position.
+   */
+  public long getReadPosition() {
+    return readPosition;
+  }
+
+  /**
+   * Returns the number of bytes of data that have been loaded.
+   *
+   * @return The number of bytes of data that have been loaded.
+   */
+  public long getLoadPosition() {
+    return loadPosition;
+  }
+
+  /**
+   * Returns the length of the stream in bytes.
+   *
+   * @return The length of the stream in bytes, or {@value DataSpec#LENGTH_UNBOUNDED} if the length
+   *     has yet to be determined.
+   */
+  public long getLength() {
+    return resolvedLength != DataSpec.LENGTH_UNBOUNDED ? resolvedLength : dataSpec.length;
+  }
+
+  /**
+   * Whether the stream has finished loading.
+   *
+   * @return True if the stream has finished loading. False otherwise.
+   */
+  public boolean isLoadFinished() {
+    return resolvedLength != DataSpec.LENGTH_UNBOUNDED && loadPosition == resolvedLength;
+  }
+
+  // {@link NonBlockingInputStream} implementation.
+
+  @Override
+  public long getAvailableByteCount() {
+    return loadPosition - readPosition;
+  }
+
+  @Override
+  public boolean isEndOfStream() {
+    return resolvedLength != DataSpec.LENGTH_UNBOUNDED && readPosition == resolvedLength;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * If a load is in progress then it stops at its next read, and the allocation into which it's
+   * loading is released when it returns.
+   */
+  @Override
+  public void close() {
+    synchronized (windowLock) {
+      closed = true;
+      windowLock.notifyAll();
+      if (!loading) {
+        releaseFragments();
+      }
+    }
+    readHead.allocation = null;
+  }
+
+  @Override
+  public int skip(int skipLength) {
+    return read(null, null, 0, skipLength);
+  }
+
+  @Override
+  public int read(ByteBuffer target, int readLength) {
+    return read(target, null, 0, readLength);
+  }
+
+  @Override
+  public int read(byte[] target, int offset, int readLength) {
+    return read(null, target, offset, readLength);
+  }
+
+  /**
+   * Reads data to either a target {@link ByteBuffer}, or to a target byte array at a specified
+   * offset. Allocations whose data has been fully read are released.
+   */
+  private int read(ByteBuffer target, byte[] targetArray, int targetArrayOffset, int readLength) {
+    if (isEndOfStream()) {
+      return -1;
+    }
+    int bytesToRead = (int) Math.min(loadPosition - readPosition, readLength);
+    int bytesRead = 0;
+    while (bytesRead < bytesToRead) {
+      long position = readPosition;
+      int fragmentOffset = (int) (position % fragmentLength);
+      int fragmentIndex = getFragmentIndex(position);
+      if (readHead.allocation == null) {
+        readHead.start(fragments[fragmentIndex]);
+      }
+      int bufferReadLength = Math.min(Math.min(readHead.remaining, bytesToRead - bytesRead),
+          fragmentLength - fragmentOffset);
+      byte[][] buffers = readHead.allocation.getBuffers();
+      if (buffers == null && (target != null || targetArray != null)) {
+        ByteBuffer source = readByteBuffers[fragmentIndex][readHead.index];
+        source.clear();
+        source.position(readHead.offset);
+        source.limit(readHead.offset + bufferReadLength);
+        if (target != null) {
+          target.put(source);
+        } else {
+          source.get(targetArray, targetArrayOffset, bufferReadLength);
+          targetArrayOffset += bufferReadLength;
+        }
+      } else if (target != null) {
+        target.put(buffers[readHead.index], readHead.offset, bufferReadLength);
+      } else if (targetArray != null) {
+        System.arraycopy(buffers[readHead.index], readHead.offset, targetArray,
+            targetArrayOffset, bufferReadLength);
+        targetArrayOffset += bufferReadLength;
+      }
+      bytesRead += bufferReadLength;
+      if (fragmentOffset + bufferReadLength == fragmentLength) {
+        // We've read the whole of the current allocation, so release it and free up its slot.
+        fragments[fragmentIndex].release();
+        fragments[fragmentIndex] = null;
+        readByteBuffers[fragmentIndex] = null;
+        readHead.allocation = null;
+        synchronized (windowLock) {
+          readPosition = position + bufferReadLength;
+          windowLock.notifyAll();
+        }
+      } else {
+        readHead.advance(bufferReadLength);
+        readPosition = position + bufferReadLength;
+      }
+    }
+    return bytesRead;
+  }
+
+  // {@link Loadable} implementation.
+
+  @Override
+  public void cancelLoad() {
+    synchronized (windowLock) {
+      loadCanceled = true;
+      windowLock.notifyAll();
+    }
+  }
+
+  @Override
+  public boolean isLoadCanceled() {
+    return loadCanceled;
+  }
+
+  @Override
+  public void load() throws IOException, InterruptedException {
+    synchronized (windowLock) {
+      if (loadCanceled || closed || isLoadFinished()) {
+        // The load was canceled, the stream was closed, or the load is already complete.
+        return;
+      }
+      loading = true;
+    }
+    try {
+      if (loadPosition == 0) {
+        resolvedLength = dataSource.open(dataSpec);
+      } else {
+        long remainingLength = resolvedLength == DataSpec.LENGTH_UNBOUNDED
+            ? DataSpec.LENGTH_UNBOUNDED : resolvedLength - loadPosition;
+        dataSource.open(new DataSpec(dataSpec.uri, dataSpec.position + loadPosition,
+            remainingLength, dataSpec.key));
+      }
+
+      while (!loadCanceled && !closed
+          && (resolvedLength == DataSpec.LENGTH_UNBOUNDED || loadPosition < resolvedLength)) {
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+        if (writeHead.allocation == null && !startWriteFragment()) {
+          // The load was canceled, or the stream was closed, whilst waiting for space.
+          break;
+        }
+        int fragmentOffset = (int) (loadPosition % fragmentLength);
+        int writeLength = Math.min(writeHead.remaining, fragmentLength - fragmentOffset);
+        if (resolvedLength != DataSpec.LENGTH_UNBOUNDED) {
+          writeLength = (int) Math.min(writeLength, resolvedLength - loadPosition);
+        }
+        byte[][] buffers = writeHead.allocation.getBuffers();
+        int read;
+        if (buffers != null) {
+          read = dataSource.read(buffers[writeHead.index], writeHead.offset, writeLength);
+        } else {
+          read = readToByteBuffer(writeHead.allocation.getByteBuffers()[writeHead.index],
+              writeHead.offset, writeLength);
+        }
+        if (read > 0) {
+          if (fragmentOffset + read == fragmentLength) {
+            writeHead.allocation = null;
+          } else {
+            writeHead.advance(read);
+          }
+          loadPosition += read;
+        } else if (resolvedLength == DataSpec.LENGTH_UNBOUNDED) {
+          // We've reached the end of data whose length was unknown.
+          resolvedLength = loadPosition;
+        } else {
+          throw new DataSourceStreamLoadException(
+              new UnexpectedLengthException(resolvedLength, loadPosition));
+        }
+      }
+    } finally {
+      Util.closeQuietly(dataSource);
+      synchronized (windowLock) {
+        loading = false;
+        if (closed) {
+          // The stream was closed during the load, and so couldn't release the allocations.
+          writeHead.allocation = null;
+          releaseFragments();
+        }
+      }
+    }
+  }
+
+  /**
+   * Blocks until the slot for the allocation containing {@link #loadPosition} is free, and then
+   * obtains an allocation for it.
+   *
+   * @return True if an allocation was obtained. False if the load was canceled, or the stream was
+   *     closed, whilst waiting.
+   */
+  private boolean startWriteFragment() throws InterruptedException {
+    long capacity = (long) fragments.length * fragmentLength;
+    int fragmentIndex = getFragmentIndex(loadPosition);
+    Allocation allocation;
+    synchronized (windowLock) {
+      while (!loadCanceled && !closed
+          && loadPosition - (readPosition - readPosition % fragmentLength) >= capacity) {
+        windowLock.wait();
+      }
+      if (loadCanceled || closed) {
+        return false;
+      }
+      // Allocate whilst holding the lock, so that no allocation is made after the stream has been
+      // closed. Any allocation made before then is released when the load returns.
+      allocation = allocator.allocate(fragmentLength);
+      fragments[fragmentIndex] = allocation;
+    }
+    ByteBuffer[] byteBuffers = allocation.getByteBuffers();
+    if (byteBuffers != null) {
+      // The read head uses duplicates, so that its position and limit manipulation is
+      // independent of that performed by the load.
+      ByteBuffer[] duplicates = new ByteBuffer[byteBuffers.length];
+      for (int i = 0; i < byteBuffers.length; i++) {
+        duplicates[i] = byteBuffers[i].duplicate();
+      }
+      readByteBuffers[fragmentIndex] = duplicates;
+    }
+    writeHead.start(allocation);
+    return true;
+  }
+
+  /**
+   * Releases all of the allocations. Must be called whilst holding {@link #windowLock}, and not
+   * during a load.
+   */
+  private void releaseFragments() {
+    for (int i = 0; i < fragments.length; i++) {
+      if (fragments[i] != null) {
+        fragments[i].release();
+        fragments[i] = null;
+        readByteBuffers[i] = null;
+      }
+    }
+  }
+
+  private int getFragmentIndex(long position) {
+    return (int) ((position / fragmentLength) % fragments.length);
+  }
+
+  /**
+   * Reads from the {@link DataSource} into a {@link ByteBuffer} fragment, via {@link #scratch}.
+   */
+  private int readToByteBuffer(ByteBuffer target, int targetOffset, int readLength)
+      throws IOException {
+    if (scratch == null) {
+      scratch = new byte[SCRATCH_LENGTH];
+    }
+    int read = dataSource.read(scratch, 0, Math.min(readLength, scratch.length));
+    if (read > 0) {
+      target.clear();
+      target.position(targetOffset);
+      target.put(scratch, 0, read);
+    }
+    return read;
+  }
+
+  /**
+   * Tracks a position within the fragments of an {@link Allocation}.
+   */
+  private static class Head {
+
+    private Allocation allocation;
+    private int index;
+    private int offset;
+    private int remaining;
+
+    public void start(Allocation allocation) {
+      this.allocation = allocation;
+      index = 0;
+      offset = allocation.getFragmentOffset(0);
+      remaining = allocation.getFragmentLength(0);
+    }
+
+    public void advance(int length) {
+      offset += length;
+      remaining -= length;
+      if (remaining == 0) {
+        index++;
+        offset = allocation.getFragmentOffset(index);
+        remaining = allocation.getFragmentLength(index);
+      }
+    }
+
+  }
+
+}
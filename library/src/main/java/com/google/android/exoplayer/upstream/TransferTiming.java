@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+/**
+ * A breakdown of the timing of a single transfer.
+ * <p>
+ * Timestamps are obtained from {@link android.os.SystemClock#elapsedRealtime()}, and are equal to
+ * {@link #UNKNOWN_TIME} if the corresponding event was not measured or did not occur.
+ */
+public final class TransferTiming {
+
+  /**
+   * Indicates that a timestamp is unknown.
+   */
+  public static final long UNKNOWN_TIME = -1;
+
+  /**
+   * Defines the data that was requested.
+   */
+  public final DataSpec dataSpec;
+  /**
+   * The time at which the request was started.
+   */
+  public final long requestStartTimeMs;
+  /**
+   * The time at which the connection to the server was established.
+   */
+  public final long connectTimeMs;
+  /**
+   * The time at which the response headers were received. For sources that do not report this
+   * event directly, the time at which the source finished opening.
+   */
+  public final long responseHeadersTimeMs;
+  /**
+   * The time at which the first byte of data was received.
+   */
+  public final long firstByteTimeMs;
+  /**
+   * The time at which the transfer ended.
+   */
+  public final long endTimeMs;
+  /**
+   * The number of bytes transferred.
+   */
+  public final long bytesTransferred;
+
+  public TransferTiming(DataSpec dataSpec, long requestStartTimeMs, long connectTimeMs,
+      long responseHeadersTimeMs, long firstByteTimeMs, long endTimeMs, long bytesTransferred) {
+    this.dataSpec = dataSpec;
+    this.requestStartTimeMs = requestStartTimeMs;
+    this.connectTimeMs = connectTimeMs;
+    this.responseHeadersTimeMs = responseHeadersTimeMs;
+    this.firstByteTimeMs = firstByteTimeMs;
+    this.endTimeMs = endTimeMs;
+    this.bytesTransferred = bytesTransferred;
+  }
+
+}
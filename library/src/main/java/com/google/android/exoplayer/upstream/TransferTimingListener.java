@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+/**
+ * A {@link TransferListener} that's also notified of the timing of each transfer.
+ * <p>
+ * Only sources that measure a breakdown of the timing of each transfer, such as
+ * {@link HttpDataSource}, notify listeners of it. Other sources treat an instance as a plain
+ * {@link TransferListener}.
+ */
+public interface TransferTimingListener extends TransferListener {
+
+  /**
+   * Invoked immediately after {@link #onTransferEnd()}.
+   *
+   * @param timing The timing of the transfer that ended.
+   */
+  void onTransferTiming(TransferTiming timing);
+
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream;
+
+import com.google.android.exoplayer.util.Assertions;
+import com.google.android.exoplayer.util.Util;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A {@link DataSink} that writes to a downstream {@link DataSink} on a background thread.
+ * <p>
+ * Calls to {@link #write(byte[], int, int)} copy data into a bounded queue of buffers obtained from
+ * an {@link Allocator}, and return without waiting for it to be written. The background thread
+ * opens the downstream sink, and writes each batch of buffers that have been queued since its
+ * previous batch. Data is handed to the background thread as soon as it's idle, so that a reader
+ * following data as it's written (for example one reading a cache file that's being written by a
+ * {@link com.google.android.exoplayer.upstream.cache.CacheDataSink}) isn't kept waiting. Whilst
+ * it's busy, writes are accumulated into whole buffers.
+ * <p>
+ * The calling thread never blocks on a write. If the queue is full then the remainder of the data
+ * is dropped, and the downstream sink is closed as soon as the data queued before it has been
+ * written. The data passed to the downstream sink is therefore always a prefix of the data passed
+ * to this sink. {@link #close()} blocks until the downstream sink has been closed, so anything that
+ * the downstream sink does on close (for example committing a cache file) happens before this sink
+ * is closed.
+ * <p>
+ * An {@link IOException} thrown by the downstream sink is thrown by the next call to
+ * {@link #write(byte[], int, int)} or {@link #close()}. Any data written after the exception is
+ * dropped.
+ */
+public final class WriteBehindDataSink implements DataSink {
+
+  /**
+   * Runs the background work of all instances, so that threads are reused across opens.
+   */
+  private static final ExecutorService EXECUTOR = Util.newCachedThreadPool("WriteBehindDataSink");
+
+  private final DataSink downstream;
+  private final Allocator allocator;
+  private final int queueLength;
+
+  private Allocation allocation;
+  private WriteBehind writeBehind;
+
+  /**
+   * @param downstream The downstream {@link DataSink}.
+   * @param allocator The {@link Allocator} from which buffers are obtained. The allocations must be
+   *     backed by byte arrays, as is the case for {@link BufferPool}.
+   * @param queueLength The maximum number of bytes that can be queued for the downstream sink.
+   */
+  public WriteBehindDataSink(DataSink downstream, Allocator allocator, int queueLength) {
+    Assertions.checkArgument(queueLength > 0);
+    this.downstream = Assertions.checkNotNull(downstream);
+    this.allocator = Assertions.checkNotNull(allocator);
+    this.queueLength = queueLength;
+  }
+
+  @Override
+  public DataSink open(DataSpec dataSpec) {
+    Assertions.checkState(writeBehind == null);
+    allocation = allocator.allocate(queueLength);
+    Assertions.checkState(allocation.getBuffers() != null);
+    writeBehind = new WriteBehind(downstream, dataSpec, allocation);
+    EXECUTOR.execute(writeBehind);
+    return this;
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    writeBehind.write(buffer, offset, length);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (writeBehind == null) {
+      return;
+    }
+    boolean interrupted = false;
+    try {
+      // The background thread uses the allocation, and the downstream sink must be closed before
+      // we return, so we must wait for the thread to finish.
+      interrupted = writeBehind.finishAndBlock();
+      writeBehind.maybeThrowError();
+    } finally {
+      writeBehind = null;
+      allocation.release();
+      allocation = null;
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Writes the fragments of an allocation, which are used as a circular queue, to a downstream
+   * sink.
+   */
+  private static final class WriteBehind implements Runnable {
+
+    private final DataSink dataSink;
+    private final DataSpec dataSpec;
+    private final byte[][] buffers;
+    private final int[] fragmentOffsets;
+    private final int[] fragmentLengths;
+    private final int[] writeLengths;
+
+    // Accessed only by the calling thread.
+    private int writePosition;
+
+    private int readIndex;
+    private int writeIndex;
+    private int filledCount;
+    private IOException error;
+    private boolean errorThrown;
+    private boolean dropping;
+    private boolean closing;
+    private boolean finished;
+
+    /**
+     * @param dataSink The downstream sink, which has not yet been opened.
+     * @param dataSpec The {@link DataSpec} with which to open the downstream sink.
+     * @param allocation The allocation whose fragments are used as the queue.
+     */
+    public WriteBehind(DataSink dataSink, DataSpec dataSpec, Allocation allocation) {
+      this.dataSink = dataSink;
+      this.dataSpec = dataSpec;
+      buffers = allocation.getBuffers();
+      fragmentOffsets = new int[buffers.length];
+      fragmentLengths = new int[buffers.length];
+      for (int i = 0; i < buffers.length; i++) {
+        fragmentOffsets[i] = allocation.getFragmentOffset(i);
+        fragmentLengths[i] = allocation.getFragmentLength(i);
+      }
+      writeLengths = new int[buffers.length];
+    }
+
+    @Override
+    public void run() {
+      boolean opened = false;
+      try {
+        dataSink.open(dataSpec);
+        opened = true;
+        while (true) {
+          int index;
+          int count;
+          synchronized (this) {
+            while (filledCount == 0 && !closing) {
+              waitUninterruptibly();
+            }
+            if (filledCount == 0) {
+              break;
+            }
+            index = readIndex;
+            count = filledCount;
+          }
+          // The fragments in the batch cannot be modified by the calling thread until filledCount
+          // is decremented, so it's safe to read from them without holding the lock.
+          for (int i = 0; i < count; i++) {
+            int fragmentIndex = (index + i) % buffers.length;
+            dataSink.write(buffers[fragmentIndex], fragmentOffsets[fragmentIndex],
+                writeLengths[fragmentIndex]);
+          }
+          synchronized (this) {
+            readIndex = (readIndex + count) % buffers.length;
+            filledCount -= count;
+          }
+        }
+      } catch (IOException e) {
+        synchronized (this) {
+          error = e;
+          dropping = true;
+        }
+      } finally {
+        try {
+          if (opened) {
+            dataSink.close();
+          }
+        } catch (IOException e) {
+          synchronized (this) {
+            if (error == null) {
+              error = e;
+            }
+          }
+        } finally {
+          synchronized (this) {
+            finished = true;
+            notifyAll();
+          }
+        }
+      }
+    }
+
+    /**
+     * Copies data into the queue. Drops the data if the queue is full, or if a previous write was
+     * dropped.
+     */
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+      int index;
+      synchronized (this) {
+        maybeThrowError();
+        if (dropping) {
+          return;
+        }
+        index = writeIndex;
+      }
+      int bytesCopied = 0;
+      while (bytesCopied < length) {
+        if (writePosition == 0) {
+          synchronized (this) {
+            if (filledCount == buffers.length) {
+              // The downstream sink can't keep up. Drop the rest of the data, and close the sink
+              // once it's written what's already queued.
+              dropping = true;
+              closing = true;
+              notifyAll();
+              return;
+            }
+          }
+        }
+        // The fragment at index is not visible to the background thread until filledCount is
+        // incremented, so it's safe to write into it without holding the lock.
+        int copyLength = Math.min(length - bytesCopied, fragmentLengths[index] - writePosition);
+        System.arraycopy(buffer, offset + bytesCopied, buffers[index],
+            fragmentOffsets[index] + writePosition, copyLength);
+        bytesCopied += copyLength;
+        writePosition += copyLength;
+        if (writePosition == fragmentLengths[index]) {
+          index = handOver(true);
+        }
+      }
+      if (writePosition > 0) {
+        handOver(false);
+      }
+    }
+
+    /**
+     * Marks the end of the data, and blocks until the background thread has finished.
+     *
+     * @return Whether the calling thread was interrupted whilst blocking.
+     */
+    public synchronized boolean finishAndBlock() {
+      if (writePosition > 0 && !dropping) {
+        handOver(true);
+      }
+      closing = true;
+      notifyAll();
+      boolean interrupted = false;
+      while (!finished) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      return interrupted;
+    }
+
+    /**
+     * Throws the error thrown by the downstream sink, if it has not already been thrown.
+     */
+    public synchronized void maybeThrowError() throws IOException {
+      if (error != null && !errorThrown) {
+        errorThrown = true;
+        throw error;
+      }
+    }
+
+    /**
+     * Hands the partially or fully written fragment at the write index to the background thread.
+     *
+     * @param force If false, the fragment is only handed over if the background thread is idle.
+     * @return The write index, which is advanced if the fragment was handed over.
+     */
+    private synchronized int handOver(boolean force) {
+      if (force || filledCount == 0) {
+        writeLengths[writeIndex] = writePosition;
+        writeIndex = (writeIndex + 1) % buffers.length;
+        writePosition = 0;
+        filledCount++;
+        notifyAll();
+      }
+      return writeIndex;
+    }
+
+    private void waitUninterruptibly() {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        // Nothing interrupts the background thread.
+      }
+    }
+
+  }
+
+}
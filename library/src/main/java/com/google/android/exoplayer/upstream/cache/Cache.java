@@ -137,6 +137,31 @@ public interface Cache {
    */
   CacheSpan startReadWriteNonBlocking(String key, long position);
 
+  /**
+   * Same as {@link #startReadWrite(String, long)}, except that a returned hole {@link CacheSpan}
+   * will not extend beyond {@code position + length}. Holes are also limited so as not to overlap
+   * holes held by other callers, so callers that write non-overlapping ranges of the same key
+   * may hold locks concurrently. The caller must only write data within the returned hole.
+   *
+   * @param key The key of the data being requested.
+   * @param position The position of the data being requested.
+   * @param length The length of the data being requested, or -1 if it's unbounded.
+   * @return The {@link CacheSpan}.
+   * @throws InterruptedException
+   */
+  CacheSpan startReadWrite(String key, long position, long length) throws InterruptedException;
+
+  /**
+   * Same as {@link #startReadWrite(String, long, long)}. However, if the requested position is
+   * locked, then instead of blocking, this method will return null as the {@link CacheSpan}.
+   *
+   * @param key The key of the data being requested.
+   * @param position The position of the data being requested.
+   * @param length The length of the data being requested, or -1 if it's unbounded.
+   * @return The {@link CacheSpan}. Or null if the requested position is locked.
+   */
+  CacheSpan startReadWriteNonBlocking(String key, long position, long length);
+
   /**
    * Obtains a cache file into which data can be written. Must only be called when holding a
    * corresponding hole {@link CacheSpan} obtained from {@link #startReadWrite(String, long)}.
@@ -157,6 +182,28 @@ public interface Cache {
    */
   void commitFile(File file);
 
+  /**
+   * Records the length of the data that has been written to a file obtained from
+   * {@link #startFile(String, long, long)}, so that readers can read the data before the file is
+   * committed. Should be called when the file is created, and after each write to it.
+   *
+   * @param file The file.
+   * @param length The length of the data that has been written to the file.
+   */
+  void setPartialFileLength(File file, long length);
+
+  /**
+   * Returns the file being written that contains, or is expected to contain, the data at a given
+   * position. A reader that would otherwise block on, or bypass, a hole locked by a writer can
+   * instead follow the file as it's written, using
+   * {@link PartialCacheFile#blockUntilLengthExceeds(long)} to wait for data.
+   *
+   * @param key The cache key for the data.
+   * @param position The position of the data.
+   * @return The {@link PartialCacheFile}, or null if no such file is being written.
+   */
+  PartialCacheFile getPartialFile(String key, long position);
+
   /**
    * Releases a {@link CacheSpan} obtained from {@link #startReadWrite(String, long)} which
    * corresponded to a hole in the cache.
@@ -182,4 +229,33 @@ public interface Cache {
   */
   boolean isCached(String key, long position, long length);
 
+  /**
+   * Returns the length of the cached data at the start of a range, or if the start of the range is
+   * not cached, the negated length of the hole at the start of the range. The cached and uncached
+   * ranges of a key can be enumerated by repeated calls, advancing the position by the absolute
+   * value of the result each time.
+   * <p>
+   * The result is computed from an index of the cached ranges that's maintained as spans are added
+   * and removed, and so this method is cheap enough to poll for many keys.
+   *
+   * @param key The cache key for the data.
+   * @param position The starting position of the data.
+   * @param length The length of the data, or -1 if it's unbounded.
+   * @return The length of the cached data or hole at the start of the range, which is capped at
+   *     {@code length}, or at {@link Long#MAX_VALUE} if the length is unbounded.
+   */
+  long getCachedLength(String key, long position, long length);
+
+  /**
+   * Returns the number of bytes within a range that are cached. Like
+   * {@link #getCachedLength(String, long, long)}, this method is cheap enough to poll for many
+   * keys.
+   *
+   * @param key The cache key for the data.
+   * @param position The starting position of the data.
+   * @param length The length of the data, or -1 if it's unbounded.
+   * @return The number of bytes within the range that are cached.
+   */
+  long getCachedBytes(String key, long position, long length);
+
 }
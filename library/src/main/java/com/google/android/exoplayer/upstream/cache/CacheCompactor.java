@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream.cache;
+
+import com.google.android.exoplayer.util.Assertions;
+
+/**
+ * Compacts the spans of a {@link SimpleCache} on a low priority background thread, by merging
+ * adjacent spans for each key into larger files.
+ * <p>
+ * Caches populated by adaptive playbacks tend to accumulate many small files, one for each chunk.
+ * Compacting them reduces the number of files that need to be opened to read the content back, and
+ * the number of entries in the cache directory.
+ */
+public final class CacheCompactor {
+
+  /**
+   * The default maximum length of a file created by compaction.
+   */
+  public static final long DEFAULT_MAX_FILE_LENGTH = 16 * 1024 * 1024;
+
+  private final CachePassRunner runner;
+
+  private volatile int compactedFileCount;
+
+  /**
+   * @param cache The cache to compact.
+   */
+  public CacheCompactor(SimpleCache cache) {
+    this(cache, DEFAULT_MAX_FILE_LENGTH);
+  }
+
+  /**
+   * @param cache The cache to compact.
+   * @param maxFileLength The maximum length of a file created by compaction.
+   */
+  public CacheCompactor(final SimpleCache cache, final long maxFileLength) {
+    Assertions.checkArgument(maxFileLength > 0);
+    runner = new CachePassRunner(cache, "CacheCompactor", 0, new CachePassRunner.KeyHandler() {
+      @Override
+      public void handleKey(String key) {
+        compactedFileCount += cache.compact(key, maxFileLength);
+      }
+    });
+  }
+
+  /**
+   * Starts a single compaction pass over every key in the cache. Must not be called more than
+   * once.
+   */
+  public void start() {
+    runner.start();
+  }
+
+  /**
+   * Cancels the compaction pass. Compaction stops after the key currently being compacted.
+   */
+  public void cancel() {
+    runner.cancel();
+  }
+
+  /**
+   * Returns whether the compaction pass has finished, either because every key has been compacted
+   * or because it was canceled.
+   */
+  public boolean isFinished() {
+    return runner.isFinished();
+  }
+
+  /**
+   * Returns the number of files eliminated by the compaction pass so far.
+   */
+  public int getCompactedFileCount() {
+    return compactedFileCount;
+  }
+
+}
@@ -20,22 +20,27 @@ import com.google.android.exoplayer.upstream.DataSpec;
 import com.google.android.exoplayer.util.Assertions;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 
 /**
  * Writes data into a cache.
+ * <p>
+ * If the cache is able to have data written in place, then data whose length is known is written
+ * directly into the space reserved for it by the cache. Otherwise the data is written into a file
+ * obtained from {@link Cache#startFile(String, long, long)}.
  */
 public class CacheDataSink implements DataSink {
 
   private final Cache cache;
+  private final InPlaceWritableCache inPlaceCache;
   private final long maxCacheFileSize;
 
   private DataSpec dataSpec;
   private File file;
-  private FileOutputStream outputStream;
-  private long outputStreamBytesWritten;
+  private PartialCacheFile region;
+  private RandomAccessFile output;
+  private long outputBytesWritten;
   private long dataSpecBytesWritten;
 
   /**
@@ -58,6 +63,7 @@ public class CacheDataSink implements DataSink {
    */
   public CacheDataSink(Cache cache, long maxCacheFileSize) {
     this.cache = Assertions.checkNotNull(cache);
+    this.inPlaceCache = cache instanceof InPlaceWritableCache ? (InPlaceWritableCache) cache : null;
     this.maxCacheFileSize = maxCacheFileSize;
   }
 
@@ -66,9 +72,9 @@ public class CacheDataSink implements DataSink {
     try {
       this.dataSpec = dataSpec;
       dataSpecBytesWritten = 0;
-      openNextOutputStream();
+      openNextOutput();
       return this;
-    } catch (FileNotFoundException e) {
+    } catch (IOException e) {
       throw new CacheDataSinkException(e);
     }
   }
@@ -78,16 +84,24 @@ public class CacheDataSink implements DataSink {
     try {
       int bytesWritten = 0;
       while (bytesWritten < length) {
-        if (outputStreamBytesWritten == maxCacheFileSize) {
-          closeCurrentOutputStream();
-          openNextOutputStream();
+        if (outputBytesWritten == maxCacheFileSize) {
+          // Start the next file before committing the current one, so that a reader following the
+          // data as it's written always finds a file to follow.
+          RandomAccessFile previousOutput = output;
+          File previousFile = file;
+          PartialCacheFile previousRegion = region;
+          long previousBytesWritten = outputBytesWritten;
+          openNextOutput();
+          closeOutput(previousOutput, previousFile, previousRegion, previousBytesWritten);
         }
         int bytesToWrite = (int) Math.min(length - bytesWritten,
-            maxCacheFileSize - outputStreamBytesWritten);
-        outputStream.write(buffer, offset + bytesWritten, bytesToWrite);
+            maxCacheFileSize - outputBytesWritten);
+        output.write(buffer, offset + bytesWritten, bytesToWrite);
         bytesWritten += bytesToWrite;
-        outputStreamBytesWritten += bytesToWrite;
+        outputBytesWritten += bytesToWrite;
         dataSpecBytesWritten += bytesToWrite;
+        // The file is unbuffered, so the data can now be read by readers following the file.
+        setPartialLength(outputBytesWritten);
       }
     } catch (IOException e) {
       throw new CacheDataSinkException(e);
@@ -97,26 +111,61 @@ public class CacheDataSink implements DataSink {
   @Override
   public void close() throws CacheDataSinkException {
     try {
-      closeCurrentOutputStream();
+      closeCurrentOutput();
     } catch (IOException e) {
       throw new CacheDataSinkException(e);
     }
   }
 
-  private void openNextOutputStream() throws FileNotFoundException {
-    file = cache.startFile(dataSpec.key, dataSpec.absoluteStreamPosition + dataSpecBytesWritten,
-        Math.min(dataSpec.length - dataSpecBytesWritten, maxCacheFileSize));
-    outputStream = new FileOutputStream(file);
-    outputStreamBytesWritten = 0;
+  private void openNextOutput() throws IOException {
+    String key = dataSpec.key;
+    long position = dataSpec.absoluteStreamPosition + dataSpecBytesWritten;
+    long length = Math.min(dataSpec.length - dataSpecBytesWritten, maxCacheFileSize);
+    region = null;
+    if (inPlaceCache != null && dataSpec.length != DataSpec.LENGTH_UNBOUNDED && length > 0) {
+      region = inPlaceCache.startRegion(key, position, length);
+    }
+    if (region != null) {
+      file = region.file;
+      output = new RandomAccessFile(file, "rw");
+      output.seek(region.fileOffset);
+    } else {
+      file = cache.startFile(key, position, length);
+      output = new RandomAccessFile(file, "rw");
+      // Discard any stale data in the file, since its length is the length that's committed.
+      output.setLength(0);
+    }
+    outputBytesWritten = 0;
+    setPartialLength(0);
+  }
+
+  private void setPartialLength(long length) {
+    if (region != null) {
+      inPlaceCache.setPartialRegionLength(region, length);
+    } else {
+      cache.setPartialFileLength(file, length);
+    }
+  }
+
+  private void closeCurrentOutput() throws IOException {
+    if (output != null) {
+      try {
+        closeOutput(output, file, region, outputBytesWritten);
+      } finally {
+        output = null;
+        file = null;
+        region = null;
+      }
+    }
   }
 
-  private void closeCurrentOutputStream() throws IOException {
-    if (outputStream != null) {
-      outputStream.flush();
-      outputStream.close();
-      outputStream = null;
+  private void closeOutput(RandomAccessFile output, File file, PartialCacheFile region,
+      long bytesWritten) throws IOException {
+    output.close();
+    if (region != null) {
+      inPlaceCache.commitRegion(region, bytesWritten);
+    } else {
       cache.commitFile(file);
-      file = null;
     }
   }
 
@@ -41,6 +41,7 @@ public final class CacheDataSource implements DataSource {
 
   private final boolean blockOnCache;
   private final boolean ignoreCacheOnError;
+  private final boolean readPartialFiles;
 
   private DataSource currentDataSource;
   private Uri uri;
@@ -62,12 +63,13 @@ public final class CacheDataSource implements DataSource {
   /**
    * Constructs an instance with default {@link DataSource} and {@link DataSink} instances for
    * reading and writing the cache. The sink is configured to fragment data such that no single
-   * cache file is greater than maxCacheFileSize bytes.
+   * cache file is greater than maxCacheFileSize bytes. Data that's being written to the cache by
+   * other instances is read as it's written.
    */
   public CacheDataSource(Cache cache, DataSource upstream, boolean blockOnCache,
       boolean ignoreCacheOnError, long maxCacheFileSize) {
     this(cache, upstream, new FileDataSource(), new CacheDataSink(cache, maxCacheFileSize),
-        blockOnCache, ignoreCacheOnError);
+        blockOnCache, ignoreCacheOnError, true);
   }
 
   /**
@@ -87,10 +89,36 @@ public final class CacheDataSource implements DataSource {
    */
   public CacheDataSource(Cache cache, DataSource upstream, DataSource cacheReadDataSource,
       DataSink cacheWriteDataSink, boolean blockOnCache, boolean ignoreCacheOnError) {
+    this(cache, upstream, cacheReadDataSource, cacheWriteDataSink, blockOnCache,
+        ignoreCacheOnError, false);
+  }
+
+  /**
+   * Constructs an instance with arbitrary {@link DataSource} and {@link DataSink} instances for
+   * reading and writing the cache.
+   *
+   * @param cache The cache.
+   * @param upstream A {@link DataSource} for reading data not in the cache.
+   * @param cacheReadDataSource A {@link DataSource} for reading data from the cache.
+   * @param cacheWriteDataSink A {@link DataSink} for writing data to the cache.
+   * @param blockOnCache A flag indicating whether we will block reads if the cache key is locked.
+   *     If this flag is false, then we will read from upstream if the cache key is locked.
+   * @param ignoreCacheOnError Whether the cache is bypassed following any cache related error. If
+   *     true, then cache related exceptions may be thrown for one cycle of open, read and close
+   *     calls. Subsequent cycles of these calls will then bypass the cache.
+   * @param readPartialFiles Whether data that's being written to a locked hole by another writer
+   *     is read as it's written, rather than blocking or reading from upstream. Files are read
+   *     directly rather than through {@code cacheReadDataSource}, so this should only be true if
+   *     the data is not transformed before it's written to disk.
+   */
+  public CacheDataSource(Cache cache, DataSource upstream, DataSource cacheReadDataSource,
+      DataSink cacheWriteDataSink, boolean blockOnCache, boolean ignoreCacheOnError,
+      boolean readPartialFiles) {
     this.cache = cache;
     this.cacheReadDataSource = cacheReadDataSource;
     this.blockOnCache = blockOnCache;
     this.ignoreCacheOnError = ignoreCacheOnError;
+    this.readPartialFiles = readPartialFiles;
     this.upstreamDataSource = upstream;
     if (cacheWriteDataSink != null) {
       this.cacheWriteDataSource = new TeeDataSource(upstream, cacheWriteDataSink);
@@ -151,21 +179,39 @@ public final class CacheDataSource implements DataSource {
 
   /**
    * Opens the next source. If the cache contains data spanning the current read position then
-   * {@link #cacheReadDataSource} is opened to read from it. Else {@link #upstreamDataSource} is
-   * opened to read from the upstream source and write into the cache.
+   * {@link #cacheReadDataSource} is opened to read from it. Else if {@link #readPartialFiles} is
+   * true and the data is being written into the cache by another writer, then a
+   * {@link PartialCacheFileDataSource} is opened to read it as it's written. Else
+   * {@link #upstreamDataSource} is opened to read from the upstream source and write into the
+   * cache.
+   * <p>
+   * The cache doesn't check that a cached span's file exists when it's looked up. If opening
+   * {@link #cacheReadDataSource} fails because the file has been deleted, then the span is removed
+   * from the cache and the data is looked up again.
    */
   private void openNextSource() throws IOException {
     try {
       DataSpec dataSpec;
       CacheSpan span;
+      PartialCacheFile partialFile = null;
       if (ignoreCache) {
         span = null;
-      } else if (blockOnCache) {
-        span = cache.startReadWrite(key, readPosition);
       } else {
-        span = cache.startReadWriteNonBlocking(key, readPosition);
+        span = cache.startReadWriteNonBlocking(key, readPosition, bytesRemaining);
+        if (span == null && readPartialFiles) {
+          partialFile = cache.getPartialFile(key, readPosition);
+        }
+        if (span == null && partialFile == null && blockOnCache) {
+          span = cache.startReadWrite(key, readPosition, bytesRemaining);
+        }
       }
-      if (span == null) {
+      if (partialFile != null) {
+        // The data is being written into the cache by another writer. Read it as it's written.
+        Uri fileUri = Uri.fromFile(partialFile.file);
+        long dataOffset = readPosition - partialFile.position;
+        dataSpec = new DataSpec(fileUri, readPosition, bytesRemaining, key, dataOffset);
+        currentDataSource = new PartialCacheFileDataSource(partialFile);
+      } else if (span == null) {
         // The data is locked in the cache, or we're ignoring the cache. Bypass the cache and read
         // from upstream.
         currentDataSource = upstreamDataSource;
@@ -173,9 +219,9 @@ public final class CacheDataSource implements DataSource {
       } else if (span.isCached) {
         // Data is cached, read from cache.
         Uri fileUri = Uri.fromFile(span.file);
-        long filePosition = readPosition - span.position;
-        long length = Math.min(span.length - filePosition, bytesRemaining);
-        dataSpec = new DataSpec(fileUri, readPosition, length, key, filePosition);
+        long spanOffset = readPosition - span.position;
+        long length = Math.min(span.length - spanOffset, bytesRemaining);
+        dataSpec = new DataSpec(fileUri, readPosition, length, key, span.fileOffset + spanOffset);
         currentDataSource = cacheReadDataSource;
       } else {
         // Data is not cached, and data is not locked, read from upstream with cache backing.
@@ -185,7 +231,19 @@ public final class CacheDataSource implements DataSource {
         currentDataSource = cacheWriteDataSource != null ? cacheWriteDataSource
             : upstreamDataSource;
       }
-      currentDataSource.open(dataSpec);
+      try {
+        currentDataSource.open(dataSpec);
+      } catch (IOException e) {
+        if (currentDataSource != cacheReadDataSource || span.file.exists()) {
+          throw e;
+        }
+        // The cache file has been deleted from under us. Remove the stale span from the cache and
+        // look up the data again.
+        currentDataSource = null;
+        cacheReadDataSource.close();
+        cache.removeSpan(span);
+        openNextSource();
+      }
     } catch (InterruptedException e) {
       // Should never happen.
       throw new RuntimeException(e);
@@ -209,6 +267,7 @@ public final class CacheDataSource implements DataSource {
 
   private void handleBeforeThrow(IOException exception) {
     if (ignoreCacheOnError && (currentDataSource == cacheReadDataSource
+        || currentDataSource instanceof PartialCacheFileDataSource
         || exception instanceof CacheDataSinkException)) {
       // Ignore the cache from now on.
       ignoreCache = true;
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream.cache;
+
+import com.google.android.exoplayer.util.Assertions;
+
+import android.os.Process;
+
+import java.util.Iterator;
+
+/**
+ * Runs passes over every key in a {@link SimpleCache} on a low priority background thread, either
+ * once or periodically. Used by {@link CacheCompactor} and {@link CacheVerifier}, which define what
+ * is done for each key.
+ */
+/* package */ final class CachePassRunner {
+
+  /**
+   * Handles the keys visited by a pass.
+   */
+  public interface KeyHandler {
+
+    /**
+     * Handles a key. Called on the background thread.
+     *
+     * @param key The key.
+     */
+    void handleKey(String key);
+
+  }
+
+  private final SimpleCache cache;
+  private final String threadName;
+  private final long periodMs;
+  private final KeyHandler handler;
+
+  private volatile boolean canceled;
+  private Thread thread;
+
+  /**
+   * @param cache The cache whose keys are visited.
+   * @param threadName The name of the background thread.
+   * @param periodMs The interval between the start of one pass and the next, or 0 if only a single
+   *     pass should be run.
+   * @param handler The handler for the keys.
+   */
+  public CachePassRunner(SimpleCache cache, String threadName, long periodMs,
+      KeyHandler handler) {
+    Assertions.checkArgument(periodMs >= 0);
+    this.cache = Assertions.checkNotNull(cache);
+    this.threadName = threadName;
+    this.periodMs = periodMs;
+    this.handler = Assertions.checkNotNull(handler);
+  }
+
+  /**
+   * Starts the first pass. Must not be called more than once.
+   */
+  public synchronized void start() {
+    Assertions.checkState(thread == null);
+    thread = new Thread(threadName) {
+      @Override
+      public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        do {
+          long passStartMs = System.currentTimeMillis();
+          Iterator<String> keys = cache.getKeys().iterator();
+          while (!canceled && keys.hasNext()) {
+            handler.handleKey(keys.next());
+          }
+          if (periodMs == 0 || !waitUntil(passStartMs + periodMs)) {
+            break;
+          }
+        } while (!canceled);
+      }
+    };
+    thread.start();
+  }
+
+  /**
+   * Cancels the passes. The current pass stops after the key currently being handled.
+   */
+  public synchronized void cancel() {
+    canceled = true;
+    notifyAll();
+  }
+
+  /**
+   * Returns whether the passes have finished, either because a single pass has been run or because
+   * they were canceled.
+   */
+  public synchronized boolean isFinished() {
+    return thread != null && !thread.isAlive();
+  }
+
+  /**
+   * Blocks until the specified time, or until the passes are canceled.
+   *
+   * @return Whether the time was reached without the passes being canceled.
+   */
+  private synchronized boolean waitUntil(long timeMs) {
+    long waitMs;
+    while (!canceled && (waitMs = timeMs - System.currentTimeMillis()) > 0) {
+      try {
+        wait(waitMs);
+      } catch (InterruptedException e) {
+        return false;
+      }
+    }
+    return !canceled;
+  }
+
+}
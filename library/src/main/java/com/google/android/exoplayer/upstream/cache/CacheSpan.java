@@ -50,6 +50,11 @@ public final class CacheSpan implements Comparable<CacheSpan> {
    * The file corresponding to this {@link CacheSpan}, or null if {@link #isCached} is false.
    */
   public final File file;
+  /**
+   * The offset of the {@link CacheSpan}'s data within {@link #file}, or -1 if {@link #isCached} is
+   * false.
+   */
+  public final long fileOffset;
   /**
    * The last access timestamp, or -1 if {@link #isCached} is false.
    */
@@ -61,15 +66,15 @@ public final class CacheSpan implements Comparable<CacheSpan> {
   }
 
   public static CacheSpan createLookup(String key, long position) {
-    return new CacheSpan(key, position, -1, false, -1, null);
+    return new CacheSpan(key, position, -1, false, -1, null, -1);
   }
 
   public static CacheSpan createOpenHole(String key, long position) {
-    return new CacheSpan(key, position, -1, false, -1, null);
+    return new CacheSpan(key, position, -1, false, -1, null, -1);
   }
 
   public static CacheSpan createClosedHole(String key, long position, long length) {
-    return new CacheSpan(key, position, length, false, -1, null);
+    return new CacheSpan(key, position, length, false, -1, null, -1);
   }
 
   /**
@@ -89,16 +94,61 @@ public final class CacheSpan implements Comparable<CacheSpan> {
 
   private static CacheSpan createCacheEntry(String key, long position, long lastAccessTimestamp,
       File file) {
-    return new CacheSpan(key, position, file.length(), true, lastAccessTimestamp, file);
+    return new CacheSpan(key, position, file.length(), true, lastAccessTimestamp, file, 0);
+  }
+
+  /**
+   * Creates a cache span from previously recorded information, without accessing the file.
+   *
+   * @param file The cache file.
+   * @param key The cache key.
+   * @param position The position of the span in the original stream.
+   * @param length The length of the cache file.
+   * @param lastAccessTimestamp The last access timestamp.
+   * @return The span.
+   */
+  /* package */ static CacheSpan createCacheEntry(File file, String key, long position,
+      long length, long lastAccessTimestamp) {
+    return new CacheSpan(key, position, length, true, lastAccessTimestamp, file, 0);
+  }
+
+  /**
+   * Creates a cache span whose data is stored at an offset within a file that may be shared with
+   * other spans.
+   *
+   * @param file The file in which the data is stored.
+   * @param fileOffset The offset of the data within the file.
+   * @param key The cache key.
+   * @param position The position of the span in the original stream.
+   * @param length The length of the span.
+   * @param lastAccessTimestamp The last access timestamp.
+   * @return The span.
+   */
+  /* package */ static CacheSpan createCacheEntry(File file, long fileOffset, String key,
+      long position, long length, long lastAccessTimestamp) {
+    return new CacheSpan(key, position, length, true, lastAccessTimestamp, file, fileOffset);
+  }
+
+  /**
+   * Parses the timestamp from the name of a cache file. The timestamp is the time at which the
+   * file was created, or last renamed by {@link #touch()}.
+   *
+   * @param file The cache file.
+   * @return The timestamp, or -1 if the file name is not correctly formatted.
+   */
+  /* package */ static long getFileTimestamp(File file) {
+    Matcher matcher = cacheFilePattern.matcher(file.getName());
+    return matcher.matches() ? Long.parseLong(matcher.group(3)) : -1;
   }
 
   private CacheSpan(String key, long position, long length, boolean isCached,
-      long lastAccessTimestamp, File file) {
+      long lastAccessTimestamp, File file, long fileOffset) {
     this.key = key;
     this.position = position;
     this.length = length;
     this.isCached = isCached;
     this.file = file;
+    this.fileOffset = fileOffset;
     this.lastAccessTimestamp = lastAccessTimestamp;
   }
 
@@ -110,15 +160,21 @@ public final class CacheSpan implements Comparable<CacheSpan> {
   }
 
   /**
-   * Renames the file underlying this cache span to update its last access time.
+   * Renames the file underlying this cache span to update its last access time. Must only be
+   * called for spans that are stored in their own files.
    *
-   * @return A {@link CacheSpan} representing the updated cache file.
+   * @return A {@link CacheSpan} representing the updated cache file, or this span if the file
+   *     could not be renamed.
    */
   public CacheSpan touch() {
     long now = System.currentTimeMillis();
     File newCacheFile = getCacheFileName(file.getParentFile(), key, position, now);
-    file.renameTo(newCacheFile);
-    return CacheSpan.createCacheEntry(key, position, now, newCacheFile);
+    if (!file.renameTo(newCacheFile)) {
+      // The file may have been deleted from under us, in which case the span will be removed when
+      // a reader fails to open it.
+      return this;
+    }
+    return CacheSpan.createCacheEntry(newCacheFile, key, position, length, now);
   }
 
   @Override
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream.cache;
+
+import com.google.android.exoplayer.util.Assertions;
+
+/**
+ * Periodically verifies the spans of a {@link SimpleCache} on a low priority background thread,
+ * removing any whose files have been deleted from under the cache.
+ * <p>
+ * {@link SimpleCache} doesn't check that a file exists each time it's looked up. A stale span is
+ * removed when a reader fails to open its file, or when it's found by a verification pass.
+ *
+ * @see SimpleCache#verify(String)
+ */
+public final class CacheVerifier {
+
+  /**
+   * The default interval between the start of one verification pass and the next.
+   */
+  public static final long DEFAULT_PERIOD_MS = 60 * 60 * 1000;
+
+  private final CachePassRunner runner;
+
+  private volatile int removedSpanCount;
+
+  /**
+   * @param cache The cache to verify.
+   */
+  public CacheVerifier(SimpleCache cache) {
+    this(cache, DEFAULT_PERIOD_MS);
+  }
+
+  /**
+   * @param cache The cache to verify.
+   * @param periodMs The interval between the start of one verification pass and the next.
+   */
+  public CacheVerifier(final SimpleCache cache, long periodMs) {
+    Assertions.checkArgument(periodMs > 0);
+    runner = new CachePassRunner(cache, "CacheVerifier", periodMs,
+        new CachePassRunner.KeyHandler() {
+          @Override
+          public void handleKey(String key) {
+            removedSpanCount += cache.verify(key);
+          }
+        });
+  }
+
+  /**
+   * Starts verifying the cache. A pass over every key in the cache is started immediately, and
+   * then periodically until {@link #cancel()} is called. Must not be called more than once.
+   */
+  public void start() {
+    runner.start();
+  }
+
+  /**
+   * Cancels verification. Verification stops after the key currently being verified.
+   */
+  public void cancel() {
+    runner.cancel();
+  }
+
+  /**
+   * Returns whether verification has finished because it was canceled.
+   */
+  public boolean isFinished() {
+    return runner.isFinished();
+  }
+
+  /**
+   * Returns the number of stale spans removed so far.
+   */
+  public int getRemovedSpanCount() {
+    return removedSpanCount;
+  }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream.cache;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NavigableSet;
+
+/**
+ * The ranges of a key that are cached, maintained incrementally as spans are added and removed.
+ * <p>
+ * Adjacent or overlapping spans are merged into a single range, and the ranges are held in sorted
+ * arrays along with the total length of the ranges that precede each one. Queries are answered by
+ * binary search in O(log n) time, where n is the number of ranges, and don't allocate. Adding and
+ * removing spans takes O(n) time, but the data for a key is usually cached in a small number of
+ * ranges.
+ * <p>
+ * Instances are not thread safe.
+ */
+/* package */ final class CachedRanges {
+
+  private static final int INITIAL_CAPACITY = 4;
+
+  private long[] starts;
+  private long[] ends;
+  // The total length of the ranges that precede each range.
+  private long[] precedingLengths;
+  private int size;
+
+  public CachedRanges() {
+    starts = new long[INITIAL_CAPACITY];
+    ends = new long[INITIAL_CAPACITY];
+    precedingLengths = new long[INITIAL_CAPACITY];
+  }
+
+  /**
+   * Returns whether there are no cached ranges.
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Adds the range of a span that has been added to the cache.
+   */
+  public void addSpan(CacheSpan span) {
+    add(span.position, span.length);
+  }
+
+  /**
+   * Removes the range of a span that has been removed from the cache.
+   * <p>
+   * Spans for a key don't normally overlap, but they can if the cache was rebuilt by scanning a
+   * directory containing both a compacted file and the files that it replaced. Hence any parts of
+   * the removed range that are still covered by other spans are added back.
+   *
+   * @param span The span that has been removed.
+   * @param remainingSpans The spans for the key that remain in the cache.
+   */
+  public void removeSpan(CacheSpan span, NavigableSet<CacheSpan> remainingSpans) {
+    long end = span.position + span.length;
+    remove(span.position, span.length);
+    Iterator<CacheSpan> iterator = remainingSpans.iterator();
+    while (iterator.hasNext()) {
+      CacheSpan other = iterator.next();
+      if (other.position >= end) {
+        break;
+      }
+      long overlapStart = Math.max(other.position, span.position);
+      long overlapEnd = Math.min(other.position + other.length, end);
+      if (overlapStart < overlapEnd) {
+        add(overlapStart, overlapEnd - overlapStart);
+      }
+    }
+  }
+
+  /**
+   * Adds a range, merging it with any ranges that it overlaps or adjoins.
+   */
+  private void add(long position, long length) {
+    long end = position + length;
+    int last = upperBound(end) - 1;
+    int first = upperBound(position) - 1;
+    if (first < 0 || ends[first] < position) {
+      first++;
+    }
+    if (first > last) {
+      insertAt(first, position, end);
+    } else {
+      long mergedStart = Math.min(starts[first], position);
+      long mergedEnd = Math.max(ends[last], end);
+      removeRange(first + 1, last + 1);
+      starts[first] = mergedStart;
+      ends[first] = mergedEnd;
+    }
+    updatePrecedingLengths(first);
+  }
+
+  /**
+   * Removes a range, trimming or splitting any ranges that it overlaps.
+   */
+  private void remove(long position, long length) {
+    long end = position + length;
+    int last = upperBound(end - 1) - 1;
+    int first = upperBound(position) - 1;
+    if (first < 0 || ends[first] <= position) {
+      first++;
+    }
+    if (first > last) {
+      return;
+    }
+    long firstStart = starts[first];
+    long lastEnd = ends[last];
+    removeRange(first, last + 1);
+    if (lastEnd > end) {
+      insertAt(first, end, lastEnd);
+    }
+    if (firstStart < position) {
+      insertAt(first, firstStart, position);
+    }
+    updatePrecedingLengths(first);
+  }
+
+  /**
+   * Returns the length of the cached data at the start of a range, or if the start of the range is
+   * not cached, the negated length of the hole at the start of the range.
+   *
+   * @param position The start of the range.
+   * @param length The length of the range, or -1 if it's unbounded.
+   * @return The length of the cached data or hole at the start of the range, which is capped at
+   *     {@code length}, or at {@link Long#MAX_VALUE} if the range is unbounded.
+   */
+  public long getCachedLength(long position, long length) {
+    long maxLength = length == -1 ? Long.MAX_VALUE : length;
+    int index = upperBound(position);
+    if (index > 0 && position < ends[index - 1]) {
+      return Math.min(ends[index - 1] - position, maxLength);
+    }
+    return index < size ? -Math.min(starts[index] - position, maxLength) : -maxLength;
+  }
+
+  /**
+   * Returns the number of bytes within a range that are cached.
+   *
+   * @param position The start of the range.
+   * @param length The length of the range, or -1 if it's unbounded.
+   * @return The number of bytes within the range that are cached.
+   */
+  public long getCachedBytes(long position, long length) {
+    long end = length == -1 ? Long.MAX_VALUE : position + length;
+    return getCachedBytesBefore(end) - getCachedBytesBefore(position);
+  }
+
+  /**
+   * Returns the number of cached bytes that precede a position.
+   */
+  private long getCachedBytesBefore(long position) {
+    int index = upperBound(position) - 1;
+    if (index < 0) {
+      return 0;
+    }
+    return precedingLengths[index] + Math.min(ends[index], position) - starts[index];
+  }
+
+  /**
+   * Returns the index of the first range that starts after a position, or {@link #size} if there
+   * is no such range.
+   */
+  private int upperBound(long position) {
+    int index = Arrays.binarySearch(starts, 0, size, position);
+    return index >= 0 ? index + 1 : -index - 1;
+  }
+
+  private void insertAt(int index, long start, long end) {
+    if (size == starts.length) {
+      starts = Arrays.copyOf(starts, size * 2);
+      ends = Arrays.copyOf(ends, size * 2);
+      precedingLengths = Arrays.copyOf(precedingLengths, size * 2);
+    }
+    System.arraycopy(starts, index, starts, index + 1, size - index);
+    System.arraycopy(ends, index, ends, index + 1, size - index);
+    System.arraycopy(precedingLengths, index, precedingLengths, index + 1, size - index);
+    starts[index] = start;
+    ends[index] = end;
+    size++;
+  }
+
+  /**
+   * Removes the ranges from {@code fromIndex}, inclusive, to {@code toIndex}, exclusive.
+   */
+  private void removeRange(int fromIndex, int toIndex) {
+    System.arraycopy(starts, toIndex, starts, fromIndex, size - toIndex);
+    System.arraycopy(ends, toIndex, ends, fromIndex, size - toIndex);
+    System.arraycopy(precedingLengths, toIndex, precedingLengths, fromIndex, size - toIndex);
+    size -= toIndex - fromIndex;
+  }
+
+  /**
+   * Recomputes the preceding lengths of the ranges from a given index onwards.
+   */
+  private void updatePrecedingLengths(int fromIndex) {
+    for (int i = Math.max(fromIndex, 0); i < size; i++) {
+      precedingLengths[i] = i == 0 ? 0 : precedingLengths[i - 1] + ends[i - 1] - starts[i - 1];
+    }
+  }
+
+}
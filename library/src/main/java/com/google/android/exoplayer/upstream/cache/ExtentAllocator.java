@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream.cache;
+
+import com.google.android.exoplayer.util.Assertions;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Allocates extents within a set of fixed length pack files.
+ * <p>
+ * Free extents are tracked per pack, and are coalesced with their neighbors when freed. Extents are
+ * allocated from the smallest free extent that's large enough, which keeps large free extents
+ * available for large requests.
+ */
+/* package */ final class ExtentAllocator {
+
+  /**
+   * An extent within a pack.
+   */
+  public static final class Extent implements Comparable<Extent> {
+
+    public final int pack;
+    public final long offset;
+    public final long length;
+
+    public Extent(int pack, long offset, long length) {
+      this.pack = pack;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    /**
+     * Orders extents by length, and then by location.
+     */
+    @Override
+    public int compareTo(Extent another) {
+      if (length != another.length) {
+        return length < another.length ? -1 : 1;
+      }
+      if (pack != another.pack) {
+        return pack < another.pack ? -1 : 1;
+      }
+      return offset == another.offset ? 0 : (offset < another.offset ? -1 : 1);
+    }
+
+  }
+
+  private final ArrayList<TreeMap<Long, Extent>> freeExtentsByPack;
+  private final TreeSet<Extent> freeExtentsByLength;
+
+  public ExtentAllocator() {
+    freeExtentsByPack = new ArrayList<TreeMap<Long, Extent>>();
+    freeExtentsByLength = new TreeSet<Extent>();
+  }
+
+  /**
+   * Adds a pack, all of which is free.
+   *
+   * @param length The length of the pack.
+   * @return The index of the pack.
+   */
+  public int addPack(long length) {
+    int pack = freeExtentsByPack.size();
+    freeExtentsByPack.add(new TreeMap<Long, Extent>());
+    addFreeExtent(new Extent(pack, 0, length));
+    return pack;
+  }
+
+  /**
+   * Returns the number of packs.
+   */
+  public int getPackCount() {
+    return freeExtentsByPack.size();
+  }
+
+  /**
+   * Allocates an extent of the specified length.
+   *
+   * @param length The length of the extent.
+   * @return The allocated extent, or null if no free extent is large enough.
+   */
+  public Extent allocate(long length) {
+    Assertions.checkArgument(length > 0);
+    Extent freeExtent = freeExtentsByLength.ceiling(new Extent(-1, -1, length));
+    if (freeExtent == null) {
+      return null;
+    }
+    Extent extent = new Extent(freeExtent.pack, freeExtent.offset, length);
+    allocate(extent, freeExtent);
+    return extent;
+  }
+
+  /**
+   * Allocates a specified extent, which must be free.
+   *
+   * @param extent The extent to allocate.
+   * @return Whether the extent was allocated. False if it's not entirely free.
+   */
+  public boolean allocate(Extent extent) {
+    if (extent.pack < 0 || extent.pack >= freeExtentsByPack.size() || extent.length <= 0) {
+      return false;
+    }
+    Map.Entry<Long, Extent> floorEntry =
+        freeExtentsByPack.get(extent.pack).floorEntry(extent.offset);
+    if (floorEntry == null) {
+      return false;
+    }
+    Extent freeExtent = floorEntry.getValue();
+    if (extent.offset + extent.length > freeExtent.offset + freeExtent.length) {
+      return false;
+    }
+    allocate(extent, freeExtent);
+    return true;
+  }
+
+  /**
+   * Frees an allocated extent.
+   *
+   * @param extent The extent to free.
+   */
+  public void free(Extent extent) {
+    TreeMap<Long, Extent> freeExtents = freeExtentsByPack.get(extent.pack);
+    long offset = extent.offset;
+    long end = extent.offset + extent.length;
+    Map.Entry<Long, Extent> floorEntry = freeExtents.floorEntry(offset);
+    if (floorEntry != null) {
+      Extent previous = floorEntry.getValue();
+      Assertions.checkState(previous.offset + previous.length <= offset);
+      if (previous.offset + previous.length == offset) {
+        removeFreeExtent(previous);
+        offset = previous.offset;
+      }
+    }
+    Extent next = freeExtents.get(end);
+    if (next != null) {
+      removeFreeExtent(next);
+      end = next.offset + next.length;
+    }
+    addFreeExtent(new Extent(extent.pack, offset, end - offset));
+  }
+
+  private void allocate(Extent extent, Extent freeExtent) {
+    removeFreeExtent(freeExtent);
+    if (freeExtent.offset < extent.offset) {
+      addFreeExtent(new Extent(freeExtent.pack, freeExtent.offset,
+          extent.offset - freeExtent.offset));
+    }
+    long end = extent.offset + extent.length;
+    long freeEnd = freeExtent.offset + freeExtent.length;
+    if (end < freeEnd) {
+      addFreeExtent(new Extent(freeExtent.pack, end, freeEnd - end));
+    }
+  }
+
+  private void addFreeExtent(Extent extent) {
+    freeExtentsByPack.get(extent.pack).put(extent.offset, extent);
+    freeExtentsByLength.add(extent);
+  }
+
+  private void removeFreeExtent(Extent extent) {
+    freeExtentsByPack.get(extent.pack).remove(extent.offset);
+    freeExtentsByLength.remove(extent);
+  }
+
+}
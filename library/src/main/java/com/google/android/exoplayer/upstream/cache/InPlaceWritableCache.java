@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream.cache;
+
+/**
+ * A {@link Cache} into which data of a known length can be written in place, at an offset within
+ * one of the cache's own files, rather than into a file that's copied when it's committed.
+ * <p>
+ * A region is written in the same way as a file obtained from
+ * {@link Cache#startFile(String, long, long)}, and readers can follow it in the same way.
+ */
+/* package */ interface InPlaceWritableCache extends Cache {
+
+  /**
+   * Reserves space into which data can be written in place. Must only be called when holding a
+   * corresponding hole {@link CacheSpan} obtained from {@link #startReadWrite(String, long)}.
+   * <p>
+   * The data should be written into {@link PartialCacheFile#file}, starting at
+   * {@link PartialCacheFile#fileOffset}, and must not exceed {@link PartialCacheFile#maxLength}.
+   *
+   * @param key The cache key for the data.
+   * @param position The starting position of the data.
+   * @param length The maximum length of the data to be written. Must be positive.
+   * @return The region into which data should be written, or null if the space could not be
+   *     reserved, in which case the data should be written using
+   *     {@link #startFile(String, long, long)} instead.
+   */
+  PartialCacheFile startRegion(String key, long position, long length);
+
+  /**
+   * Commits a region into the cache. Must only be called when holding a corresponding hole
+   * {@link CacheSpan}, and once the data has been written and the file written through has been
+   * closed. Any unused space in the region is released.
+   *
+   * @param region A region obtained from {@link #startRegion(String, long, long)}.
+   * @param length The length of the data that was written.
+   */
+  void commitRegion(PartialCacheFile region, long length);
+
+  /**
+   * Records the length of the data that has been written to a region, so that readers can read the
+   * data before the region is committed. Should be called when the region is started, and after
+   * each write to it.
+   *
+   * @param region The region.
+   * @param length The length of the data that has been written to the region.
+   */
+  void setPartialRegionLength(PartialCacheFile region, long length);
+
+}
@@ -0,0 +1,774 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream.cache;
+
+import com.google.android.exoplayer.upstream.cache.ExtentAllocator.Extent;
+import com.google.android.exoplayer.util.Assertions;
+
+import android.os.ConditionVariable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A {@link Cache} implementation that stores spans as extents within a small number of large pack
+ * files, rather than storing each span in its own file.
+ * <p>
+ * Storing many small spans (for example, the segments of content that has been downloaded for
+ * offline playback) as individual files incurs file system overhead for each one, and can exhaust
+ * the number of files that the file system is able to hold. This implementation instead allocates
+ * pack files of a fixed length as they're needed, and tracks the free and used extents within them
+ * in memory. The used extents are persisted in a journal, from which the cache is initialized.
+ * <p>
+ * Data of a known length is written in place. {@link #startRegion(String, long, long)} allocates an
+ * extent of that length, into which the data is written directly. When the region is committed the
+ * pack file is synced, and any unused tail of the extent is freed. Data of an unknown length is
+ * written into a staging file, obtained by calling {@link #startFile(String, long, long)}, since no
+ * extent can be allocated for it in advance. When the file is committed, its data is copied into a
+ * newly allocated extent and the staging file is deleted. Cached data is read from the pack files,
+ * using {@link CacheSpan#file} and {@link CacheSpan#fileOffset}.
+ * <p>
+ * The extent of a removed span is not reused until {@link #EXTENT_REUSE_DELAY_MS} has elapsed, so
+ * that a reader that obtained the span before it was removed can finish reading it. Extents are
+ * never reused sooner, even if the cache is short of space, since the reader would otherwise read
+ * the data of another span. A pack file is added instead. Nor are they reused until the journal
+ * has been synced, so that a removed span can't reappear with another span's data after a crash.
+ * The extent of an abandoned region is treated in the same way, since readers may be following it.
+ * If the journal is missing or cannot be read, then the cache is emptied when it's initialized.
+ */
+public final class PackedCache implements InPlaceWritableCache {
+
+  /**
+   * The default length of a pack file.
+   */
+  public static final long DEFAULT_PACK_FILE_LENGTH = 64 * 1024 * 1024;
+
+  /**
+   * The minimum time for which the extent of a removed span is not reused.
+   */
+  public static final long EXTENT_REUSE_DELAY_MS = 30000;
+
+  private static final String PACK_FILE_SUFFIX = ".pack";
+  private static final String STAGING_DIR_NAME = "staging";
+
+  private final File cacheDir;
+  private final File stagingDir;
+  private final CacheEvictor evictor;
+  private final long packFileLength;
+  private final HashMap<String, TreeSet<CacheSpan>> cachedSpans;
+  private final HashMap<String, CachedRanges> cachedRanges;
+  private final HashMap<String, TreeSet<CacheSpan>> lockedSpans;
+  private final HashMap<String, ArrayList<Listener>> listeners;
+  private final HashMap<File, CacheSpan> stagingFiles;
+  private final HashMap<PartialCacheFile, Extent> regions;
+  private final ArrayList<File> packFiles;
+  private final ArrayList<FileChannel> packChannels;
+  private final ExtentAllocator allocator;
+  private final LinkedList<Extent> releasedExtents;
+  private final LinkedList<Long> releasedExtentTimesMs;
+  private final PackedCacheJournal journal;
+  private final PartialCacheFileTracker partialFiles;
+
+  private long totalSpace;
+  private int stagingFileCount;
+
+  /**
+   * Constructs the cache. The cache will delete any unrecognized files from the directory. Hence
+   * the directory cannot be used to store other files.
+   *
+   * @param cacheDir A dedicated cache directory.
+   * @param evictor The evictor.
+   */
+  public PackedCache(File cacheDir, CacheEvictor evictor) {
+    this(cacheDir, evictor, DEFAULT_PACK_FILE_LENGTH);
+  }
+
+  /**
+   * Constructs the cache. The cache will delete any unrecognized files from the directory. Hence
+   * the directory cannot be used to store other files.
+   *
+   * @param cacheDir A dedicated cache directory.
+   * @param evictor The evictor.
+   * @param packFileLength The length of each pack file. A span that's longer than this is stored
+   *     in a pack file of its own.
+   */
+  public PackedCache(File cacheDir, CacheEvictor evictor, long packFileLength) {
+    Assertions.checkArgument(packFileLength > 0);
+    this.cacheDir = cacheDir;
+    this.evictor = evictor;
+    this.packFileLength = packFileLength;
+    stagingDir = new File(cacheDir, STAGING_DIR_NAME);
+    cachedSpans = new HashMap<String, TreeSet<CacheSpan>>();
+    cachedRanges = new HashMap<String, CachedRanges>();
+    lockedSpans = new HashMap<String, TreeSet<CacheSpan>>();
+    listeners = new HashMap<String, ArrayList<Listener>>();
+    stagingFiles = new HashMap<File, CacheSpan>();
+    regions = new HashMap<PartialCacheFile, Extent>();
+    packFiles = new ArrayList<File>();
+    packChannels = new ArrayList<FileChannel>();
+    allocator = new ExtentAllocator();
+    releasedExtents = new LinkedList<Extent>();
+    releasedExtentTimesMs = new LinkedList<Long>();
+    journal = new PackedCacheJournal(cacheDir);
+    partialFiles = new PartialCacheFileTracker();
+    // Start cache initialization.
+    final ConditionVariable conditionVariable = new ConditionVariable();
+    new Thread() {
+      @Override
+      public void run() {
+        synchronized (PackedCache.this) {
+          conditionVariable.open();
+          initialize();
+        }
+      }
+    }.start();
+    conditionVariable.block();
+  }
+
+  @Override
+  public synchronized NavigableSet<CacheSpan> addListener(String key, Listener listener) {
+    ArrayList<Listener> listenersForKey = listeners.get(key);
+    if (listenersForKey == null) {
+      listenersForKey = new ArrayList<Listener>();
+      listeners.put(key, listenersForKey);
+    }
+    listenersForKey.add(listener);
+    return getCachedSpans(key);
+  }
+
+  @Override
+  public synchronized void removeListener(String key, Listener listener) {
+    ArrayList<Listener> listenersForKey = listeners.get(key);
+    if (listenersForKey != null) {
+      listenersForKey.remove(listener);
+      if (listenersForKey.isEmpty()) {
+        listeners.remove(key);
+      }
+    }
+  }
+
+  @Override
+  public synchronized NavigableSet<CacheSpan> getCachedSpans(String key) {
+    TreeSet<CacheSpan> spansForKey = cachedSpans.get(key);
+    return spansForKey == null ? null : new TreeSet<CacheSpan>(spansForKey);
+  }
+
+  @Override
+  public synchronized Set<String> getKeys() {
+    return new HashSet<String>(cachedSpans.keySet());
+  }
+
+  @Override
+  public synchronized long getCacheSpace() {
+    return totalSpace;
+  }
+
+  /**
+   * Returns the total length of the pack files, which is the disk space reserved by the cache.
+   */
+  public synchronized long getPackSpace() {
+    long packSpace = 0;
+    for (int i = 0; i < packFiles.size(); i++) {
+      packSpace += packFiles.get(i).length();
+    }
+    return packSpace;
+  }
+
+  @Override
+  public CacheSpan startReadWrite(String key, long position) throws InterruptedException {
+    return startReadWrite(key, position, -1);
+  }
+
+  @Override
+  public CacheSpan startReadWriteNonBlocking(String key, long position) {
+    return startReadWriteNonBlocking(key, position, -1);
+  }
+
+  @Override
+  public synchronized CacheSpan startReadWrite(String key, long position, long length)
+      throws InterruptedException {
+    while (true) {
+      CacheSpan span = startReadWriteNonBlocking(key, position, length);
+      if (span != null) {
+        return span;
+      } else {
+        // Write case, lock not available. We'll be woken up when a locked span is released (if the
+        // released lock covers the requested position then we'll be able to make progress) or when
+        // a span is added to the cache (if the span is for the requested key and covers the
+        // requested position, then we'll become a read and be able to make progress).
+        wait();
+      }
+    }
+  }
+
+  @Override
+  public synchronized CacheSpan startReadWriteNonBlocking(String key, long position,
+      long length) {
+    CacheSpan lookupSpan = CacheSpan.createLookup(key, position);
+    CacheSpan spanningRegion = getSpan(lookupSpan);
+
+    // Read case.
+    if (spanningRegion.isCached) {
+      CacheSpan oldCacheSpan = spanningRegion;
+      TreeSet<CacheSpan> spansForKey = cachedSpans.get(key);
+      Assertions.checkState(spansForKey.remove(oldCacheSpan));
+      spanningRegion = CacheSpan.createCacheEntry(oldCacheSpan.file, oldCacheSpan.fileOffset, key,
+          oldCacheSpan.position, oldCacheSpan.length, System.currentTimeMillis());
+      spansForKey.add(spanningRegion);
+      journal.recordTouch(spanningRegion);
+      notifySpanTouched(oldCacheSpan, spanningRegion);
+      rewriteJournalIfNeeded();
+      return spanningRegion;
+    }
+
+    // Write case, lock not available.
+    if (isLocked(key, position)) {
+      return null;
+    }
+
+    // Write case, lock available. Limit the hole to the requested length, and so that it doesn't
+    // overlap the next locked hole.
+    TreeSet<CacheSpan> lockedSpansForKey = lockedSpans.get(key);
+    if (lockedSpansForKey == null) {
+      lockedSpansForKey = new TreeSet<CacheSpan>();
+      lockedSpans.put(key, lockedSpansForKey);
+    }
+    long endPosition = spanningRegion.isOpenEnded() ? Long.MAX_VALUE
+        : spanningRegion.position + spanningRegion.length;
+    if (length != -1) {
+      endPosition = Math.min(endPosition, position + length);
+    }
+    CacheSpan ceilingLockedSpan = lockedSpansForKey.ceiling(lookupSpan);
+    if (ceilingLockedSpan != null) {
+      endPosition = Math.min(endPosition, ceilingLockedSpan.position);
+    }
+    if (endPosition != Long.MAX_VALUE) {
+      spanningRegion = CacheSpan.createClosedHole(key, position, endPosition - position);
+    }
+    lockedSpansForKey.add(spanningRegion);
+    return spanningRegion;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The returned file is a staging file, whose data is copied into a pack file when it's
+   * committed. {@link #startRegion(String, long, long)} should be used instead if the length of the
+   * data is known.
+   */
+  @Override
+  public synchronized File startFile(String key, long position, long length) {
+    Assertions.checkState(isLocked(key, position));
+    if (!stagingDir.exists()) {
+      stagingDir.mkdirs();
+    }
+    evictor.onStartFile(this, key, position, length);
+    File file = new File(stagingDir, stagingFileCount++ + ".tmp");
+    stagingFiles.put(file, CacheSpan.createLookup(key, position));
+    partialFiles.start(key, position, length, file);
+    return file;
+  }
+
+  @Override
+  public void commitFile(File file) {
+    CacheSpan stagingSpan;
+    long length;
+    Extent extent;
+    FileChannel packChannel;
+    synchronized (this) {
+      stagingSpan = stagingFiles.remove(file);
+      Assertions.checkState(stagingSpan != null);
+      Assertions.checkState(isLocked(stagingSpan.key, stagingSpan.position));
+      // If the file doesn't exist or has length 0, don't add it to the in-memory representation.
+      length = file.length();
+      extent = null;
+      if (length != 0) {
+        try {
+          extent = allocateExtent(length);
+        } catch (IOException e) {
+          // Fall through.
+        }
+      }
+      if (extent == null) {
+        partialFiles.finish(file);
+        file.delete();
+        return;
+      }
+      packChannel = packChannels.get(extent.pack);
+    }
+
+    // Copy the data into the extent without holding the lock. The extent is not visible to
+    // readers, and the caller's hole lock prevents the range from being written by others.
+    boolean copied = copy(file, packChannel, extent.offset, length);
+
+    synchronized (this) {
+      if (copied) {
+        CacheSpan span = CacheSpan.createCacheEntry(packFiles.get(extent.pack), extent.offset,
+            stagingSpan.key, stagingSpan.position, length, System.currentTimeMillis());
+        journal.recordAdd(span, extent.pack);
+        addSpan(span);
+        rewriteJournalIfNeeded();
+        notifyAll();
+      } else {
+        allocator.free(extent);
+      }
+      // Readers following the staging file will find the committed span when they next look it
+      // up. The file is deleted only once it's been finished, so that readers that fail to open
+      // it know that it's no longer needed.
+      partialFiles.finish(file);
+    }
+    file.delete();
+  }
+
+  @Override
+  public synchronized PartialCacheFile startRegion(String key, long position, long length) {
+    Assertions.checkArgument(length > 0);
+    Assertions.checkState(isLocked(key, position));
+    Extent extent;
+    try {
+      extent = allocateExtent(length);
+    } catch (IOException e) {
+      return null;
+    }
+    evictor.onStartFile(this, key, position, length);
+    PartialCacheFile region = partialFiles.startRegion(key, position, length,
+        packFiles.get(extent.pack), extent.offset);
+    regions.put(region, extent);
+    return region;
+  }
+
+  @Override
+  public void commitRegion(PartialCacheFile region, long length) {
+    Extent extent;
+    FileChannel packChannel;
+    synchronized (this) {
+      extent = regions.remove(region);
+      Assertions.checkState(extent != null);
+      Assertions.checkState(isLocked(region.key, region.position));
+      Assertions.checkArgument(length >= 0 && length <= extent.length);
+      packChannel = packChannels.get(extent.pack);
+    }
+
+    // Sync the data without holding the lock, so that it's on the disk before the span is recorded
+    // in the journal. The extent is not visible to readers other than those following the region.
+    boolean synced = length != 0 && sync(packChannel);
+
+    synchronized (this) {
+      if (synced) {
+        CacheSpan span = CacheSpan.createCacheEntry(packFiles.get(extent.pack), extent.offset,
+            region.key, region.position, length, System.currentTimeMillis());
+        journal.recordAdd(span, extent.pack);
+        addSpan(span);
+        if (length < extent.length) {
+          // Readers following the region never read beyond the length that was written, so the
+          // tail can be reused immediately.
+          allocator.free(new Extent(extent.pack, extent.offset + length, extent.length - length));
+        }
+        rewriteJournalIfNeeded();
+        notifyAll();
+      } else {
+        releaseExtent(extent);
+      }
+      partialFiles.finish(region);
+    }
+  }
+
+  @Override
+  public void setPartialRegionLength(PartialCacheFile region, long length) {
+    partialFiles.setLength(region, length);
+  }
+
+  @Override
+  public void setPartialFileLength(File file, long length) {
+    partialFiles.setLength(file, length);
+  }
+
+  @Override
+  public PartialCacheFile getPartialFile(String key, long position) {
+    return partialFiles.get(key, position);
+  }
+
+  @Override
+  public synchronized void releaseHoleSpan(CacheSpan holeSpan) {
+    TreeSet<CacheSpan> lockedSpansForKey = lockedSpans.get(holeSpan.key);
+    Assertions.checkState(lockedSpansForKey != null
+        && holeSpan == lockedSpansForKey.floor(holeSpan));
+    lockedSpansForKey.remove(holeSpan);
+    if (lockedSpansForKey.isEmpty()) {
+      lockedSpans.remove(holeSpan.key);
+    }
+    // Free the extents of any regions that were started within the hole but not committed.
+    List<PartialCacheFile> abandoned = partialFiles.finish(holeSpan);
+    for (int i = 0; i < abandoned.size(); i++) {
+      Extent extent = regions.remove(abandoned.get(i));
+      if (extent != null) {
+        releaseExtent(extent);
+      }
+    }
+    notifyAll();
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The span is only removed if it's still cached. If it has been removed or replaced by a span
+   * with an updated last access timestamp, then the call has no effect.
+   */
+  @Override
+  public synchronized void removeSpan(CacheSpan span) {
+    TreeSet<CacheSpan> spansForKey = cachedSpans.get(span.key);
+    if (spansForKey == null || spansForKey.floor(span) != span) {
+      return;
+    }
+    spansForKey.remove(span);
+    if (spansForKey.isEmpty()) {
+      cachedSpans.remove(span.key);
+      cachedRanges.remove(span.key);
+    } else {
+      cachedRanges.get(span.key).removeSpan(span, spansForKey);
+    }
+    totalSpace -= span.length;
+    journal.recordRemove(span);
+    releaseExtent(getExtent(span, packFiles));
+    notifySpanRemoved(span);
+    rewriteJournalIfNeeded();
+  }
+
+  @Override
+  public boolean isCached(String key, long position, long length) {
+    long cachedLength = getCachedLength(key, position, length);
+    return cachedLength > 0 && cachedLength >= length;
+  }
+
+  @Override
+  public synchronized long getCachedLength(String key, long position, long length) {
+    CachedRanges ranges = cachedRanges.get(key);
+    if (ranges == null) {
+      return length == -1 ? -Long.MAX_VALUE : -length;
+    }
+    return ranges.getCachedLength(position, length);
+  }
+
+  @Override
+  public synchronized long getCachedBytes(String key, long position, long length) {
+    CachedRanges ranges = cachedRanges.get(key);
+    return ranges == null ? 0 : ranges.getCachedBytes(position, length);
+  }
+
+  /**
+   * Returns whether a locked hole for the specified key covers the specified position.
+   */
+  private boolean isLocked(String key, long position) {
+    TreeSet<CacheSpan> lockedSpansForKey = lockedSpans.get(key);
+    if (lockedSpansForKey == null) {
+      return false;
+    }
+    CacheSpan floorLockedSpan = lockedSpansForKey.floor(CacheSpan.createLookup(key, position));
+    return floorLockedSpan != null && (floorLockedSpan.isOpenEnded()
+        || position < floorLockedSpan.position + floorLockedSpan.length);
+  }
+
+  /**
+   * Returns the cache {@link CacheSpan} corresponding to the provided lookup {@link CacheSpan}.
+   * <p>
+   * If the lookup position is contained by an existing entry in the cache, then the returned
+   * {@link CacheSpan} defines the extent in which the data is stored. If the lookup position is not
+   * contained by an existing entry, then the returned {@link CacheSpan} defines the maximum extents
+   * of the hole in the cache.
+   *
+   * @param lookupSpan A lookup {@link CacheSpan} specifying a key and position.
+   * @return The corresponding cache {@link CacheSpan}.
+   */
+  private CacheSpan getSpan(CacheSpan lookupSpan) {
+    String key = lookupSpan.key;
+    long offset = lookupSpan.position;
+    TreeSet<CacheSpan> entries = cachedSpans.get(key);
+    if (entries == null) {
+      return CacheSpan.createOpenHole(key, lookupSpan.position);
+    }
+    CacheSpan floorSpan = entries.floor(lookupSpan);
+    if (floorSpan != null &&
+        floorSpan.position <= offset && offset < floorSpan.position + floorSpan.length) {
+      // The lookup position is contained within floorSpan.
+      return floorSpan;
+    }
+    CacheSpan ceilEntry = entries.ceiling(lookupSpan);
+    return ceilEntry == null ? CacheSpan.createOpenHole(key, lookupSpan.position) :
+        CacheSpan.createClosedHole(key, lookupSpan.position,
+            ceilEntry.position - lookupSpan.position);
+  }
+
+  /**
+   * Allocates an extent, adding a pack file if no free extent is large enough. The extents of
+   * removed spans are only reused once {@link #EXTENT_REUSE_DELAY_MS} has elapsed.
+   */
+  private Extent allocateExtent(long length) throws IOException {
+    long nowMs = System.currentTimeMillis();
+    if (!releasedExtents.isEmpty()
+        && nowMs - releasedExtentTimesMs.getFirst() >= EXTENT_REUSE_DELAY_MS && journal.sync()) {
+      while (!releasedExtents.isEmpty()
+          && nowMs - releasedExtentTimesMs.getFirst() >= EXTENT_REUSE_DELAY_MS) {
+        releasedExtentTimesMs.removeFirst();
+        allocator.free(releasedExtents.removeFirst());
+      }
+    }
+    Extent extent = allocator.allocate(length);
+    if (extent == null) {
+      addPackFile(Math.max(packFileLength, length));
+      extent = allocator.allocate(length);
+    }
+    return extent;
+  }
+
+  /**
+   * Releases an extent that may still be read, so that it's reused only once
+   * {@link #EXTENT_REUSE_DELAY_MS} has elapsed.
+   */
+  private void releaseExtent(Extent extent) {
+    releasedExtents.add(extent);
+    releasedExtentTimesMs.add(System.currentTimeMillis());
+  }
+
+  /**
+   * Adds a pack file of the specified length.
+   */
+  private void addPackFile(long length) throws IOException {
+    File file = new File(cacheDir, packFiles.size() + PACK_FILE_SUFFIX);
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.setLength(length);
+    } catch (IOException e) {
+      randomAccessFile.close();
+      file.delete();
+      throw e;
+    }
+    packFiles.add(file);
+    packChannels.add(randomAccessFile.getChannel());
+    allocator.addPack(length);
+  }
+
+  /**
+   * Ensures that the cache's in-memory representation has been initialized.
+   */
+  private void initialize() {
+    if (!cacheDir.exists()) {
+      cacheDir.mkdirs();
+    }
+    File[] stagedFiles = stagingDir.listFiles();
+    if (stagedFiles != null) {
+      // Staged data was never committed.
+      for (int i = 0; i < stagedFiles.length; i++) {
+        stagedFiles[i].delete();
+      }
+    }
+    ArrayList<File> existingPackFiles = new ArrayList<File>();
+    for (int i = 0; ; i++) {
+      File file = new File(cacheDir, i + PACK_FILE_SUFFIX);
+      if (!file.exists()) {
+        break;
+      }
+      existingPackFiles.add(file);
+    }
+
+    List<CacheSpan> spans = journal.load(existingPackFiles);
+    ArrayList<RandomAccessFile> openedPackFiles = new ArrayList<RandomAccessFile>();
+    if (spans != null) {
+      try {
+        for (int i = 0; i < existingPackFiles.size(); i++) {
+          openedPackFiles.add(new RandomAccessFile(existingPackFiles.get(i), "rw"));
+        }
+        ExtentAllocator scratchAllocator = new ExtentAllocator();
+        for (int i = 0; i < openedPackFiles.size(); i++) {
+          scratchAllocator.addPack(openedPackFiles.get(i).length());
+        }
+        for (int i = 0; spans != null && i < spans.size(); i++) {
+          if (!scratchAllocator.allocate(getExtent(spans.get(i), existingPackFiles))) {
+            // The journal is inconsistent with the pack files.
+            spans = null;
+          }
+        }
+      } catch (IOException e) {
+        spans = null;
+      }
+    }
+
+    if (spans == null) {
+      // The contents of the pack files are unknown, so they're discarded.
+      for (int i = 0; i < openedPackFiles.size(); i++) {
+        closeQuietly(openedPackFiles.get(i));
+      }
+      openedPackFiles.clear();
+      existingPackFiles.clear();
+      spans = new ArrayList<CacheSpan>();
+    }
+    for (int i = 0; i < openedPackFiles.size(); i++) {
+      RandomAccessFile randomAccessFile = openedPackFiles.get(i);
+      packFiles.add(existingPackFiles.get(i));
+      packChannels.add(randomAccessFile.getChannel());
+      try {
+        allocator.addPack(randomAccessFile.length());
+      } catch (IOException e) {
+        // Should never happen, since the length was read successfully above.
+        throw new IllegalStateException(e);
+      }
+    }
+    for (int i = 0; i < spans.size(); i++) {
+      CacheSpan span = spans.get(i);
+      allocator.allocate(getExtent(span, packFiles));
+      addSpan(span);
+    }
+
+    // Delete unrecognized files, including any pack files that are not in use.
+    File[] files = cacheDir.listFiles();
+    for (int i = 0; files != null && i < files.length; i++) {
+      File file = files[i];
+      if (!journal.isJournalFile(file) && !file.equals(stagingDir) && !packFiles.contains(file)) {
+        file.delete();
+      }
+    }
+    if (journal.shouldRewrite() || spans.isEmpty()) {
+      journal.rewrite(cachedSpans.values(), packFiles);
+    }
+  }
+
+  /**
+   * Adds a cached span to the in-memory representation, unless a span already exists at the same
+   * position.
+   *
+   * @param span The span to be added.
+   */
+  private void addSpan(CacheSpan span) {
+    TreeSet<CacheSpan> spansForKey = cachedSpans.get(span.key);
+    if (spansForKey == null) {
+      spansForKey = new TreeSet<CacheSpan>();
+      cachedSpans.put(span.key, spansForKey);
+      cachedRanges.put(span.key, new CachedRanges());
+    }
+    if (!spansForKey.add(span)) {
+      // A span already exists at the same position.
+      return;
+    }
+    cachedRanges.get(span.key).addSpan(span);
+    totalSpace += span.length;
+    notifySpanAdded(span);
+  }
+
+  private void rewriteJournalIfNeeded() {
+    if (journal.shouldRewrite()) {
+      journal.rewrite(cachedSpans.values(), packFiles);
+    }
+  }
+
+  private void notifySpanRemoved(CacheSpan span) {
+    ArrayList<Listener> keyListeners = listeners.get(span.key);
+    if (keyListeners != null) {
+      for (int i = keyListeners.size() - 1; i >= 0; i--) {
+        keyListeners.get(i).onSpanRemoved(this, span);
+      }
+    }
+    evictor.onSpanRemoved(this, span);
+  }
+
+  private void notifySpanAdded(CacheSpan span) {
+    ArrayList<Listener> keyListeners = listeners.get(span.key);
+    if (keyListeners != null) {
+      for (int i = keyListeners.size() - 1; i >= 0; i--) {
+        keyListeners.get(i).onSpanAdded(this, span);
+      }
+    }
+    evictor.onSpanAdded(this, span);
+  }
+
+  private void notifySpanTouched(CacheSpan oldSpan, CacheSpan newSpan) {
+    ArrayList<Listener> keyListeners = listeners.get(oldSpan.key);
+    if (keyListeners != null) {
+      for (int i = keyListeners.size() - 1; i >= 0; i--) {
+        keyListeners.get(i).onSpanTouched(this, oldSpan, newSpan);
+      }
+    }
+    evictor.onSpanTouched(this, oldSpan, newSpan);
+  }
+
+  /**
+   * Copies the contents of a file into a pack file, using positional writes, and syncs the pack
+   * file so that the data is on the disk before the span is recorded in the journal.
+   *
+   * @return Whether the copy succeeded.
+   */
+  private static boolean copy(File file, FileChannel packChannel, long offset, long length) {
+    FileInputStream inputStream = null;
+    try {
+      inputStream = new FileInputStream(file);
+      FileChannel input = inputStream.getChannel();
+      long copied = 0;
+      while (copied < length) {
+        long transferred = packChannel.transferFrom(input, offset + copied, length - copied);
+        if (transferred <= 0) {
+          // The file was truncated.
+          return false;
+        }
+        copied += transferred;
+      }
+      packChannel.force(false);
+      return true;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      closeQuietly(inputStream);
+    }
+  }
+
+  /**
+   * Syncs a pack file into which data has been written in place.
+   *
+   * @return Whether the sync succeeded.
+   */
+  private static boolean sync(FileChannel packChannel) {
+    try {
+      packChannel.force(false);
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static Extent getExtent(CacheSpan span, List<File> packFiles) {
+    return new Extent(packFiles.indexOf(span.file), span.fileOffset, span.length);
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        // Ignore.
+      }
+    }
+  }
+
+}
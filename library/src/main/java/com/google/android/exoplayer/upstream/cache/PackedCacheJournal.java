@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream.cache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * A journal of the spans in a {@link PackedCache}, and of the extents of the pack files in which
+ * they're stored.
+ * <p>
+ * The journal is a {@link SpanLog}. Add records are written after a span's data has been written
+ * and synced to its extent, deferred touch records when a span is accessed, and remove records
+ * before a span's extent is made available for reuse. The journal must be synced by calling
+ * {@link #sync()} before the extent is reused.
+ * <p>
+ * The extents that are free are not recorded, since they can be derived from those that are used.
+ * If a record cannot be written then the journal is left as it was, and is rewritten from the
+ * cache's in-memory state after {@link SpanLog#REWRITE_RETRY_DELAY_MS}. The journal therefore
+ * always describes spans whose data is intact, although it may omit spans added since the failure.
+ */
+/* package */ final class PackedCacheJournal {
+
+  private static final String FILE_NAME = "journal";
+
+  private static final int VERSION = 2;
+
+  private static final int RECORD_TYPE_ADD = 1;
+  private static final int RECORD_TYPE_TOUCH = 2;
+  private static final int RECORD_TYPE_REMOVE = 3;
+
+  private final SpanLog log;
+
+  private int spanCount;
+
+  /**
+   * @param cacheDir The cache directory, in which the journal is stored.
+   */
+  public PackedCacheJournal(File cacheDir) {
+    log = new SpanLog(new File(cacheDir, FILE_NAME), VERSION, false);
+  }
+
+  /**
+   * Returns whether a file in the cache directory belongs to the journal.
+   */
+  public boolean isJournalFile(File file) {
+    return log.isLogFile(file);
+  }
+
+  /**
+   * Returns whether the journal should be rewritten by calling {@link #rewrite(Collection, List)},
+   * either because it's much larger than the set of spans that it describes or because it's
+   * damaged.
+   */
+  public boolean shouldRewrite() {
+    return log.shouldRewrite(spanCount);
+  }
+
+  /**
+   * Reads the journal.
+   *
+   * @param packFiles The pack files, indexed by pack.
+   * @return The cached spans, or null if the journal does not exist or cannot be read, in which
+   *     case the cache should be emptied and the journal rewritten.
+   */
+  public List<CacheSpan> load(final List<File> packFiles) {
+    final HashMap<String, CacheSpan> spans = new HashMap<String, CacheSpan>();
+    boolean loaded = log.load(new SpanLog.RecordHandler() {
+      @Override
+      public boolean handleRecord(int type, String key, DataInputStream input)
+          throws IOException {
+        long position = input.readLong();
+        if (position < 0) {
+          return false;
+        }
+        String spanId = key + ":" + position;
+        switch (type) {
+          case RECORD_TYPE_ADD:
+            long length = input.readLong();
+            int pack = input.readInt();
+            long fileOffset = input.readLong();
+            long lastAccessTimestamp = input.readLong();
+            if (length <= 0 || pack < 0 || pack >= packFiles.size() || fileOffset < 0) {
+              return false;
+            }
+            spans.put(spanId, CacheSpan.createCacheEntry(packFiles.get(pack), fileOffset, key,
+                position, length, lastAccessTimestamp));
+            return true;
+          case RECORD_TYPE_TOUCH:
+            lastAccessTimestamp = input.readLong();
+            CacheSpan span = spans.get(spanId);
+            if (span != null) {
+              spans.put(spanId, CacheSpan.createCacheEntry(span.file, span.fileOffset, key,
+                  position, span.length, lastAccessTimestamp));
+            }
+            return true;
+          case RECORD_TYPE_REMOVE:
+            spans.remove(spanId);
+            return true;
+          default:
+            return false;
+        }
+      }
+    });
+    if (!loaded) {
+      return null;
+    }
+    spanCount = spans.size();
+    return new ArrayList<CacheSpan>(spans.values());
+  }
+
+  /**
+   * Rewrites the journal so that it contains only the specified spans.
+   *
+   * @param spans The cached spans, grouped by key.
+   * @param packFiles The pack files, indexed by pack.
+   */
+  public void rewrite(Collection<TreeSet<CacheSpan>> spans, List<File> packFiles) {
+    spanCount = 0;
+    try {
+      log.beginRewrite();
+      for (TreeSet<CacheSpan> spansForKey : spans) {
+        for (CacheSpan span : spansForKey) {
+          writeAdd(span, packFiles.indexOf(span.file));
+        }
+      }
+      log.endRewrite();
+    } catch (IOException e) {
+      log.handleWriteError();
+    }
+  }
+
+  /**
+   * Records that a span has been added.
+   *
+   * @param span The span.
+   * @param pack The index of the pack file in which the span is stored.
+   */
+  public void recordAdd(CacheSpan span, int pack) {
+    if (!log.isWritable()) {
+      return;
+    }
+    try {
+      writeAdd(span, pack);
+    } catch (IOException e) {
+      log.handleWriteError();
+    }
+  }
+
+  /**
+   * Records that a span's last access timestamp has been updated.
+   */
+  public void recordTouch(CacheSpan span) {
+    if (!log.isWritable()) {
+      return;
+    }
+    try {
+      DataOutputStream output = log.beginRecord(RECORD_TYPE_TOUCH, span.key);
+      output.writeLong(span.position);
+      output.writeLong(span.lastAccessTimestamp);
+      log.endDeferredRecord();
+    } catch (IOException e) {
+      log.handleWriteError();
+    }
+  }
+
+  /**
+   * Records that a span has been removed.
+   */
+  public void recordRemove(CacheSpan span) {
+    if (!log.isWritable()) {
+      return;
+    }
+    try {
+      DataOutputStream output = log.beginRecord(RECORD_TYPE_REMOVE, span.key);
+      output.writeLong(span.position);
+      log.endRecord();
+      spanCount--;
+    } catch (IOException e) {
+      log.handleWriteError();
+    }
+  }
+
+  /**
+   * Syncs the journal to the disk, so that the spans that have been recorded as removed will not
+   * reappear if the process dies.
+   *
+   * @return Whether the journal was synced. If false, the extents of spans that have been removed
+   *     must not be reused.
+   */
+  public boolean sync() {
+    if (!log.isWritable()) {
+      return false;
+    }
+    try {
+      log.sync();
+      return true;
+    } catch (IOException e) {
+      log.handleWriteError();
+      return false;
+    }
+  }
+
+  private void writeAdd(CacheSpan span, int pack) throws IOException {
+    DataOutputStream output = log.beginRecord(RECORD_TYPE_ADD, span.key);
+    output.writeLong(span.position);
+    output.writeLong(span.length);
+    output.writeInt(pack);
+    output.writeLong(span.fileOffset);
+    output.writeLong(span.lastAccessTimestamp);
+    log.endRecord();
+    spanCount++;
+  }
+
+}
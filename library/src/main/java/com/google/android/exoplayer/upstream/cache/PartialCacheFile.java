@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream.cache;
+
+import java.io.File;
+
+/**
+ * A cache file that's being written, whose data can be read before the file is committed.
+ *
+ * @see Cache#getPartialFile(String, long)
+ */
+public final class PartialCacheFile {
+
+  /**
+   * The cache key of the data being written.
+   */
+  public final String key;
+  /**
+   * The position in the original stream of the start of the file.
+   */
+  public final long position;
+  /**
+   * The maximum length of the data that will be written to the file, or -1 if unknown.
+   */
+  public final long maxLength;
+  /**
+   * The file into which the data is written.
+   */
+  public final File file;
+  /**
+   * The offset in {@link #file} at which the data starts.
+   */
+  public final long fileOffset;
+
+  private long length;
+  private boolean finished;
+
+  /* package */ PartialCacheFile(String key, long position, long maxLength, File file,
+      long fileOffset) {
+    this.key = key;
+    this.position = position;
+    this.maxLength = maxLength > 0 ? maxLength : -1;
+    this.file = file;
+    this.fileOffset = fileOffset;
+    this.length = -1;
+  }
+
+  /**
+   * Returns whether the file will contain the data at a given position, once it has been written.
+   * The file is excluded if it has not yet been created.
+   *
+   * @param key The cache key.
+   * @param position The position in the original stream.
+   * @return Whether the file will contain the data at the position.
+   */
+  /* package */ synchronized boolean covers(String key, long position) {
+    return length != -1 && !finished && this.key.equals(key) && this.position <= position
+        && (maxLength == -1 || position < this.position + maxLength);
+  }
+
+  /**
+   * Sets the length of the data that has been written to the file.
+   */
+  /* package */ synchronized void setLength(long length) {
+    this.length = length;
+    notifyAll();
+  }
+
+  /**
+   * Marks the file as committed or abandoned, after which no more data will be written to it.
+   */
+  /* package */ synchronized void finish() {
+    finished = true;
+    notifyAll();
+  }
+
+  /**
+   * Returns whether the file has been committed or abandoned.
+   */
+  public synchronized boolean isFinished() {
+    return finished;
+  }
+
+  /**
+   * Blocks until the length of the data written to the file exceeds a given length, or until the
+   * file is committed or abandoned.
+   *
+   * @param length The length to wait for the data to exceed.
+   * @return The length of the data that has been written to the file. If this does not exceed
+   *     {@code length} then no more data will be written to the file.
+   * @throws InterruptedException If the thread was interrupted.
+   */
+  public synchronized long blockUntilLengthExceeds(long length) throws InterruptedException {
+    while (this.length <= length && !finished) {
+      wait();
+    }
+    return this.length;
+  }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream.cache;
+
+import com.google.android.exoplayer.upstream.DataSource;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.FileDataSource.FileDataSourceException;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A {@link DataSource} that reads a {@link PartialCacheFile} as it's written, blocking until data
+ * is available. The end of the data is reached when the file is committed or abandoned, after
+ * which any remaining data should be read from the cache or from upstream.
+ * <p>
+ * The position of a {@link DataSpec} passed to {@link #open(DataSpec)} is the offset within the
+ * data being written from which data should be read, which starts at
+ * {@link PartialCacheFile#fileOffset} in the file.
+ */
+/* package */ final class PartialCacheFileDataSource implements DataSource {
+
+  private final PartialCacheFile partialFile;
+
+  private RandomAccessFile file;
+  private long dataPosition;
+  private long bytesRemaining;
+
+  /**
+   * @param partialFile The file to read.
+   */
+  public PartialCacheFileDataSource(PartialCacheFile partialFile) {
+    this.partialFile = partialFile;
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws FileDataSourceException {
+    dataPosition = dataSpec.position;
+    bytesRemaining = dataSpec.length;
+    try {
+      file = new RandomAccessFile(partialFile.file, "r");
+      file.seek(partialFile.fileOffset + dataPosition);
+    } catch (FileNotFoundException e) {
+      if (!partialFile.isFinished()) {
+        throw new FileDataSourceException(e);
+      }
+      // The file was finished and deleted before it could be opened. Behave as though the end of
+      // the data has been reached, so that the caller looks up the data again.
+      bytesRemaining = 0;
+    } catch (IOException e) {
+      throw new FileDataSourceException(e);
+    }
+    return dataSpec.length;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws IOException {
+    if (bytesRemaining == 0) {
+      return -1;
+    }
+    long availableLength;
+    try {
+      availableLength = partialFile.blockUntilLengthExceeds(dataPosition) - dataPosition;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    if (availableLength <= 0) {
+      return -1;
+    }
+    long maxReadLength = bytesRemaining == DataSpec.LENGTH_UNBOUNDED ? availableLength
+        : Math.min(availableLength, bytesRemaining);
+    int bytesRead;
+    try {
+      bytesRead = file.read(buffer, offset, (int) Math.min(readLength, maxReadLength));
+    } catch (IOException e) {
+      throw new FileDataSourceException(e);
+    }
+    if (bytesRead > 0) {
+      dataPosition += bytesRead;
+      if (bytesRemaining != DataSpec.LENGTH_UNBOUNDED) {
+        bytesRemaining -= bytesRead;
+      }
+    }
+    return bytesRead;
+  }
+
+  @Override
+  public void close() throws FileDataSourceException {
+    if (file != null) {
+      try {
+        file.close();
+      } catch (IOException e) {
+        throw new FileDataSourceException(e);
+      } finally {
+        file = null;
+      }
+    }
+  }
+
+}
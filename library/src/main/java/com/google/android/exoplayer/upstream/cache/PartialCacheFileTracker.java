@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream.cache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the {@link PartialCacheFile}s of a {@link Cache}. Instances are thread safe.
+ * <p>
+ * Files obtained from {@link Cache#startFile(String, long, long)} are identified by the file.
+ * Regions obtained from {@link InPlaceWritableCache#startRegion(String, long, long)}, several of
+ * which may share a file, are identified by the {@link PartialCacheFile} itself.
+ */
+/* package */ final class PartialCacheFileTracker {
+
+  private final ConcurrentHashMap<Object, PartialCacheFile> partialFiles;
+
+  public PartialCacheFileTracker() {
+    partialFiles = new ConcurrentHashMap<Object, PartialCacheFile>();
+  }
+
+  /**
+   * Starts tracking a file returned by {@link Cache#startFile(String, long, long)}.
+   */
+  public void start(String key, long position, long maxLength, File file) {
+    partialFiles.put(file, new PartialCacheFile(key, position, maxLength, file, 0));
+  }
+
+  /**
+   * Starts tracking a region returned by {@link InPlaceWritableCache#startRegion}.
+   *
+   * @return The region.
+   */
+  public PartialCacheFile startRegion(String key, long position, long maxLength, File file,
+      long fileOffset) {
+    PartialCacheFile region = new PartialCacheFile(key, position, maxLength, file, fileOffset);
+    partialFiles.put(region, region);
+    return region;
+  }
+
+  /**
+   * Updates the length of the data written to a tracked file or region. Does nothing if it's not
+   * tracked.
+   */
+  public void setLength(Object fileOrRegion, long length) {
+    PartialCacheFile partialFile = partialFiles.get(fileOrRegion);
+    if (partialFile != null) {
+      partialFile.setLength(length);
+    }
+  }
+
+  /**
+   * Returns the tracked file that covers a given position, or null if there is no such file.
+   */
+  public PartialCacheFile get(String key, long position) {
+    PartialCacheFile result = null;
+    for (PartialCacheFile partialFile : partialFiles.values()) {
+      if (partialFile.covers(key, position)
+          && (result == null || partialFile.position > result.position)) {
+        result = partialFile;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Finishes a tracked file or region, which has been committed. Does nothing if it's not tracked.
+   */
+  public void finish(Object fileOrRegion) {
+    PartialCacheFile partialFile = partialFiles.remove(fileOrRegion);
+    if (partialFile != null) {
+      partialFile.finish();
+    }
+  }
+
+  /**
+   * Finishes any tracked files that were started within a hole that's been released, and which
+   * have therefore been abandoned.
+   *
+   * @return The abandoned files and regions.
+   */
+  public List<PartialCacheFile> finish(CacheSpan holeSpan) {
+    List<PartialCacheFile> abandoned = new ArrayList<PartialCacheFile>();
+    Iterator<PartialCacheFile> iterator = partialFiles.values().iterator();
+    while (iterator.hasNext()) {
+      PartialCacheFile partialFile = iterator.next();
+      if (partialFile.key.equals(holeSpan.key) && partialFile.position >= holeSpan.position
+          && (holeSpan.isOpenEnded()
+              || partialFile.position < holeSpan.position + holeSpan.length)) {
+        iterator.remove();
+        partialFile.finish();
+        abandoned.add(partialFile);
+      }
+    }
+    return abandoned;
+  }
+
+}
@@ -19,27 +19,61 @@ import com.google.android.exoplayer.util.Assertions;
 
 import android.os.ConditionVariable;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map.Entry;
+import java.util.List;
 import java.util.NavigableSet;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A {@link Cache} implementation that maintains an in-memory representation.
+ * <p>
+ * The in-memory representation is persisted to an index file in the cache directory, so that it can
+ * be restored without scanning the directory when the cache is next constructed.
+ * <p>
+ * The state for each key is guarded by one of a fixed number of lock stripes, so that operations
+ * on different keys can generally proceed concurrently. Changes to the cached spans are queued as
+ * events whilst the corresponding stripe is held, and are then delivered to the
+ * {@link CacheEvictor} and the index under a separate lock. Since the events are delivered in the
+ * order in which the changes were made, the evictor observes a consistent history of each key.
+ * Listeners registered for a key are notified synchronously, whilst the stripe is held.
+ * <p>
+ * Adjacent spans can be merged into larger files by calling {@link #compact(String, long)}, or by
+ * using a {@link CacheCompactor}.
  */
 public class SimpleCache implements Cache {
 
+  private static final int STRIPE_COUNT = 16;
+
   private final File cacheDir;
   private final CacheEvictor evictor;
-  private final HashMap<String, CacheSpan> lockedSpans;
-  private final HashMap<String, TreeSet<CacheSpan>> cachedSpans;
-  private final HashMap<String, ArrayList<Listener>> listeners;
-  private long totalSpace = 0;
+  private final SimpleCacheIndex index;
+  private final Object[] stripes;
+  private final ConcurrentHashMap<String, TreeSet<CacheSpan>> lockedSpans;
+  private final ConcurrentHashMap<String, TreeSet<CacheSpan>> cachedSpans;
+  private final ConcurrentHashMap<String, CachedRanges> cachedRanges;
+  private final ConcurrentHashMap<String, ArrayList<Listener>> listeners;
+  private final AtomicLong totalSpace;
+  private final ReentrantLock eventLock;
+  private final ConcurrentLinkedQueue<Event> events;
+  private final ConditionVariable initialized;
+  private final ConcurrentHashMap<File, long[]> compactedFileBoundaries;
+  private final AtomicLong compactedFileCount;
+  private final AtomicLong savedOpenCount;
+  private final PartialCacheFileTracker partialFiles;
 
   /**
    * Constructs the cache. The cache will delete any unrecognized files from the directory. Hence
@@ -50,85 +84,130 @@ public class SimpleCache implements Cache {
   public SimpleCache(File cacheDir, CacheEvictor evictor) {
     this.cacheDir = cacheDir;
     this.evictor = evictor;
-    this.lockedSpans = new HashMap<String, CacheSpan>();
-    this.cachedSpans = new HashMap<String, TreeSet<CacheSpan>>();
-    this.listeners = new HashMap<String, ArrayList<Listener>>();
-    // Start cache initialization.
-    final ConditionVariable conditionVariable = new ConditionVariable();
+    this.index = new SimpleCacheIndex(cacheDir);
+    this.stripes = new Object[STRIPE_COUNT];
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      stripes[i] = new Object();
+    }
+    this.lockedSpans = new ConcurrentHashMap<String, TreeSet<CacheSpan>>();
+    this.cachedSpans = new ConcurrentHashMap<String, TreeSet<CacheSpan>>();
+    this.cachedRanges = new ConcurrentHashMap<String, CachedRanges>();
+    this.listeners = new ConcurrentHashMap<String, ArrayList<Listener>>();
+    this.totalSpace = new AtomicLong();
+    this.eventLock = new ReentrantLock();
+    this.events = new ConcurrentLinkedQueue<Event>();
+    this.compactedFileBoundaries = new ConcurrentHashMap<File, long[]>();
+    this.compactedFileCount = new AtomicLong();
+    this.savedOpenCount = new AtomicLong();
+    this.partialFiles = new PartialCacheFileTracker();
+    // Start cache initialization. Other methods block until it has completed.
+    this.initialized = new ConditionVariable();
     new Thread() {
       @Override
       public void run() {
-        synchronized (SimpleCache.this) {
-          conditionVariable.open();
+        eventLock.lock();
+        try {
           initialize();
+        } finally {
+          initialized.open();
+          // The evictor may remove spans in response to the events queued by initialization, so
+          // they must be delivered after the other methods have been unblocked.
+          deliverEventsAndUnlock();
         }
       }
     }.start();
-    conditionVariable.block();
   }
 
   @Override
-  public synchronized NavigableSet<CacheSpan> addListener(String key, Listener listener) {
-    ArrayList<Listener> listenersForKey = listeners.get(key);
-    if (listenersForKey == null) {
-      listenersForKey = new ArrayList<Listener>();
-      listeners.put(key, listenersForKey);
+  public NavigableSet<CacheSpan> addListener(String key, Listener listener) {
+    initialized.block();
+    synchronized (getStripe(key)) {
+      ArrayList<Listener> listenersForKey = listeners.get(key);
+      if (listenersForKey == null) {
+        listenersForKey = new ArrayList<Listener>();
+        listeners.put(key, listenersForKey);
+      }
+      listenersForKey.add(listener);
+      return getCachedSpansInternal(key);
     }
-    listenersForKey.add(listener);
-    return getCachedSpans(key);
   }
 
   @Override
-  public synchronized void removeListener(String key, Listener listener) {
-    ArrayList<Listener> listenersForKey = listeners.get(key);
-    if (listenersForKey != null) {
-      listenersForKey.remove(listener);
-      if (listenersForKey.isEmpty()) {
-        listeners.remove(key);
+  public void removeListener(String key, Listener listener) {
+    initialized.block();
+    synchronized (getStripe(key)) {
+      ArrayList<Listener> listenersForKey = listeners.get(key);
+      if (listenersForKey != null) {
+        listenersForKey.remove(listener);
+        if (listenersForKey.isEmpty()) {
+          listeners.remove(key);
+        }
       }
     }
   }
 
   @Override
-  public synchronized NavigableSet<CacheSpan> getCachedSpans(String key) {
-    TreeSet<CacheSpan> spansForKey = cachedSpans.get(key);
-    return spansForKey == null ? null : new TreeSet<CacheSpan>(spansForKey);
+  public NavigableSet<CacheSpan> getCachedSpans(String key) {
+    initialized.block();
+    synchronized (getStripe(key)) {
+      return getCachedSpansInternal(key);
+    }
   }
 
   @Override
-  public synchronized Set<String> getKeys() {
+  public Set<String> getKeys() {
+    initialized.block();
     return new HashSet<String>(cachedSpans.keySet());
   }
 
   @Override
-  public synchronized long getCacheSpace() {
-    return totalSpace;
+  public long getCacheSpace() {
+    initialized.block();
+    return totalSpace.get();
   }
 
   @Override
-  public synchronized CacheSpan startReadWrite(String key, long position)
+  public CacheSpan startReadWrite(String key, long position) throws InterruptedException {
+    return startReadWrite(key, position, -1);
+  }
+
+  @Override
+  public CacheSpan startReadWriteNonBlocking(String key, long position) {
+    return startReadWriteNonBlocking(key, position, -1);
+  }
+
+  @Override
+  public CacheSpan startReadWrite(String key, long position, long length)
       throws InterruptedException {
+    initialized.block();
     CacheSpan lookupSpan = CacheSpan.createLookup(key, position);
-    while (true) {
-      CacheSpan span = startReadWriteNonBlocking(lookupSpan);
-      if (span != null) {
-        return span;
-      } else {
+    CacheSpan span;
+    Object stripe = getStripe(key);
+    synchronized (stripe) {
+      while ((span = startReadWriteInternal(lookupSpan, length)) == null) {
         // Write case, lock not available. We'll be woken up when a locked span is released (if the
-        // released lock is for the requested key then we'll be able to make progress) or when a
-        // span is added to the cache (if the span is for the requested key and covers the requested
-        // position, then we'll become a read and be able to make progress).
-        wait();
+        // released lock covers the requested position then we'll be able to make progress) or when
+        // a span is added to the cache (if the span is for the requested key and covers the
+        // requested position, then we'll become a read and be able to make progress).
+        stripe.wait();
       }
     }
+    deliverEvents();
+    return span;
   }
 
   @Override
-  public synchronized CacheSpan startReadWriteNonBlocking(String key, long position) {
-    return startReadWriteNonBlocking(CacheSpan.createLookup(key, position));
+  public CacheSpan startReadWriteNonBlocking(String key, long position, long length) {
+    initialized.block();
+    CacheSpan span;
+    synchronized (getStripe(key)) {
+      span = startReadWriteInternal(CacheSpan.createLookup(key, position), length);
+    }
+    deliverEvents();
+    return span;
   }
 
-  private synchronized CacheSpan startReadWriteNonBlocking(CacheSpan lookupSpan) {
+  private CacheSpan startReadWriteInternal(CacheSpan lookupSpan, long length) {
     CacheSpan spanningRegion = getSpan(lookupSpan);
 
     // Read case.
@@ -137,59 +216,484 @@ public class SimpleCache implements Cache {
       // Remove the old span from the in-memory representation.
       TreeSet<CacheSpan> spansForKey = cachedSpans.get(oldCacheSpan.key);
       Assertions.checkState(spansForKey.remove(oldCacheSpan));
-      // Obtain a new span with updated last access timestamp.
-      spanningRegion = oldCacheSpan.touch();
+      // Obtain a new span with updated last access timestamp. The timestamp is persisted by the
+      // index if possible, or else by renaming the file.
+      if (index.isEnabled()) {
+        spanningRegion = CacheSpan.createCacheEntry(oldCacheSpan.file, oldCacheSpan.key,
+            oldCacheSpan.position, oldCacheSpan.length, System.currentTimeMillis());
+      } else {
+        spanningRegion = oldCacheSpan.touch();
+      }
+      long[] boundaries = compactedFileBoundaries.get(oldCacheSpan.file);
+      if (boundaries != null) {
+        // Count the files that would have been opened to read from the lookup position to the end
+        // of the span, had the span not been compacted.
+        for (int i = 0; i < boundaries.length; i++) {
+          if (boundaries[i] > lookupSpan.position) {
+            savedOpenCount.incrementAndGet();
+          }
+        }
+        if (!spanningRegion.file.equals(oldCacheSpan.file)) {
+          compactedFileBoundaries.remove(oldCacheSpan.file);
+          compactedFileBoundaries.put(spanningRegion.file, boundaries);
+        }
+      }
       // Add the updated span back into the in-memory representation.
       spansForKey.add(spanningRegion);
       notifySpanTouched(oldCacheSpan, spanningRegion);
       return spanningRegion;
     }
 
-    // Write case, lock available.
-    if (!lockedSpans.containsKey(lookupSpan.key)) {
-      lockedSpans.put(lookupSpan.key, spanningRegion);
-      return spanningRegion;
+    // Write case, lock not available.
+    if (isLocked(lookupSpan.key, lookupSpan.position)) {
+      return null;
     }
 
-    // Write case, lock not available.
-    return null;
+    // Write case, lock available. Limit the hole to the requested length, and so that it doesn't
+    // overlap the next locked hole.
+    TreeSet<CacheSpan> lockedSpansForKey = lockedSpans.get(lookupSpan.key);
+    if (lockedSpansForKey == null) {
+      lockedSpansForKey = new TreeSet<CacheSpan>();
+      lockedSpans.put(lookupSpan.key, lockedSpansForKey);
+    }
+    long endPosition = spanningRegion.isOpenEnded() ? Long.MAX_VALUE
+        : spanningRegion.position + spanningRegion.length;
+    if (length != -1) {
+      endPosition = Math.min(endPosition, lookupSpan.position + length);
+    }
+    CacheSpan ceilingLockedSpan = lockedSpansForKey.ceiling(lookupSpan);
+    if (ceilingLockedSpan != null) {
+      endPosition = Math.min(endPosition, ceilingLockedSpan.position);
+    }
+    if (endPosition != Long.MAX_VALUE) {
+      spanningRegion = CacheSpan.createClosedHole(lookupSpan.key, lookupSpan.position,
+          endPosition - lookupSpan.position);
+    }
+    lockedSpansForKey.add(spanningRegion);
+    return spanningRegion;
+  }
+
+  /**
+   * Returns whether a locked hole for the specified key covers the specified position. Must be
+   * called whilst holding the stripe for the key.
+   */
+  private boolean isLocked(String key, long position) {
+    TreeSet<CacheSpan> lockedSpansForKey = lockedSpans.get(key);
+    if (lockedSpansForKey == null) {
+      return false;
+    }
+    CacheSpan floorLockedSpan = lockedSpansForKey.floor(CacheSpan.createLookup(key, position));
+    return floorLockedSpan != null && (floorLockedSpan.isOpenEnded()
+        || position < floorLockedSpan.position + floorLockedSpan.length);
   }
 
   @Override
-  public synchronized File startFile(String key, long position, long length) {
-    Assertions.checkState(lockedSpans.containsKey(key));
-    if (!cacheDir.exists()) {
-      // For some reason the cache directory doesn't exist. Make a best effort to create it.
-      removeStaleSpans();
-      cacheDir.mkdirs();
+  public File startFile(String key, long position, long length) {
+    initialized.block();
+    synchronized (getStripe(key)) {
+      Assertions.checkState(isLocked(key, position));
+    }
+    eventLock.lock();
+    try {
+      if (!cacheDir.exists()) {
+        // For some reason the cache directory doesn't exist. Make a best effort to create it.
+        removeStaleSpans();
+        cacheDir.mkdirs();
+        deliverEvents();
+        rewriteIndex();
+      }
+      deliverEvents();
+      evictor.onStartFile(this, key, position, length);
+      long timestamp = System.currentTimeMillis();
+      index.recordStart(key, position, timestamp);
+      File file = CacheSpan.getCacheFileName(cacheDir, key, position, timestamp);
+      partialFiles.start(key, position, length, file);
+      return file;
+    } finally {
+      deliverEventsAndUnlock();
     }
-    evictor.onStartFile(this, key, position, length);
-    return CacheSpan.getCacheFileName(cacheDir, key, position, System.currentTimeMillis());
   }
 
   @Override
-  public synchronized void commitFile(File file) {
+  public void commitFile(File file) {
+    initialized.block();
     CacheSpan span = CacheSpan.createCacheEntry(file);
     Assertions.checkState(span != null);
-    Assertions.checkState(lockedSpans.containsKey(span.key));
-    // If the file doesn't exist, don't add it to the in-memory representation.
-    if (!file.exists()) {
-      return;
+    Object stripe = getStripe(span.key);
+    synchronized (stripe) {
+      try {
+        Assertions.checkState(isLocked(span.key, span.position));
+        // If the file doesn't exist, don't add it to the in-memory representation.
+        if (!file.exists()) {
+          return;
+        }
+        // If the file has length 0, delete it and don't add it to the in-memory representation.
+        long length = file.length();
+        if (length == 0) {
+          file.delete();
+          return;
+        }
+        addSpan(span, false);
+        stripe.notifyAll();
+      } finally {
+        // Readers following the file will find the committed span when they next look it up.
+        partialFiles.finish(file);
+      }
     }
-    // If the file has length 0, delete it and don't add it to the in-memory representation.
-    long length = file.length();
-    if (length == 0) {
-      file.delete();
-      return;
+    deliverEvents();
+  }
+
+  @Override
+  public void setPartialFileLength(File file, long length) {
+    partialFiles.setLength(file, length);
+  }
+
+  @Override
+  public PartialCacheFile getPartialFile(String key, long position) {
+    initialized.block();
+    return partialFiles.get(key, position);
+  }
+
+  @Override
+  public void releaseHoleSpan(CacheSpan holeSpan) {
+    initialized.block();
+    Object stripe = getStripe(holeSpan.key);
+    synchronized (stripe) {
+      TreeSet<CacheSpan> lockedSpansForKey = lockedSpans.get(holeSpan.key);
+      Assertions.checkState(lockedSpansForKey != null
+          && holeSpan == lockedSpansForKey.floor(holeSpan));
+      lockedSpansForKey.remove(holeSpan);
+      if (lockedSpansForKey.isEmpty()) {
+        lockedSpans.remove(holeSpan.key);
+      }
+      partialFiles.finish(holeSpan);
+      stripe.notifyAll();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The span is only removed if it's still cached. If it has been removed or replaced by a span
+   * with an updated last access timestamp, then the call has no effect.
+   */
+  @Override
+  public void removeSpan(CacheSpan span) {
+    initialized.block();
+    removeSpanIfCached(span);
+  }
+
+  /**
+   * Removes a span and deletes its file, if the span is still cached.
+   *
+   * @return Whether the span was removed.
+   */
+  private boolean removeSpanIfCached(CacheSpan span) {
+    eventLock.lock();
+    try {
+      // Bring the evictor up to date, so that any decision that it makes based on the span being
+      // cached is consistent with the in-memory representation.
+      deliverEvents();
+      synchronized (getStripe(span.key)) {
+        TreeSet<CacheSpan> spansForKey = cachedSpans.get(span.key);
+        CacheSpan cachedSpan = spansForKey == null ? null : spansForKey.floor(span);
+        if (cachedSpan != span) {
+          return false;
+        }
+        removeSpanInternal(span);
+      }
+      span.file.delete();
+      return true;
+    } finally {
+      deliverEventsAndUnlock();
+    }
+  }
+
+  private void removeSpanInternal(CacheSpan span) {
+    TreeSet<CacheSpan> spansForKey = cachedSpans.get(span.key);
+    totalSpace.addAndGet(-span.length);
+    Assertions.checkState(spansForKey.remove(span));
+    if (spansForKey.isEmpty()) {
+      cachedSpans.remove(span.key);
+      cachedRanges.remove(span.key);
+    } else {
+      cachedRanges.get(span.key).removeSpan(span, spansForKey);
     }
-    addSpan(span);
-    notifyAll();
+    compactedFileBoundaries.remove(span.file);
+    notifySpanRemoved(span);
+  }
+
+  @Override
+  public boolean isCached(String key, long position, long length) {
+    long cachedLength = getCachedLength(key, position, length);
+    return cachedLength > 0 && cachedLength >= length;
   }
 
   @Override
-  public synchronized void releaseHoleSpan(CacheSpan holeSpan) {
-    Assertions.checkState(holeSpan == lockedSpans.remove(holeSpan.key));
-    notifyAll();
+  public long getCachedLength(String key, long position, long length) {
+    initialized.block();
+    synchronized (getStripe(key)) {
+      CachedRanges ranges = cachedRanges.get(key);
+      if (ranges == null) {
+        return length == -1 ? -Long.MAX_VALUE : -length;
+      }
+      return ranges.getCachedLength(position, length);
+    }
+  }
+
+  @Override
+  public long getCachedBytes(String key, long position, long length) {
+    initialized.block();
+    synchronized (getStripe(key)) {
+      CachedRanges ranges = cachedRanges.get(key);
+      return ranges == null ? 0 : ranges.getCachedBytes(position, length);
+    }
+  }
+
+  /**
+   * Merges runs of adjacent cached spans for a key into single files, each no longer than a
+   * specified maximum length.
+   * <p>
+   * Each run is copied into a new file without holding any locks, after which the spans are
+   * replaced by a single span for the new file. Listeners and the evictor are notified of the
+   * removal of each of the original spans, followed by the addition of the new span. If any of the
+   * original spans is removed or modified whilst its data is being copied then the run is left as
+   * it is. As with spans removed by the evictor, a reader that obtained one of the original spans
+   * before it was replaced must open its file promptly, since the file is then deleted.
+   * <p>
+   * This method performs I/O, and so should be called on a background thread.
+   *
+   * @param key The key whose spans should be compacted.
+   * @param maxFileLength The maximum length of a file created by compaction.
+   * @return The number of files eliminated.
+   */
+  public int compact(String key, long maxFileLength) {
+    initialized.block();
+    int eliminatedFileCount = 0;
+    long position = 0;
+    List<CacheSpan> run;
+    while ((run = getCompactableRun(key, position, maxFileLength)) != null) {
+      CacheSpan lastSpan = run.get(run.size() - 1);
+      position = lastSpan.position + lastSpan.length;
+      if (mergeRun(run)) {
+        eliminatedFileCount += run.size() - 1;
+      }
+    }
+    compactedFileCount.addAndGet(eliminatedFileCount);
+    return eliminatedFileCount;
+  }
+
+  /**
+   * Returns the total number of files that have been eliminated by {@link #compact(String, long)}.
+   */
+  public long getCompactedFileCount() {
+    return compactedFileCount.get();
+  }
+
+  /**
+   * Returns the number of file opens that have been saved by reads from compacted spans. A read
+   * from a compacted span is assumed to continue to the end of the span, and so to save opening
+   * each of the original files that started after the read position.
+   */
+  public long getSavedOpenCount() {
+    return savedOpenCount.get();
+  }
+
+  /**
+   * Removes the spans for a key whose files have been deleted from under the cache, for example by
+   * a storage cleaner.
+   * <p>
+   * Lookups don't check that files exist, so a stale span is otherwise only removed when a reader
+   * fails to open its file. Calling this method periodically for each key, as
+   * {@link CacheVerifier} does, removes stale spans before they're read. The files are checked
+   * without holding any locks, and only the key's stale spans are removed.
+   * <p>
+   * This method performs I/O, and so should be called on a background thread.
+   *
+   * @param key The key whose spans should be verified.
+   * @return The number of stale spans removed.
+   */
+  public int verify(String key) {
+    NavigableSet<CacheSpan> spans = getCachedSpans(key);
+    if (spans == null) {
+      return 0;
+    }
+    int removedCount = 0;
+    Iterator<CacheSpan> iterator = spans.iterator();
+    while (iterator.hasNext()) {
+      CacheSpan span = iterator.next();
+      // If the span has been replaced since it was obtained, for example because its file was
+      // renamed when it was touched, then it won't be removed.
+      if (!span.file.exists() && removeSpanIfCached(span)) {
+        removedCount++;
+      }
+    }
+    return removedCount;
+  }
+
+  /**
+   * Returns the first run of two or more adjacent cached spans for a key, starting at or after the
+   * specified position, whose total length does not exceed the specified maximum.
+   */
+  private List<CacheSpan> getCompactableRun(String key, long position, long maxLength) {
+    synchronized (getStripe(key)) {
+      TreeSet<CacheSpan> spansForKey = cachedSpans.get(key);
+      if (spansForKey == null) {
+        return null;
+      }
+      ArrayList<CacheSpan> run = new ArrayList<CacheSpan>();
+      long runLength = 0;
+      for (CacheSpan span : spansForKey.tailSet(CacheSpan.createLookup(key, position), true)) {
+        CacheSpan previousSpan = run.isEmpty() ? null : run.get(run.size() - 1);
+        if (previousSpan == null || previousSpan.position + previousSpan.length != span.position
+            || runLength + span.length > maxLength) {
+          if (run.size() > 1) {
+            return run;
+          }
+          run.clear();
+          runLength = 0;
+        }
+        if (span.length <= maxLength) {
+          run.add(span);
+          runLength += span.length;
+        }
+      }
+      return run.size() > 1 ? run : null;
+    }
+  }
+
+  /**
+   * Merges a run of adjacent spans into a single file, if they're still cached.
+   *
+   * @return Whether the run was merged.
+   */
+  private boolean mergeRun(List<CacheSpan> run) {
+    CacheSpan firstSpan = run.get(0);
+    String key = firstSpan.key;
+    File mergedFile;
+    eventLock.lock();
+    try {
+      deliverEvents();
+      long timestamp = System.currentTimeMillis();
+      mergedFile = CacheSpan.getCacheFileName(cacheDir, key, firstSpan.position, timestamp);
+      if (mergedFile.exists()) {
+        return false;
+      }
+      // Record the start of the file, so that it's deleted if we die before committing it.
+      index.recordStart(key, firstSpan.position, timestamp);
+    } finally {
+      deliverEventsAndUnlock();
+    }
+
+    long length = 0;
+    try {
+      FileChannel output = new FileOutputStream(mergedFile).getChannel();
+      try {
+        for (int i = 0; i < run.size(); i++) {
+          CacheSpan span = run.get(i);
+          FileChannel input = new FileInputStream(span.file).getChannel();
+          try {
+            long transferred = 0;
+            while (transferred < span.length) {
+              long bytesTransferred =
+                  input.transferTo(transferred, span.length - transferred, output);
+              if (bytesTransferred <= 0) {
+                // The file was truncated.
+                throw new EOFException();
+              }
+              transferred += bytesTransferred;
+            }
+          } finally {
+            input.close();
+          }
+          length += span.length;
+        }
+      } finally {
+        output.close();
+      }
+    } catch (IOException e) {
+      mergedFile.delete();
+      return false;
+    }
+
+    boolean merged = false;
+    ArrayList<CacheSpan> replacedSpans = new ArrayList<CacheSpan>(run.size());
+    eventLock.lock();
+    try {
+      deliverEvents();
+      synchronized (getStripe(key)) {
+        TreeSet<CacheSpan> spansForKey = cachedSpans.get(key);
+        long lastAccessTimestamp = 0;
+        for (int i = 0; spansForKey != null && i < run.size(); i++) {
+          // The span may have been replaced by one with an updated last access timestamp, but its
+          // data must be unchanged.
+          CacheSpan span = spansForKey.floor(run.get(i));
+          if (span == null || span.position != run.get(i).position
+              || !span.file.equals(run.get(i).file)) {
+            break;
+          }
+          replacedSpans.add(span);
+          lastAccessTimestamp = Math.max(lastAccessTimestamp, span.lastAccessTimestamp);
+        }
+        if (replacedSpans.size() == run.size()) {
+          long[] boundaries = new long[0];
+          for (int i = 0; i < replacedSpans.size(); i++) {
+            CacheSpan span = replacedSpans.get(i);
+            boundaries = mergeBoundaries(boundaries, compactedFileBoundaries.get(span.file),
+                i == 0 ? -1 : span.position);
+            removeSpanInternal(span);
+          }
+          addSpan(CacheSpan.createCacheEntry(mergedFile, key, firstSpan.position, length,
+              lastAccessTimestamp), false);
+          compactedFileBoundaries.put(mergedFile, boundaries);
+          merged = true;
+        }
+      }
+    } finally {
+      deliverEventsAndUnlock();
+    }
+
+    if (merged) {
+      for (int i = 0; i < replacedSpans.size(); i++) {
+        replacedSpans.get(i).file.delete();
+      }
+    } else {
+      mergedFile.delete();
+    }
+    return merged;
+  }
+
+  /**
+   * Returns the boundaries of a compacted file, given those of a file from which it was compacted.
+   *
+   * @param boundaries The boundaries accumulated so far.
+   * @param fileBoundaries The boundaries of the file, or null if the file was not compacted.
+   * @param filePosition The position of the file, or -1 if it's not a boundary.
+   * @return The accumulated boundaries.
+   */
+  private static long[] mergeBoundaries(long[] boundaries, long[] fileBoundaries,
+      long filePosition) {
+    int fileBoundaryCount = fileBoundaries == null ? 0 : fileBoundaries.length;
+    int addedCount = fileBoundaryCount + (filePosition == -1 ? 0 : 1);
+    long[] result = new long[boundaries.length + addedCount];
+    System.arraycopy(boundaries, 0, result, 0, boundaries.length);
+    int index = boundaries.length;
+    if (filePosition != -1) {
+      result[index++] = filePosition;
+    }
+    for (int i = 0; i < fileBoundaryCount; i++) {
+      result[index++] = fileBoundaries[i];
+    }
+    return result;
+  }
+
+  private Object getStripe(String key) {
+    return stripes[(key.hashCode() & Integer.MAX_VALUE) % STRIPE_COUNT];
+  }
+
+  private NavigableSet<CacheSpan> getCachedSpansInternal(String key) {
+    TreeSet<CacheSpan> spansForKey = cachedSpans.get(key);
+    return spansForKey == null ? null : new TreeSet<CacheSpan>(spansForKey);
   }
 
   /**
@@ -199,6 +703,8 @@ public class SimpleCache implements Cache {
    * {@link CacheSpan} defines the file in which the data is stored. If the lookup position is not
    * contained by an existing entry, then the returned {@link CacheSpan} defines the maximum extents
    * of the hole in the cache.
+   * <p>
+   * Must be called whilst holding the stripe for the key.
    *
    * @param lookupSpan A lookup {@link CacheSpan} specifying a key and position.
    * @return The corresponding cache {@link CacheSpan}.
@@ -213,15 +719,10 @@ public class SimpleCache implements Cache {
     CacheSpan floorSpan = entries.floor(lookupSpan);
     if (floorSpan != null &&
         floorSpan.position <= offset && offset < floorSpan.position + floorSpan.length) {
-      // The lookup position is contained within floorSpan.
-      if (floorSpan.file.exists()) {
-        return floorSpan;
-      } else {
-        // The file has been deleted from under us. It's likely that other files will have been
-        // deleted too, so scan the whole in-memory representation.
-        removeStaleSpans();
-        return getSpan(lookupSpan);
-      }
+      // The lookup position is contained within floorSpan. We don't check that its file still
+      // exists, since doing so would require a syscall for every lookup. If it has been deleted
+      // from under us then opening it will fail, and the caller should remove the span.
+      return floorSpan;
     }
     CacheSpan ceilEntry = entries.ceiling(lookupSpan);
     return ceilEntry == null ? CacheSpan.createOpenHole(key, lookupSpan.position) :
@@ -236,81 +737,199 @@ public class SimpleCache implements Cache {
     if (!cacheDir.exists()) {
       cacheDir.mkdirs();
     }
-    File[] files = cacheDir.listFiles();
-    if (files == null) {
+    List<CacheSpan> indexedSpans = index.load();
+    if (indexedSpans != null) {
+      for (int i = 0; i < indexedSpans.size(); i++) {
+        addSpan(indexedSpans.get(i), true);
+      }
+      if (index.shouldRewrite()) {
+        rewriteIndex();
+      }
       return;
     }
+    // The index is missing or damaged, so scan the directory instead.
+    File[] files = cacheDir.listFiles();
+    if (files != null) {
+      scanFiles(files);
+    }
+    rewriteIndex();
+  }
+
+  private void scanFiles(File[] files) {
+    HashMap<String, CacheSpan> spans = new HashMap<String, CacheSpan>();
     for (int i = 0; i < files.length; i++) {
       File file = files[i];
-      if (file.length() == 0) {
+      if (index.isIndexFile(file)) {
+        continue;
+      } else if (file.length() == 0) {
         file.delete();
       } else {
         CacheSpan span = CacheSpan.createCacheEntry(file);
         if (span == null) {
           file.delete();
-        } else {
-          addSpan(span);
+          continue;
+        }
+        // There may be two files for the same position, for example if the process died after
+        // committing a compacted file but before deleting the files from which it was compacted.
+        // The files hold the same data, so keep the longer one, or else the newer one.
+        String spanId = span.key + ":" + span.position;
+        CacheSpan existingSpan = spans.put(spanId, span);
+        if (existingSpan != null) {
+          if (existingSpan.length > span.length || (existingSpan.length == span.length
+              && existingSpan.lastAccessTimestamp > span.lastAccessTimestamp)) {
+            spans.put(spanId, existingSpan);
+            file.delete();
+          } else {
+            existingSpan.file.delete();
+          }
         }
       }
     }
+    for (CacheSpan span : spans.values()) {
+      addSpan(span, true);
+    }
   }
 
   /**
-   * Adds a cached span to the in-memory representation.
+   * Adds a cached span to the in-memory representation, unless a span already exists at the same
+   * position. Must be called whilst holding the stripe for the span's key, except during
+   * initialization.
    *
    * @param span The span to be added.
+   * @param loaded Whether the span was loaded during initialization, in which case it's already
+   *     described by the index, or will be when the index is rewritten.
    */
-  private void addSpan(CacheSpan span) {
+  private void addSpan(CacheSpan span, boolean loaded) {
     TreeSet<CacheSpan> spansForKey = cachedSpans.get(span.key);
     if (spansForKey == null) {
       spansForKey = new TreeSet<CacheSpan>();
       cachedSpans.put(span.key, spansForKey);
+      cachedRanges.put(span.key, new CachedRanges());
     }
-    spansForKey.add(span);
-    totalSpace += span.length;
-    notifySpanAdded(span);
+    if (!spansForKey.add(span)) {
+      // A span already exists at the same position.
+      return;
+    }
+    cachedRanges.get(span.key).addSpan(span);
+    totalSpace.addAndGet(span.length);
+    notifySpanAdded(span, loaded);
   }
 
-  @Override
-  public synchronized void removeSpan(CacheSpan span) {
-    TreeSet<CacheSpan> spansForKey = cachedSpans.get(span.key);
-    totalSpace -= span.length;
-    Assertions.checkState(spansForKey.remove(span));
-    span.file.delete();
+  /**
+   * Scans all of the cached spans in the in-memory representation, removing any for which files
+   * no longer exist. Must not be called whilst holding a stripe.
+   */
+  private void removeStaleSpans() {
+    Iterator<String> iterator = cachedSpans.keySet().iterator();
+    while (iterator.hasNext()) {
+      String key = iterator.next();
+      synchronized (getStripe(key)) {
+        removeStaleSpans(key);
+      }
+    }
+  }
+
+  /**
+   * Removes the cached spans for a key for which files no longer exist. Must be called whilst
+   * holding the stripe for the key.
+   */
+  private void removeStaleSpans(String key) {
+    TreeSet<CacheSpan> spansForKey = cachedSpans.get(key);
+    if (spansForKey == null) {
+      return;
+    }
+    Iterator<CacheSpan> spanIterator = spansForKey.iterator();
+    while (spanIterator.hasNext()) {
+      CacheSpan span = spanIterator.next();
+      if (!span.file.exists()) {
+        spanIterator.remove();
+        if (span.isCached) {
+          totalSpace.addAndGet(-span.length);
+          cachedRanges.get(key).removeSpan(span, spansForKey);
+        }
+        compactedFileBoundaries.remove(span.file);
+        notifySpanRemoved(span);
+      }
+    }
     if (spansForKey.isEmpty()) {
-      cachedSpans.remove(span.key);
+      cachedSpans.remove(key);
+      cachedRanges.remove(key);
     }
-    notifySpanRemoved(span);
   }
 
   /**
-   * Scans all of the cached spans in the in-memory representation, removing any for which files
-   * no longer exist.
+   * Rewrites the index from a snapshot of the in-memory representation. Must be called whilst
+   * holding the event lock, and after all queued events have been delivered.
+   * <p>
+   * The snapshot may include changes whose events are queued after it is taken. Replaying the
+   * records for these events has no effect, and so the rewritten index remains consistent.
    */
-  private void removeStaleSpans() {
-    Iterator<Entry<String, TreeSet<CacheSpan>>> iterator = cachedSpans.entrySet().iterator();
+  private void rewriteIndex() {
+    ArrayList<TreeSet<CacheSpan>> snapshot = new ArrayList<TreeSet<CacheSpan>>();
+    Iterator<String> iterator = cachedSpans.keySet().iterator();
     while (iterator.hasNext()) {
-      Entry<String, TreeSet<CacheSpan>> next = iterator.next();
-      Iterator<CacheSpan> spanIterator = next.getValue().iterator();
-      boolean isEmpty = true;
-      while (spanIterator.hasNext()) {
-        CacheSpan span = spanIterator.next();
-        if (!span.file.exists()) {
-          spanIterator.remove();
-          if (span.isCached) {
-            totalSpace -= span.length;
-          }
-          notifySpanRemoved(span);
-        } else {
-          isEmpty = false;
+      String key = iterator.next();
+      synchronized (getStripe(key)) {
+        TreeSet<CacheSpan> spansForKey = cachedSpans.get(key);
+        if (spansForKey != null) {
+          snapshot.add(new TreeSet<CacheSpan>(spansForKey));
         }
       }
-      if (isEmpty) {
-        iterator.remove();
+    }
+    index.rewrite(snapshot);
+  }
+
+  /**
+   * Delivers queued events to the evictor and the index.
+   * <p>
+   * Must not be called whilst holding a stripe. If another thread is delivering events then this
+   * method may return immediately, in which case the other thread will deliver any events that
+   * were queued by the calling thread.
+   */
+  private void deliverEvents() {
+    while (!events.isEmpty() && eventLock.tryLock()) {
+      try {
+        Event event;
+        while ((event = events.poll()) != null) {
+          switch (event.type) {
+            case Event.TYPE_ADDED:
+              index.recordAdd(event.span);
+              evictor.onSpanAdded(this, event.span);
+              break;
+            case Event.TYPE_LOADED:
+              evictor.onSpanAdded(this, event.span);
+              break;
+            case Event.TYPE_REMOVED:
+              index.recordRemove(event.span);
+              evictor.onSpanRemoved(this, event.span);
+              break;
+            case Event.TYPE_TOUCHED:
+              index.recordTouch(event.newSpan);
+              evictor.onSpanTouched(this, event.span, event.newSpan);
+              break;
+          }
+        }
+        if (index.shouldRewrite()) {
+          rewriteIndex();
+        }
+      } finally {
+        eventLock.unlock();
       }
     }
   }
 
+  /**
+   * Releases the event lock, and then delivers any events that were queued whilst it was held.
+   * <p>
+   * A thread that queues an event whilst another holds the event lock leaves the event to be
+   * delivered by the holder, and so a thread that holds the lock must release it by calling this
+   * method rather than by unlocking it directly.
+   */
+  private void deliverEventsAndUnlock() {
+    eventLock.unlock();
+    deliverEvents();
+  }
+
   private void notifySpanRemoved(CacheSpan span) {
     ArrayList<Listener> keyListeners = listeners.get(span.key);
     if (keyListeners != null) {
@@ -318,17 +937,17 @@ public class SimpleCache implements Cache {
         keyListeners.get(i).onSpanRemoved(this, span);
       }
     }
-    evictor.onSpanRemoved(this, span);
+    events.add(new Event(Event.TYPE_REMOVED, span, null));
   }
 
-  private void notifySpanAdded(CacheSpan span) {
+  private void notifySpanAdded(CacheSpan span, boolean loaded) {
     ArrayList<Listener> keyListeners = listeners.get(span.key);
     if (keyListeners != null) {
       for (int i = keyListeners.size() - 1; i >= 0; i--) {
         keyListeners.get(i).onSpanAdded(this, span);
       }
     }
-    evictor.onSpanAdded(this, span);
+    events.add(new Event(loaded ? Event.TYPE_LOADED : Event.TYPE_ADDED, span, null));
   }
 
   private void notifySpanTouched(CacheSpan oldSpan, CacheSpan newSpan) {
@@ -338,44 +957,32 @@ public class SimpleCache implements Cache {
         keyListeners.get(i).onSpanTouched(this, oldSpan, newSpan);
       }
     }
-    evictor.onSpanTouched(this, oldSpan, newSpan);
+    events.add(new Event(Event.TYPE_TOUCHED, oldSpan, newSpan));
   }
 
-  @Override
-  public synchronized boolean isCached(String key, long position, long length) {
-    TreeSet<CacheSpan> entries = cachedSpans.get(key);
-    if (entries == null) {
-      return false;
-    }
-    CacheSpan lookupSpan = CacheSpan.createLookup(key, position);
-    CacheSpan floorSpan = entries.floor(lookupSpan);
-    if (floorSpan == null || floorSpan.position + floorSpan.length <= position) {
-      // We don't have a span covering the start of the queried region.
-      return false;
-    }
-    long queryEndPosition = position + length;
-    long currentEndPosition = floorSpan.position + floorSpan.length;
-    if (currentEndPosition >= queryEndPosition) {
-      // floorSpan covers the queried region.
-      return true;
-    }
-    Iterator<CacheSpan> iterator = entries.tailSet(floorSpan, false).iterator();
-    while (iterator.hasNext()) {
-      CacheSpan next = iterator.next();
-      if (next.position > currentEndPosition) {
-        // There's a hole in the cache within the queried region.
-        return false;
-      }
-      // We expect currentEndPosition to always equal (next.position + next.length), but
-      // perform a max check anyway to guard against the existence of overlapping spans.
-      currentEndPosition = Math.max(currentEndPosition, next.position + next.length);
-      if (currentEndPosition >= queryEndPosition) {
-        // We've found spans covering the queried region.
-        return true;
-      }
+  /**
+   * A change to the cached spans, to be delivered to the evictor and the index.
+   */
+  private static final class Event {
+
+    public static final int TYPE_ADDED = 0;
+    public static final int TYPE_REMOVED = 1;
+    public static final int TYPE_TOUCHED = 2;
+    /**
+     * A span was added during initialization. Unlike {@link #TYPE_ADDED}, the index is not updated.
+     */
+    public static final int TYPE_LOADED = 3;
+
+    public final int type;
+    public final CacheSpan span;
+    public final CacheSpan newSpan;
+
+    public Event(int type, CacheSpan span, CacheSpan newSpan) {
+      this.type = type;
+      this.span = span;
+      this.newSpan = newSpan;
     }
-    // We ran out of spans before covering the queried region.
-    return false;
+
   }
 
 }
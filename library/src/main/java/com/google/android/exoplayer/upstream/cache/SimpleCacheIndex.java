@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream.cache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * A persistent index of the spans in a {@link SimpleCache}, which allows the cache to be
+ * initialized by reading a single file rather than by scanning its directory.
+ * <p>
+ * The index is a {@link SpanLog}. A start record is written when a cache file is started, so that
+ * the file can be deleted if the process dies before it's committed. Add, touch and remove records
+ * are written as spans are committed, accessed and removed. Touch records are deferred, since the
+ * cache is only slightly less accurate if a span's most recent accesses are lost.
+ * <p>
+ * If the index cannot be read then the cache falls back to scanning its directory, after which the
+ * index is rewritten. If the index cannot be written then it's deleted and disabled for the
+ * lifetime of the instance, and so the next initialization will fall back to a scan.
+ */
+/* package */ final class SimpleCacheIndex {
+
+  private static final String FILE_NAME = "cached_spans.idx";
+
+  private static final int VERSION = 2;
+
+  private static final int RECORD_TYPE_START = 1;
+  private static final int RECORD_TYPE_ADD = 2;
+  private static final int RECORD_TYPE_TOUCH = 3;
+  private static final int RECORD_TYPE_REMOVE = 4;
+
+  private final File cacheDir;
+  private final SpanLog log;
+
+  private int spanCount;
+
+  /**
+   * @param cacheDir The cache directory, in which the index is stored.
+   */
+  public SimpleCacheIndex(File cacheDir) {
+    this.cacheDir = cacheDir;
+    log = new SpanLog(new File(cacheDir, FILE_NAME), VERSION, true);
+  }
+
+  /**
+   * Returns whether a file in the cache directory belongs to the index.
+   */
+  public boolean isIndexFile(File file) {
+    return log.isLogFile(file);
+  }
+
+  /**
+   * Returns whether the index is being maintained. If false, last access timestamps are not being
+   * persisted, and so must be recorded in the names of the cache files instead.
+   */
+  public boolean isEnabled() {
+    return log.isEnabled();
+  }
+
+  /**
+   * Returns whether the index should be rewritten by calling {@link #rewrite(Collection)}, either
+   * because it's much larger than the set of spans that it describes or because it's damaged.
+   */
+  public boolean shouldRewrite() {
+    return log.shouldRewrite(spanCount);
+  }
+
+  /**
+   * Reads the index. Cache files that were started but never committed are deleted.
+   *
+   * @return The cached spans, or null if the index does not exist or cannot be read, in which case
+   *     the directory should be scanned and the index rewritten.
+   */
+  public List<CacheSpan> load() {
+    final HashMap<String, CacheSpan> spans = new HashMap<String, CacheSpan>();
+    final HashMap<String, File> startedFiles = new HashMap<String, File>();
+    boolean loaded = log.load(new SpanLog.RecordHandler() {
+      @Override
+      public boolean handleRecord(int type, String key, DataInputStream input)
+          throws IOException {
+        long position = input.readLong();
+        if (position < 0) {
+          return false;
+        }
+        String spanId = key + ":" + position;
+        switch (type) {
+          case RECORD_TYPE_START:
+            long fileTimestamp = input.readLong();
+            startedFiles.put(spanId + ":" + fileTimestamp,
+                CacheSpan.getCacheFileName(cacheDir, key, position, fileTimestamp));
+            return true;
+          case RECORD_TYPE_ADD:
+            long length = input.readLong();
+            fileTimestamp = input.readLong();
+            long lastAccessTimestamp = input.readLong();
+            if (length <= 0) {
+              return false;
+            }
+            startedFiles.remove(spanId + ":" + fileTimestamp);
+            File file = CacheSpan.getCacheFileName(cacheDir, key, position, fileTimestamp);
+            spans.put(spanId, CacheSpan.createCacheEntry(file, key, position, length,
+                lastAccessTimestamp));
+            return true;
+          case RECORD_TYPE_TOUCH:
+            lastAccessTimestamp = input.readLong();
+            CacheSpan span = spans.get(spanId);
+            if (span != null) {
+              spans.put(spanId, CacheSpan.createCacheEntry(span.file, key, position, span.length,
+                  lastAccessTimestamp));
+            }
+            return true;
+          case RECORD_TYPE_REMOVE:
+            spans.remove(spanId);
+            return true;
+          default:
+            return false;
+        }
+      }
+    });
+    if (!loaded) {
+      return null;
+    }
+    for (File startedFile : startedFiles.values()) {
+      startedFile.delete();
+    }
+    spanCount = spans.size();
+    return new ArrayList<CacheSpan>(spans.values());
+  }
+
+  /**
+   * Rewrites the index so that it contains only the specified spans.
+   *
+   * @param spans The cached spans, grouped by key.
+   */
+  public void rewrite(Collection<TreeSet<CacheSpan>> spans) {
+    spanCount = 0;
+    try {
+      log.beginRewrite();
+      for (TreeSet<CacheSpan> spansForKey : spans) {
+        for (CacheSpan span : spansForKey) {
+          writeAdd(span);
+        }
+      }
+      log.endRewrite();
+    } catch (IOException e) {
+      log.handleWriteError();
+    }
+  }
+
+  /**
+   * Records that a cache file has been started.
+   */
+  public void recordStart(String key, long position, long fileTimestamp) {
+    if (!log.isWritable()) {
+      return;
+    }
+    try {
+      DataOutputStream output = log.beginRecord(RECORD_TYPE_START, key);
+      output.writeLong(position);
+      output.writeLong(fileTimestamp);
+      log.endRecord();
+    } catch (IOException e) {
+      log.handleWriteError();
+    }
+  }
+
+  /**
+   * Records that a span has been added.
+   */
+  public void recordAdd(CacheSpan span) {
+    if (!log.isWritable()) {
+      return;
+    }
+    try {
+      writeAdd(span);
+    } catch (IOException e) {
+      log.handleWriteError();
+    }
+  }
+
+  /**
+   * Records that a span's last access timestamp has been updated.
+   */
+  public void recordTouch(CacheSpan span) {
+    if (!log.isWritable()) {
+      return;
+    }
+    try {
+      DataOutputStream output = log.beginRecord(RECORD_TYPE_TOUCH, span.key);
+      output.writeLong(span.position);
+      output.writeLong(span.lastAccessTimestamp);
+      log.endDeferredRecord();
+    } catch (IOException e) {
+      log.handleWriteError();
+    }
+  }
+
+  /**
+   * Records that a span has been removed.
+   */
+  public void recordRemove(CacheSpan span) {
+    if (!log.isWritable()) {
+      return;
+    }
+    try {
+      DataOutputStream output = log.beginRecord(RECORD_TYPE_REMOVE, span.key);
+      output.writeLong(span.position);
+      log.endRecord();
+      spanCount--;
+    } catch (IOException e) {
+      log.handleWriteError();
+    }
+  }
+
+  private void writeAdd(CacheSpan span) throws IOException {
+    DataOutputStream output = log.beginRecord(RECORD_TYPE_ADD, span.key);
+    output.writeLong(span.position);
+    output.writeLong(span.length);
+    output.writeLong(CacheSpan.getFileTimestamp(span.file));
+    output.writeLong(span.lastAccessTimestamp);
+    log.endRecord();
+    spanCount++;
+  }
+
+}
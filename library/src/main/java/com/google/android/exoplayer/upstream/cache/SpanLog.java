@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream.cache;
+
+import android.os.SystemClock;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records describing the spans of a cache, from which the cache is
+ * initialized. Used by {@link SimpleCacheIndex} and {@link PackedCacheJournal}, which define the
+ * records.
+ * <p>
+ * The log is preceded by a version number. Each record consists of its type, the length of its
+ * payload, the payload, and a CRC32 checksum of all three. The payload starts with the id of the
+ * key to which the record refers. Each key is assigned the next integer id by a key record the
+ * first time it's used. When the log grows to be much larger than the set of spans it describes,
+ * it's rewritten to a temporary file that then replaces it.
+ * <p>
+ * A log whose final record is incomplete, or is followed only by zeros, is assumed to have been
+ * cut short whilst the record was being written. The records that precede it are read, and the log
+ * is rewritten. A log that's damaged in any other way, for example by a record whose checksum
+ * doesn't match or by a key id that's used twice, cannot be read.
+ * <p>
+ * Records are flushed to the file as they're written, except for deferred records, whose loss is
+ * harmless. These are buffered, and flushed with the next record that isn't deferred, when the
+ * buffer fills, or by the first deferred record written after {@link #MAX_DEFERRED_FLUSH_MS}.
+ * <p>
+ * If a write fails then no further records are appended to the log. Depending on how the log is
+ * constructed, it's then either deleted and disabled until it's explicitly rewritten, or left in
+ * place and rewritten once {@link #REWRITE_RETRY_DELAY_MS} has elapsed. In the latter case the log
+ * remains a valid record of an earlier state of the cache in the meantime, and a rewrite replaces
+ * it atomically.
+ */
+/* package */ final class SpanLog {
+
+  /**
+   * Handles the records read from a log.
+   */
+  public interface RecordHandler {
+
+    /**
+     * Handles a record.
+     *
+     * @param type The type of the record.
+     * @param key The key to which the record refers.
+     * @param input The input from which the remainder of the record should be read.
+     * @return Whether the record is valid.
+     * @throws IOException If an error occurs reading the remainder of the record.
+     */
+    boolean handleRecord(int type, String key, DataInputStream input) throws IOException;
+
+  }
+
+  /**
+   * The time after a failed write before the log is rewritten, for logs that are kept when a write
+   * fails.
+   */
+  public static final long REWRITE_RETRY_DELAY_MS = 10000;
+
+  /**
+   * The maximum time for which deferred records are buffered before being flushed, provided that
+   * further records are written.
+   */
+  public static final long MAX_DEFERRED_FLUSH_MS = 5000;
+
+  /**
+   * The type of a key record. Other record types must be positive.
+   */
+  private static final int RECORD_TYPE_KEY = 0;
+
+  /**
+   * The maximum length of the payload of a record, which must be able to hold the longest key.
+   */
+  private static final int MAX_PAYLOAD_LENGTH = 128 * 1024;
+
+  /**
+   * The minimum number of records before the log is compacted.
+   */
+  private static final int MIN_COMPACTION_RECORD_COUNT = 1024;
+
+  private final File file;
+  private final File tempFile;
+  private final int version;
+  private final boolean deleteOnWriteError;
+  private final HashMap<String, Integer> keyIds;
+  private final CRC32 checksum;
+  private final ByteArrayOutputStream recordBuffer;
+  private final DataOutputStream recordOutput;
+
+  private FileOutputStream fileOutput;
+  private DataOutputStream output;
+  private boolean rewriting;
+  private int recordType;
+  private volatile boolean enabled;
+  private boolean needsRewrite;
+  private long rewriteTimeMs;
+  private long lastFlushTimeMs;
+  private int recordCount;
+
+  /**
+   * @param file The file in which the log is stored.
+   * @param version The version of the format of the records.
+   * @param deleteOnWriteError Whether the log is deleted and disabled if a write fails. If false,
+   *     the log is kept and rewritten after {@link #REWRITE_RETRY_DELAY_MS}.
+   */
+  public SpanLog(File file, int version, boolean deleteOnWriteError) {
+    this.file = file;
+    this.version = version;
+    this.deleteOnWriteError = deleteOnWriteError;
+    tempFile = new File(file.getPath() + ".tmp");
+    keyIds = new HashMap<String, Integer>();
+    checksum = new CRC32();
+    recordBuffer = new ByteArrayOutputStream();
+    recordOutput = new DataOutputStream(recordBuffer);
+    enabled = true;
+  }
+
+  /**
+   * Returns whether a file belongs to the log.
+   */
+  public boolean isLogFile(File file) {
+    return file.equals(this.file) || file.equals(tempFile);
+  }
+
+  /**
+   * Returns whether the log is being maintained. False if the log has been deleted following a
+   * failed write.
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns whether records can be appended to the log.
+   */
+  public boolean isWritable() {
+    return output != null && !rewriting;
+  }
+
+  /**
+   * Returns whether the log should be rewritten, either because it's much larger than the set of
+   * spans that it describes, or because it's damaged or a write to it failed.
+   *
+   * @param spanCount The number of spans that the log describes.
+   */
+  public boolean shouldRewrite(int spanCount) {
+    if (!enabled) {
+      return false;
+    } else if (needsRewrite) {
+      return SystemClock.elapsedRealtime() >= rewriteTimeMs;
+    }
+    return recordCount > MIN_COMPACTION_RECORD_COUNT && recordCount > 2 * spanCount;
+  }
+
+  /**
+   * Reads the log, passing each record other than key records to a handler.
+   *
+   * @param handler The handler.
+   * @return Whether the log was read. False if the log does not exist, is damaged or cannot be
+   *     read, or if the handler rejected a record.
+   */
+  public boolean load(RecordHandler handler) {
+    if (!file.exists()) {
+      return false;
+    }
+    HashMap<Integer, String> keys = new HashMap<Integer, String>();
+    DataInputStream input = null;
+    try {
+      input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if (input.readInt() != version) {
+        return false;
+      }
+      int type;
+      while ((type = input.read()) != -1) {
+        byte[] payload;
+        try {
+          int length = input.readInt();
+          if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+            return false;
+          }
+          payload = new byte[length];
+          input.readFully(payload);
+          if (input.readInt() != computeChecksum(type, payload, length)) {
+            if (type != 0 || length != 0 || !isZeroFilled(input)) {
+              return false;
+            }
+            // The log was extended with zeros, but the final record was never written.
+            needsRewrite = true;
+            break;
+          }
+        } catch (EOFException e) {
+          // The final record was only partially written. Discard it, and rewrite the log so that
+          // subsequent records are not appended to it.
+          needsRewrite = true;
+          break;
+        }
+        DataInputStream payloadInput = new DataInputStream(new ByteArrayInputStream(payload));
+        int keyId = payloadInput.readInt();
+        if (type == RECORD_TYPE_KEY) {
+          String key = payloadInput.readUTF();
+          if (keyId != keys.size() || keyIds.containsKey(key)) {
+            // Key ids are assigned in sequence, and each key is assigned a single id.
+            return false;
+          }
+          keys.put(keyId, key);
+          keyIds.put(key, keyId);
+        } else {
+          String key = keys.get(keyId);
+          if (key == null || !handler.handleRecord(type, key, payloadInput)) {
+            return false;
+          }
+        }
+        recordCount++;
+      }
+    } catch (IOException e) {
+      // Includes an EOFException thrown by a record whose payload is shorter than its type
+      // requires, despite having a valid checksum.
+      return false;
+    } finally {
+      closeQuietly(input);
+    }
+
+    if (!needsRewrite) {
+      try {
+        openOutput(file, true);
+      } catch (IOException e) {
+        handleWriteError();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Starts rewriting the log. The records that describe the spans should then be written, followed
+   * by a call to {@link #endRewrite()}.
+   *
+   * @throws IOException If an error occurs starting the rewrite.
+   */
+  public void beginRewrite() throws IOException {
+    closeOutput();
+    keyIds.clear();
+    recordCount = 0;
+    rewriting = true;
+    openOutput(tempFile, false);
+    output.writeInt(version);
+  }
+
+  /**
+   * Finishes rewriting the log, replacing the log with the rewritten one. The rewritten log is
+   * synced to the disk before it replaces the log.
+   *
+   * @throws IOException If an error occurs finishing the rewrite.
+   */
+  public void endRewrite() throws IOException {
+    sync();
+    output.close();
+    output = null;
+    fileOutput = null;
+    if (!tempFile.renameTo(file)) {
+      throw new IOException("Failed to rename " + tempFile + " to " + file);
+    }
+    rewriting = false;
+    openOutput(file, true);
+    needsRewrite = false;
+    enabled = true;
+  }
+
+  /**
+   * Starts writing a record, first writing a key record if the key doesn't yet have an id. The
+   * remainder of the record should then be written to the returned output, followed by a call to
+   * {@link #endRecord()}. Must only be called if the log is writable, or whilst it's being
+   * rewritten.
+   *
+   * @param type The type of the record.
+   * @param key The key to which the record refers.
+   * @return The output to which the remainder of the record should be written.
+   * @throws IOException If an error occurs writing the record.
+   */
+  public DataOutputStream beginRecord(int type, String key) throws IOException {
+    Integer keyId = keyIds.get(key);
+    if (keyId == null) {
+      keyId = keyIds.size();
+      recordBuffer.reset();
+      recordOutput.writeInt(keyId);
+      recordOutput.writeUTF(key);
+      writeRecord(RECORD_TYPE_KEY);
+      keyIds.put(key, keyId);
+      recordCount++;
+    }
+    recordType = type;
+    recordBuffer.reset();
+    recordOutput.writeInt(keyId);
+    return recordOutput;
+  }
+
+  /**
+   * Finishes writing a record. Unless the log is being rewritten, the record is flushed to the
+   * file.
+   *
+   * @throws IOException If an error occurs writing the record.
+   */
+  public void endRecord() throws IOException {
+    writeRecord(recordType);
+    recordCount++;
+    if (!rewriting) {
+      flush();
+    }
+  }
+
+  /**
+   * Finishes writing a deferred record, whose loss would be harmless, such as one that only updates
+   * a last access timestamp. The record is buffered rather than being flushed to the file, unless
+   * {@link #MAX_DEFERRED_FLUSH_MS} has elapsed since the log was last flushed.
+   *
+   * @throws IOException If an error occurs writing the record.
+   */
+  public void endDeferredRecord() throws IOException {
+    writeRecord(recordType);
+    recordCount++;
+    if (!rewriting && SystemClock.elapsedRealtime() - lastFlushTimeMs >= MAX_DEFERRED_FLUSH_MS) {
+      flush();
+    }
+  }
+
+  /**
+   * Syncs the records that have been written to the disk.
+   *
+   * @throws IOException If an error occurs syncing the records.
+   */
+  public void sync() throws IOException {
+    flush();
+    fileOutput.getFD().sync();
+  }
+
+  /**
+   * Handles an error thrown by one of the write methods. No further records are appended to the
+   * log until it's rewritten.
+   */
+  public void handleWriteError() {
+    closeOutput();
+    if (rewriting) {
+      rewriting = false;
+      tempFile.delete();
+    }
+    if (deleteOnWriteError) {
+      file.delete();
+      enabled = false;
+    } else {
+      // A record may have been partially written, so the log must be rewritten before any more
+      // records can be appended to it.
+      needsRewrite = true;
+      rewriteTimeMs = SystemClock.elapsedRealtime() + REWRITE_RETRY_DELAY_MS;
+    }
+  }
+
+  private void flush() throws IOException {
+    output.flush();
+    lastFlushTimeMs = SystemClock.elapsedRealtime();
+  }
+
+  /**
+   * Writes a record whose payload is held in the record buffer.
+   */
+  private void writeRecord(int type) throws IOException {
+    byte[] payload = recordBuffer.toByteArray();
+    output.writeByte(type);
+    output.writeInt(payload.length);
+    output.write(payload);
+    output.writeInt(computeChecksum(type, payload, payload.length));
+  }
+
+  private int computeChecksum(int type, byte[] payload, int length) {
+    checksum.reset();
+    checksum.update(type);
+    checksum.update(length >>> 24);
+    checksum.update(length >>> 16);
+    checksum.update(length >>> 8);
+    checksum.update(length);
+    checksum.update(payload, 0, length);
+    return (int) checksum.getValue();
+  }
+
+  private void openOutput(File file, boolean append) throws IOException {
+    fileOutput = new FileOutputStream(file, append);
+    output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+  }
+
+  private void closeOutput() {
+    closeQuietly(output);
+    output = null;
+    fileOutput = null;
+  }
+
+  /**
+   * Returns whether the remainder of an input consists only of zeros.
+   */
+  private static boolean isZeroFilled(DataInputStream input) throws IOException {
+    int value;
+    while ((value = input.read()) != -1) {
+      if (value != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        // Ignore.
+      }
+    }
+  }
+
+}
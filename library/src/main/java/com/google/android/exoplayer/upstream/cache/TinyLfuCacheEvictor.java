@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer.upstream.cache;
+
+import com.google.android.exoplayer.util.Assertions;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Evicts cache files based on both how frequently and how recently they've been accessed, in the
+ * spirit of TinyLFU.
+ * <p>
+ * The approximate access frequency of each span is recorded in a compact sketch, whose counters
+ * are periodically halved so that old accesses are gradually forgotten. Spans are kept in a
+ * segmented LRU: a span that's added to the cache is placed in a probationary segment, and is
+ * promoted to a protected segment if it's accessed again. Eviction takes spans from the least
+ * recently used end of the probationary segment first.
+ * <p>
+ * When a writer starts writing and the cache is full, the data being written is only admitted if
+ * it has been requested more frequently than each of the spans that would have to be evicted to
+ * make room for it. If it's not admitted then nothing is evicted, and the span is removed as soon
+ * as it's been added. Hence a burst of requests for data that's accessed only once, such as a
+ * binge of new content, cannot flush frequently accessed data from the cache.
+ */
+public final class TinyLfuCacheEvictor implements CacheEvictor {
+
+  /**
+   * The default proportion of the cache that can be occupied by the protected segment.
+   */
+  public static final float DEFAULT_PROTECTED_FRACTION = 0.8f;
+
+  private static final int DEFAULT_SKETCH_WIDTH = 4096;
+  private static final int MAX_PENDING_REJECTIONS = 64;
+
+  private final long maxBytes;
+  private final long maxProtectedBytes;
+  private final FrequencySketch sketch;
+  private final LinkedHashSet<CacheSpan> probation;
+  private final LinkedHashSet<CacheSpan> protectedSpans;
+  private final LinkedHashMap<String, Boolean> pendingRejections;
+
+  private long currentSize;
+  private long protectedSize;
+
+  /**
+   * @param maxBytes The maximum size of the cache.
+   */
+  public TinyLfuCacheEvictor(long maxBytes) {
+    this(maxBytes, DEFAULT_PROTECTED_FRACTION, DEFAULT_SKETCH_WIDTH);
+  }
+
+  /**
+   * @param maxBytes The maximum size of the cache.
+   * @param protectedFraction The proportion of the cache that can be occupied by spans that have
+   *     been accessed since they were added.
+   * @param sketchWidth The number of counters in each row of the frequency sketch. Should be at
+   *     least the number of spans that the cache is expected to hold. Rounded up to a power of 2.
+   */
+  public TinyLfuCacheEvictor(long maxBytes, float protectedFraction, int sketchWidth) {
+    Assertions.checkArgument(protectedFraction >= 0 && protectedFraction <= 1);
+    Assertions.checkArgument(sketchWidth > 0);
+    this.maxBytes = maxBytes;
+    this.maxProtectedBytes = (long) (maxBytes * protectedFraction);
+    sketch = new FrequencySketch(sketchWidth);
+    probation = new LinkedHashSet<CacheSpan>();
+    protectedSpans = new LinkedHashSet<CacheSpan>();
+    pendingRejections = new LinkedHashMap<String, Boolean>() {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+        // Entries for writes that were never committed are eventually discarded.
+        return size() > MAX_PENDING_REJECTIONS;
+      }
+    };
+  }
+
+  @Override
+  public void onStartFile(Cache cache, String key, long position, long length) {
+    sketch.increment(key, position);
+    pendingRejections.remove(getSpanId(key, position));
+    long requiredSpace = currentSize + length - maxBytes;
+    if (requiredSpace <= 0) {
+      return;
+    }
+    if (length > maxBytes) {
+      pendingRejections.put(getSpanId(key, position), true);
+      return;
+    }
+    // Find the spans that would need to be evicted, and compare their frequencies with that of the
+    // data being written.
+    int candidateFrequency = sketch.getFrequency(key, position);
+    ArrayList<CacheSpan> victims = new ArrayList<CacheSpan>();
+    long freedSpace = 0;
+    Iterator<CacheSpan> iterator = new EvictionOrderIterator();
+    while (freedSpace < requiredSpace && iterator.hasNext()) {
+      CacheSpan victim = iterator.next();
+      if (sketch.getFrequency(victim.key, victim.position) >= candidateFrequency) {
+        pendingRejections.put(getSpanId(key, position), true);
+        return;
+      }
+      victims.add(victim);
+      freedSpace += victim.length;
+    }
+    for (int i = 0; i < victims.size(); i++) {
+      cache.removeSpan(victims.get(i));
+    }
+  }
+
+  @Override
+  public void onSpanAdded(Cache cache, CacheSpan span) {
+    probation.add(span);
+    currentSize += span.length;
+    if (pendingRejections.remove(getSpanId(span.key, span.position)) != null) {
+      cache.removeSpan(span);
+      return;
+    }
+    evictCache(cache);
+  }
+
+  @Override
+  public void onSpanRemoved(Cache cache, CacheSpan span) {
+    if (protectedSpans.remove(span)) {
+      protectedSize -= span.length;
+      currentSize -= span.length;
+    } else if (probation.remove(span)) {
+      currentSize -= span.length;
+    }
+  }
+
+  @Override
+  public void onSpanTouched(Cache cache, CacheSpan oldSpan, CacheSpan newSpan) {
+    sketch.increment(newSpan.key, newSpan.position);
+    if (protectedSpans.remove(oldSpan)) {
+      protectedSize -= oldSpan.length;
+    } else if (!probation.remove(oldSpan)) {
+      return;
+    }
+    // Promote the span to the most recently used end of the protected segment, demoting the least
+    // recently used protected spans back to probation if the segment is full.
+    protectedSpans.add(newSpan);
+    protectedSize += newSpan.length;
+    Iterator<CacheSpan> iterator = protectedSpans.iterator();
+    while (protectedSize > maxProtectedBytes && iterator.hasNext()) {
+      CacheSpan demotedSpan = iterator.next();
+      iterator.remove();
+      protectedSize -= demotedSpan.length;
+      probation.add(demotedSpan);
+    }
+  }
+
+  private void evictCache(Cache cache) {
+    while (currentSize > maxBytes) {
+      cache.removeSpan(new EvictionOrderIterator().next());
+    }
+  }
+
+  private static String getSpanId(String key, long position) {
+    return key + ":" + position;
+  }
+
+  /**
+   * Iterates over the cached spans in the order in which they should be evicted.
+   */
+  private final class EvictionOrderIterator implements Iterator<CacheSpan> {
+
+    private final Iterator<CacheSpan> probationIterator;
+    private final Iterator<CacheSpan> protectedIterator;
+
+    public EvictionOrderIterator() {
+      probationIterator = probation.iterator();
+      protectedIterator = protectedSpans.iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return probationIterator.hasNext() || protectedIterator.hasNext();
+    }
+
+    @Override
+    public CacheSpan next() {
+      return probationIterator.hasNext() ? probationIterator.next() : protectedIterator.next();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+  }
+
+  /**
+   * A count-min sketch of 4-bit counters, which estimates how frequently each span has been
+   * accessed. The counters are halved after a number of increments proportional to the width of
+   * the sketch, so that the estimates favor recent accesses.
+   */
+  private static final class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = new int[] {0x97CB3127, 0xB492B66F, 0x9AE16A3B, 0xCBF29CE4};
+
+    private final long[] table;
+    private final int widthMask;
+    private final int sampleSize;
+
+    private int incrementCount;
+
+    public FrequencySketch(int width) {
+      int roundedWidth = Integer.highestOneBit(width);
+      if (roundedWidth < width) {
+        roundedWidth <<= 1;
+      }
+      // Each long holds 16 4-bit counters.
+      table = new long[Math.max(1, (roundedWidth * DEPTH) / 16)];
+      widthMask = roundedWidth - 1;
+      sampleSize = 10 * roundedWidth;
+    }
+
+    public void increment(String key, long position) {
+      int hash = hash(key, position);
+      boolean incremented = false;
+      for (int i = 0; i < DEPTH; i++) {
+        int index = getCounterIndex(hash, i);
+        if (getCount(index) < MAX_COUNT) {
+          setCount(index, getCount(index) + 1);
+          incremented = true;
+        }
+      }
+      if (incremented && ++incrementCount == sampleSize) {
+        halve();
+      }
+    }
+
+    public int getFrequency(String key, long position) {
+      int hash = hash(key, position);
+      int frequency = MAX_COUNT;
+      for (int i = 0; i < DEPTH; i++) {
+        frequency = Math.min(frequency, getCount(getCounterIndex(hash, i)));
+      }
+      return frequency;
+    }
+
+    private void halve() {
+      for (int i = 0; i < table.length; i++) {
+        // Shift each counter right by one bit, clearing the bit shifted in from its neighbor.
+        table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+      }
+      incrementCount /= 2;
+    }
+
+    private int getCounterIndex(int hash, int row) {
+      int rowHash = (hash ^ SEEDS[row]) * 0x9E3779B9;
+      rowHash ^= rowHash >>> 16;
+      return row * (widthMask + 1) + (rowHash & widthMask);
+    }
+
+    private int getCount(int index) {
+      return (int) ((table[index >>> 4] >>> ((index & 15) << 2)) & 0xF);
+    }
+
+    private void setCount(int index, int count) {
+      int shift = (index & 15) << 2;
+      table[index >>> 4] = (table[index >>> 4] & ~(0xFL << shift)) | ((long) count << shift);
+    }
+
+    private static int hash(String key, long position) {
+      int hash = key.hashCode() * 31 + (int) (position ^ (position >>> 32));
+      hash *= 0x85EBCA6B;
+      return hash ^ (hash >>> 13);
+    }
+
+  }
+
+}
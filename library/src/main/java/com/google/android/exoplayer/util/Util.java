@@ -79,6 +79,39 @@ public final class Util {
     });
   }
 
+  /**
+   * Instantiates a new executor that uses a fixed number of threads, all of which have the
+   * specified name.
+   *
+   * @param threadName The name of the threads.
+   * @param threadCount The number of threads.
+   * @return The executor.
+   */
+  public static ExecutorService newFixedThreadPool(final String threadName, int threadCount) {
+    return Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        return new Thread(r, threadName);
+      }
+    });
+  }
+
+  /**
+   * Instantiates a new executor that creates threads as needed, all of which have the specified
+   * name. Idle threads are reused, and exit if they remain idle for a minute.
+   *
+   * @param threadName The name of the threads.
+   * @return The executor.
+   */
+  public static ExecutorService newCachedThreadPool(final String threadName) {
+    return Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        return new Thread(r, threadName);
+      }
+    });
+  }
+
   /**
    * Instantiates a new single threaded scheduled executor whose thread has the specified name.
    *